@@ -1,27 +1,142 @@
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* 
  * AbstractNode
  * Abstract class for a node.
  */
 public abstract class AbstractNode {
-	public static final int M = 31;
-	public static final long MOD = (1L << M);
+	// identifier bits, up to 64; run with -Dchord.bits=<M>, the same on every node
+	public static final int M = identifierBits();
+
+	// ids are M-bit unsigned values; arithmetic on the ring is masked to M bits
+	public static final long MASK = M == 64 ? -1L : (1L << M) - 1;
+
+	// how long a recursive lookup may take before falling back to iterative
+	static final int LOOKUP_TIMEOUT = 1000;
+	static final int MAX_HOPS = 2 * M;
+	// lookups tried before giving up; a hop that failed is suspected, so the
+	// next try routes around it
+	static final int LOOKUP_ATTEMPTS = 3;
+
+	// successors kept for failover, and fingers sent a heartbeat each round
+	public static final int SUCCESSORS = 8;
+	static final int HEARTBEAT_FINGERS = 4;
+
+	// most keys a multiGet or multiPut sends an owner in one request
+	static final int BATCH_SIZE = 4096;
+
+	// largest byte-array value, which must fit in one frame
+	public static final int MAX_BLOB = 16 << 20;
+
+	// how long other nodes may serve a value read from this one, by default
+	public static final int DEFAULT_LEASE = 200;
+
+	/*
+	 * Routing
+	 * How lookups travel. ITERATIVE asks each hop for the next one and waits
+	 * for the answer; RECURSIVE forwards the lookup from hop to hop and the
+	 * node preceding the key answers the originator directly.
+	 */
+	public enum Routing {
+		ITERATIVE, RECURSIVE
+	}
+
+	/*
+	 * ReadConsistency
+	 * Where gets are served. OWNER reads from the node that owns the key;
+	 * ANY reads from the owner or one of its replicas, whichever this node
+	 * has the fewest requests outstanding to, and may see a value that has
+	 * not been replicated yet.
+	 */
+	public enum ReadConsistency {
+		OWNER, ANY
+	}
+
+	/*
+	 * Batch
+	 * Positions of the keys of a multiGet or multiPut that go to one owner,
+	 * or to no known owner if owner is null.
+	 */
+	private static class Batch {
+		final Endpoint owner;
+		final int[] indices;
+
+		/* Batch constructor. */
+		Batch(Endpoint owner, int[] indices) {
+			this.owner = owner;
+			this.indices = indices;
+		}
+
+		/* Return the entries of all at this batch's positions. */
+		long[] select(long[] all) {
+			long[] picked = new long[indices.length];
+			for (int i = 0; i < indices.length; ++i) {
+				picked[i] = all[indices[i]];
+			}
+			return picked;
+		}
+	}
 
 	protected Map<Integer, Endpoint> finger;
 	protected Endpoint predecessor;
 	protected Endpoint myEp;
-	protected Map<Long, Long> myItems;
-	private int nextToFix;
+	protected LongLongMap myItems;
+	protected BlobStore myBlobs;
+	protected ItemLog itemLog;
+	protected LocationCache locations;
+	protected Routing routing;
+	protected volatile Endpoint[] successors;
+	protected FailureDetector detector;
+	protected int replication;
+	protected ReadConsistency readConsistency;
+	protected Map<Endpoint, LongLongMap> replicas;
+	protected Metrics metrics;
+	protected volatile NearCache nearCache;
+	protected int leaseMillis;
+	private volatile Endpoint[] replicaSet;
+	private volatile boolean replicasStale;
+	private Map<Endpoint, Endpoint[]> replicaSets;
+	private Map<Endpoint, AtomicInteger> outstanding;
+	private int nextToProbe;
+	private volatile boolean changed;
+	private AtomicLong nextLookup;
+	private Map<Long, CompletableFuture<Endpoint[]>> lookups;
 	
 	/* AbstractNode constructor. */
 	public AbstractNode(String host, int port) {
+		this(new Endpoint(host, port));
+	}
+
+	/* AbstractNode constructor for a node at ring position myEp. */
+	protected AbstractNode(Endpoint myEp) {
 		finger = new ConcurrentHashMap<Integer, Endpoint>(M);
-		myEp = new Endpoint(host, port);
-		myItems = new ConcurrentHashMap<Long, Long>();
-		nextToFix = 0;
+		this.myEp = myEp;
+		myItems = new LongLongMap(0, Utils.HASHER);
+		myBlobs = new BlobStore();
+		locations = new LocationCache();
+		routing = Routing.ITERATIVE;
+		successors = new Endpoint[0];
+		detector = new FailureDetector();
+		replication = 0;
+		readConsistency = ReadConsistency.OWNER;
+		nearCache = null;
+		leaseMillis = DEFAULT_LEASE;
+		replicas = new ConcurrentHashMap<Endpoint, LongLongMap>();
+		replicaSet = new Endpoint[0];
+		replicasStale = false;
+		replicaSets = new ConcurrentHashMap<Endpoint, Endpoint[]>();
+		outstanding = new ConcurrentHashMap<Endpoint, AtomicInteger>();
+		nextToProbe = 0;
+		changed = true;
+		nextLookup = new AtomicLong();
+		lookups = new ConcurrentHashMap<Long, CompletableFuture<Endpoint[]>>();
+		metrics = new Metrics();
 	}
 
 	// ==============================
@@ -34,44 +149,532 @@ public abstract class AbstractNode {
 		Debug.DEBUG("CREATING: " + myEp);
 	}
 	
-	/* Join existing chord. */
+	/*
+	 * Join existing chord. The successor's fingers and successor list seed
+	 * this node's own, so it routes well before fixFingers has run. Throws
+	 * IllegalStateException, leaving this node out of the ring, if ep could
+	 * not find its successor.
+	 */
 	public void join(Endpoint ep) {
-		finger.put(0, getSuccessor(ep, myEp.key));
+		Endpoint successor = getSuccessor(ep, myEp.key);
+		if (successor == null) {
+			throw new IllegalStateException("no successor found through " + ep);
+		}
+		finger.put(0, successor);
+		Endpoint[] table = getFingerTable(successor);
+		if (table != null) {
+			bootstrapFingers(successor, table);
+		}
+		Endpoint[] next = getSuccessorList(successor);
+		if (next != null) {
+			updateSuccessors(successor, next);
+		}
+		markChanged();
 		Debug.DEBUG("JOINING: " + myEp);
 	}
 
-	/* Leave chord. */
+	/*
+	 * Leave chord, handing items and the predecessor to the successor, and
+	 * telling the replicas to forget this node's items.
+	 */
 	public void leave() {
-		giveItems(getSuccessor(), myItems);
-		myItems.clear();
+		Endpoint successor = getSuccessor();
+		if (successor == null) {
+			// never created or joined a ring, so there is nothing to hand off
+			return;
+		}
+		if (giveItems(successor, myItems) && !successor.equals(myEp)) {
+			metrics.handedOff(myItems.size());
+		}
+		clearItems();
+		if (!successor.equals(myEp)) {
+			long[] keys = myBlobs.keys();
+			if (keys.length > 0 && giveBlobs(successor, myBlobs, keys)) {
+				metrics.handedOff(keys.length);
+			}
+		}
+		myBlobs.clear();
+		for (Endpoint ep : replicaSet) {
+			dropReplicas(ep);
+		}
+		replicaSet = new Endpoint[0];
+		if (!successor.equals(myEp)) {
+			leaving(successor, predecessor);
+		}
 	}
 	
-	/* Get value associated with key. */
+	/*
+	 * Get value associated with key, or null if it has none or its owner
+	 * could not be found.
+	 */
 	public Long get(long key) {
-		if (myItems.containsKey(key)) {
-			return myItems.get(key);
+		Long value = myItems.get(key);
+		if (value != null) {
+			return value;
+		}
+		NearCache near = nearCache;
+		if (near != null && (value = near.get(key)) != null) {
+			return value;
+		}
+
+		// try the cached owner first, falling back to a full lookup
+		long h = Utils.hash(key);
+		Endpoint owner = locations.lookup(h);
+		if (readConsistency == ReadConsistency.ANY && replication > 0) {
+			if (owner == null) {
+				owner = findSuccessor(h);
+			}
+			value = owner == null ? null : getFromReplica(owner, key);
+			if (value != null) {
+				return value;
+			}
+			// the replica lacks the key or failed; ask the owner
+		}
+		if (near != null) {
+			return getLeased(near, owner, key, h);
+		}
+		if (owner != null) {
+			try {
+				return getOwnedItem(owner, key);
+			} catch (StaleRouteException e) {
+				locations.stale(owner);
+			}
 		}
-		return getItem(findSuccessor(Utils.hash(key)), key);
+		owner = findSuccessor(h);
+		return owner == null ? null : getItem(owner, key);
 	}
 	
-	/* Put (key, value) pair. */
+	/*
+	 * Get value of key from its owner under a lease, and keep it in near
+	 * until the lease runs out. The lease counts from when the read was
+	 * sent, so the cached value is never older than the owner allowed.
+	 */
+	private Long getLeased(NearCache near, Endpoint owner, long key, long h) {
+		long start = System.nanoTime();
+		NearCache.Lease lease = null;
+		if (owner != null) {
+			try {
+				lease = getLeasedItem(owner, key);
+			} catch (StaleRouteException e) {
+				locations.stale(owner);
+			}
+		}
+		if (lease == null) {
+			owner = findSuccessor(h);
+			if (owner == null) {
+				return null;
+			}
+			try {
+				lease = getLeasedItem(owner, key);
+			} catch (StaleRouteException e) {
+				return getItem(owner, key);
+			}
+		}
+		if (lease.value != null && lease.millis > 0) {
+			near.put(key, lease.value, start, lease.millis);
+		}
+		return lease.value;
+	}
+
+	/*
+	 * Put (key, value) pair. Throws IllegalStateException if the owner of key
+	 * could not be found.
+	 */
 	public void put(long key, long value) {
+		invalidateNear(key);
 		long h = Utils.hash(key);
+		Endpoint owner = locations.lookup(h);
+		if (owner != null) {
+			try {
+				giveOwnedItem(owner, key, value);
+				return;
+			} catch (StaleRouteException e) {
+				locations.stale(owner);
+			}
+		}
+
 		Endpoint ep = findSuccessor(h);
+		if (ep == null) {
+			throw new IllegalStateException("no owner found for " + key);
+		}
 		Debug.DEBUG("STORING: " + key + " (" + h + ") in " + ep);
 		
 		giveItem(ep, key, value);
 	}
 
+	/*
+	 * Get byte-array value associated with key. Byte-array values are kept
+	 * apart from long values, so a key may have one of each.
+	 */
+	public byte[] getBytes(long key) {
+		byte[] value = myBlobs.get(key);
+		if (value != null) {
+			return value;
+		}
+
+		long h = Utils.hash(key);
+		Endpoint owner = locations.lookup(h);
+		if (owner != null) {
+			try {
+				return getOwnedBlob(owner, key);
+			} catch (StaleRouteException e) {
+				locations.stale(owner);
+			}
+		}
+		owner = findSuccessor(h);
+		if (owner == null) {
+			return null;
+		}
+		try {
+			return getOwnedBlob(owner, key);
+		} catch (StaleRouteException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Put (key, value) pair with a byte-array value of up to MAX_BLOB bytes.
+	 * The value is not replicated or logged; it moves with its key when
+	 * nodes join and leave. Throws IllegalStateException if no owner of key
+	 * takes the value.
+	 */
+	public void putBytes(long key, byte[] value) {
+		if (value.length > MAX_BLOB) {
+			throw new IllegalArgumentException("value longer than " + MAX_BLOB +
+					" bytes: " + value.length);
+		}
+		long h = Utils.hash(key);
+		Endpoint owner = locations.lookup(h);
+		if (owner != null) {
+			try {
+				giveOwnedBlob(owner, key, value);
+				return;
+			} catch (StaleRouteException e) {
+				locations.stale(owner);
+			}
+		}
+
+		// the owner found may hand key over before the value arrives, so
+		// look it up once more if it turns the value away
+		for (int attempt = 0; ; ++attempt) {
+			Endpoint ep = findSuccessor(h);
+			if (ep == null) {
+				throw new IllegalStateException("no owner found for " + key);
+			}
+			try {
+				giveOwnedBlob(ep, key, value);
+				return;
+			} catch (StaleRouteException e) {
+				locations.stale(ep);
+				if (attempt > 0) {
+					throw new IllegalStateException("could not store value of " +
+							key + " in " + ep);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Get values associated with keys, null where a key has none. Each owner
+	 * is sent its keys in one request, all owners at once, so the batch
+	 * takes about one round trip per owner. Reads always go to the owners.
+	 */
+	public Long[] multiGet(long[] keys) {
+		List<Batch> batches = batches(keys);
+		List<CompletableFuture<Long[]>> results =
+				new ArrayList<CompletableFuture<Long[]>>(batches.size());
+		for (Batch b : batches) {
+			results.add(b.owner == null ? null :
+					getOwnedItemsAsync(b.owner, b.select(keys)));
+		}
+
+		// keys whose owner moved or failed are looked up one at a time
+		Long[] values = new Long[keys.length];
+		for (int i = 0; i < batches.size(); ++i) {
+			Batch b = batches.get(i);
+			Long[] found = awaitBatch(b.owner, results.get(i));
+			for (int j = 0; j < b.indices.length; ++j) {
+				int idx = b.indices[j];
+				values[idx] = found != null ? found[j] : get(keys[idx]);
+			}
+		}
+		return values;
+	}
+
+	/*
+	 * Put (keys[i], values[i]) pairs, with one request per owner as in
+	 * multiGet. A key given twice keeps its last value.
+	 */
+	public void multiPut(long[] keys, long[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("keys and values differ in length");
+		}
+		for (long key : keys) {
+			invalidateNear(key);
+		}
+		List<Batch> batches = batches(keys);
+		List<CompletableFuture<Boolean>> results =
+				new ArrayList<CompletableFuture<Boolean>>(batches.size());
+		for (Batch b : batches) {
+			results.add(b.owner == null ? null :
+					giveOwnedItemsAsync(b.owner, b.select(keys), b.select(values))
+							.thenApply(ok -> Boolean.TRUE));
+		}
+
+		for (int i = 0; i < batches.size(); ++i) {
+			Batch b = batches.get(i);
+			if (awaitBatch(b.owner, results.get(i)) == null) {
+				for (int idx : b.indices) {
+					put(keys[idx], values[idx]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Group keys by owner, in batches of up to BATCH_SIZE. Keys are resolved
+	 * in hash order, so a key in the range of the owner found for the key
+	 * before it needs no lookup of its own.
+	 */
+	private List<Batch> batches(long[] keys) {
+		long[] hashes = new long[keys.length];
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			hashes[i] = Utils.hash(keys[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+
+		Map<Endpoint, List<Integer>> byOwner = new LinkedHashMap<Endpoint, List<Integer>>();
+		Endpoint last = null;
+		long lastHash = 0;
+		for (int i : order) {
+			long h = hashes[i];
+			Endpoint owner;
+			if (last != null && (h == lastHash ||
+					inBetween(lastHash, (last.key + 1) & MASK, h))) {
+				owner = last;
+			} else if (predecessor != null && owns(h)) {
+				owner = myEp;
+			} else {
+				owner = locations.lookup(h);
+				if (owner == null) {
+					owner = findSuccessor(h);
+				}
+			}
+			byOwner.computeIfAbsent(owner, ep -> new ArrayList<Integer>()).add(i);
+			last = owner;
+			lastHash = h;
+		}
+
+		List<Batch> batches = new ArrayList<Batch>();
+		for (Map.Entry<Endpoint, List<Integer>> e : byOwner.entrySet()) {
+			List<Integer> indices = e.getValue();
+			for (int from = 0; from < indices.size(); from += BATCH_SIZE) {
+				batches.add(new Batch(e.getKey(), indices
+						.subList(from, Math.min(indices.size(), from + BATCH_SIZE))
+						.stream().mapToInt(Integer::intValue).toArray()));
+			}
+		}
+		return batches;
+	}
+
+	/*
+	 * Wait for the answer to a batch sent to owner. Return null if there is
+	 * none, because owner no longer owns the keys or could not be reached.
+	 */
+	private <T> T awaitBatch(Endpoint owner, CompletableFuture<T> result) {
+		if (result == null) {
+			return null;
+		}
+		try {
+			return result.join();
+		} catch (CompletionException | CancellationException e) {
+			if (unwrap(e) instanceof StaleRouteException) {
+				locations.stale(owner);
+			}
+			return null;
+		}
+	}
+
+	// ==============================
+  // Asynchronous Functions
+  // ==============================
+
+	/*
+	 * Get value associated with key without blocking the caller. Lookups
+	 * made for it are iterative, each hop chained on the previous answer.
+	 */
+	public CompletableFuture<Long> getAsync(long key) {
+		Long value = myItems.get(key);
+		NearCache near = nearCache;
+		if (value != null || (near != null && (value = near.get(key)) != null)) {
+			return CompletableFuture.completedFuture(value);
+		}
+
+		long h = Utils.hash(key);
+		Endpoint cached = locations.lookup(h);
+		if (readConsistency == ReadConsistency.ANY && replication > 0) {
+			CompletableFuture<Endpoint> owner = cached != null ?
+					CompletableFuture.completedFuture(cached) : findSuccessorAsync(h);
+			return owner.thenCompose(o -> getFromReplicaAsync(o, key)
+					.thenCompose(v -> v != null ? CompletableFuture.completedFuture(v) :
+							getOwnedAsync(o, key, h)));
+		}
+		if (cached != null) {
+			return getOwnedAsync(cached, key, h);
+		}
+		return findSuccessorAsync(h).thenCompose(ep -> getItemAsync(ep, key));
+	}
+
+	/* Read key from owner, or from a fresh lookup's owner if it is stale. */
+	private CompletableFuture<Long> getOwnedAsync(Endpoint owner, long key, long h) {
+		return getOwnedItemAsync(owner, key).exceptionallyCompose(e -> {
+			if (!(unwrap(e) instanceof StaleRouteException)) {
+				return CompletableFuture.failedFuture(e);
+			}
+			locations.stale(owner);
+			return findSuccessorAsync(h).thenCompose(ep -> getItemAsync(ep, key));
+		});
+	}
+
+	/* Put (key, value) pair without blocking the caller. */
+	public CompletableFuture<Void> putAsync(long key, long value) {
+		invalidateNear(key);
+		long h = Utils.hash(key);
+		Endpoint owner = locations.lookup(h);
+		if (owner == null) {
+			return findSuccessorAsync(h).thenCompose(ep -> giveItemAsync(ep, key, value));
+		}
+		return giveOwnedItemAsync(owner, key, value).exceptionallyCompose(e -> {
+			if (!(unwrap(e) instanceof StaleRouteException)) {
+				return CompletableFuture.failedFuture(e);
+			}
+			locations.stale(owner);
+			return findSuccessorAsync(h).thenCompose(ep -> giveItemAsync(ep, key, value));
+		});
+	}
+
+	/* Find successor from id without blocking the caller. */
+	public CompletableFuture<Endpoint> findSuccessorAsync(long id) {
+		return findPredecessorAsync(id).thenCompose(pred -> getSuccessorAsync(pred)
+				.thenApply(succ -> {
+					locations.learn(pred.key, succ);
+					return succ;
+				}));
+	}
+
+	/* Find predecessor from id without blocking the caller. */
+	public CompletableFuture<Endpoint> findPredecessorAsync(long id) {
+		return getSuccessorAsync(myEp).thenCompose(succ -> {
+			if (succ == null || myEp.key == succ.key) {
+				return CompletableFuture.completedFuture(myEp);
+			}
+			return stepPredecessor(myEp, succ, id, 0);
+		});
+	}
+
+	/*
+	 * Continue the lookup for id's predecessor from cur, whose successor is
+	 * curSuccessor, taking the same steps as findPredecessor.
+	 */
+	private CompletableFuture<Endpoint> stepPredecessor(Endpoint cur,
+			Endpoint curSuccessor, long id, int hops) {
+		if (inBetween(cur.key, (curSuccessor.key + 1) & MASK, id)) {
+			metrics.hops(hops);
+			return CompletableFuture.completedFuture(cur);
+		}
+		if (hops >= MAX_HOPS) {
+			return CompletableFuture.failedFuture(
+					new IOException("lookup for " + id + " did not converge"));
+		}
+		return closestPrecedingFingerAsync(cur, id).thenCompose(next -> {
+			if (next == null) {
+				return CompletableFuture.failedFuture(
+						new IOException("no answer from " + cur));
+			}
+			return getSuccessorAsync(next).thenCompose(nextSuccessor -> {
+				if (nextSuccessor == null) {
+					return CompletableFuture.failedFuture(
+							new IOException("no answer from " + next));
+				}
+				locations.learn(next.key, nextSuccessor);
+				if (next.key == myEp.key || next.key == nextSuccessor.key) {
+					metrics.hops(hops + 1);
+					return CompletableFuture.completedFuture(next);
+				}
+				return stepPredecessor(next, nextSuccessor, id, hops + 1);
+			});
+		});
+	}
+
+	/* Asynchronous getFromReplica. */
+	private CompletableFuture<Long> getFromReplicaAsync(Endpoint owner, long key) {
+		Endpoint[] cached = replicaSets.get(owner);
+		CompletableFuture<Endpoint[]> set = cached != null ?
+				CompletableFuture.completedFuture(cached) :
+				getSuccessorListAsync(owner).thenApply(next -> {
+					if (next == null) {
+						return null;
+					}
+					Endpoint[] found = replicaSet(owner, next, replication);
+					if (replicaSets.size() >= LocationCache.DEFAULT_CAPACITY) {
+						replicaSets.clear();
+					}
+					replicaSets.put(owner, found);
+					return found;
+				});
+
+		return set.thenCompose(members -> {
+			if (members == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			Endpoint ep = pickReplica(owner, members);
+			if (ep.equals(owner)) {
+				return CompletableFuture.completedFuture(null);
+			}
+			AtomicInteger load = outstanding.computeIfAbsent(ep, e -> new AtomicInteger());
+			load.incrementAndGet();
+			return getReplicaAsync(ep, owner, key).whenComplete((value, e) -> {
+				load.decrementAndGet();
+				if (value == null && isSuspected(ep)) {
+					replicaSets.remove(owner);
+				}
+			});
+		});
+	}
+
+	/* Return the cause of a failed stage. */
+	static Throwable unwrap(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+
 	// ==============================
   // Additional Functions
   // ==============================
 
-	/* Get successor and update first finger. */
+	/*
+	 * Get first successor not suspected to have failed and update first
+	 * finger. Reads only local state; stabilize keeps it current.
+	 */
 	public Endpoint getSuccessor() {
-		for (int i = 0; i < M; ++i) {
+		Endpoint first = finger.get(0);
+		if (first != null && !isSuspected(first)) {
+			return first;
+		}
+		markChanged();
+		for (Endpoint cur : successors) {
+			if (!isSuspected(cur)) {
+				finger.put(0, cur);
+				return cur;
+			}
+		}
+		for (int i = 1; i < M; ++i) {
 			Endpoint cur = finger.get(i);
-			if (cur != null && isReachable(cur)) {
+			if (cur != null && !isSuspected(cur)) {
 				finger.put(0, cur);
 				return cur;
 			}
@@ -79,99 +682,920 @@ public abstract class AbstractNode {
 		finger.put(0, myEp);
 		return myEp;
 	}
+
+	/* Return closest finger preceding id that is not suspected, or this node. */
+	public Endpoint closestPrecedingFinger(long id) {
+		for (int i = M - 1; i >= 0; --i) {
+			Endpoint cur = finger.get(i);
+			if (cur == null || isSuspected(cur)) {
+				continue;
+			} else if (inBetween(myEp.key, id, cur.key)) {
+				return cur;
+			}
+		}
+		return myEp;
+	}
+
+	/* Return a copy of the finger table, with null for unknown fingers. */
+	public Endpoint[] getFingerTable() {
+		Endpoint[] table = new Endpoint[M];
+		for (int i = 0; i < M; ++i) {
+			table[i] = finger.get(i);
+		}
+		return table;
+	}
+
+	/* Return a copy of the successor list, nearest first. */
+	public Endpoint[] getSuccessorList() {
+		return successors.clone();
+	}
 	
-	/* Find successor from id. */
+	/*
+	 * Find successor from id. Return null if no lookup got an answer in
+	 * LOOKUP_ATTEMPTS tries, e.g. while a failed node is still in the ring.
+	 */
 	public Endpoint findSuccessor(long id) {
-		return getSuccessor(findPredecessor(id));
+		if (routing == Routing.RECURSIVE) {
+			Endpoint succ = findSuccessorRecursive(id);
+			if (succ != null) {
+				return succ;
+			}
+		}
+
+		for (int attempt = 0; attempt < LOOKUP_ATTEMPTS; ++attempt) {
+			Endpoint pred = findPredecessor(id);
+			Endpoint succ = getSuccessor(pred);
+			if (succ != null) {
+				locations.learn(pred.key, succ);
+				return succ;
+			}
+		}
+		Debug.DEBUG("LOOKUP FAILED: " + id + " from " + myEp);
+		return null;
 	}
 	
-	/* Find predecessor from id. */
+	/*
+	 * Find predecessor from id. A hop that does not answer ends the lookup
+	 * at the last node that did, which is the best guess known.
+	 */
 	public Endpoint findPredecessor(long id) {
 		Endpoint cur = myEp;
 		Endpoint curSuccessor = getSuccessor(cur);
-		if (cur.key == curSuccessor.key) {
+		if (curSuccessor == null || cur.key == curSuccessor.key) {
 			return cur;
 		}
-		while (!inBetween(cur.key, (curSuccessor.key + 1) % MOD, id)) {
-			cur = closestPrecedingFinger(cur, id);
-			curSuccessor = getSuccessor(cur);
+		int hops = 0;
+		while (!inBetween(cur.key, (curSuccessor.key + 1) & MASK, id)) {
+			if (hops == MAX_HOPS) {
+				// routing loop while the ring settles; stop at the best guess
+				Debug.DEBUG("LOOKUP DID NOT CONVERGE: " + id + " from " + myEp);
+				break;
+			}
+			++hops;
+			Endpoint next = closestPrecedingFinger(cur, id);
+			Endpoint nextSuccessor = next == null ? null : getSuccessor(next);
+			if (nextSuccessor == null) {
+				break;
+			}
+			cur = next;
+			curSuccessor = nextSuccessor;
+			locations.learn(cur.key, curSuccessor);
 			if (cur.key == myEp.key || cur.key == curSuccessor.key) {
-				return cur;
+				break;
 			}
 		}
+		metrics.hops(hops);
 		return cur;
 	}
 
+	/*
+	 * Find successor from id by forwarding the lookup along fingers. Return
+	 * null if no answer came back in time, e.g. because a hop failed.
+	 */
+	private Endpoint findSuccessorRecursive(long id) {
+		long lookupId = nextLookup.incrementAndGet();
+		CompletableFuture<Endpoint[]> result = new CompletableFuture<Endpoint[]>();
+		lookups.put(lookupId, result);
+		try {
+			routeLookup(id, myEp, lookupId, 0);
+			Endpoint[] found = result.get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+			locations.learn(found[0].key, found[1]);
+			return found[1];
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			Debug.DEBUG("LOOKUP TIMED OUT: " + id + " from " + myEp);
+			return null;
+		} finally {
+			lookups.remove(lookupId);
+		}
+	}
+
+	/*
+	 * Route lookup lookupId for id on behalf of origin. If id falls between
+	 * this node and its successor, answer origin; otherwise pass the lookup
+	 * to the closest preceding finger without waiting for the result.
+	 */
+	public void routeLookup(long id, Endpoint origin, long lookupId, int hops) {
+		Endpoint succ = getSuccessor();
+		if (succ == null) {
+			return;
+		}
+		if (succ.key == myEp.key || inBetween(myEp.key, (succ.key + 1) & MASK, id)) {
+			lookupDone(origin, lookupId, myEp, succ);
+			return;
+		}
+		if (hops >= MAX_HOPS) {
+			// routing loop while the ring settles; origin falls back
+			return;
+		}
+
+		Endpoint next = closestPrecedingFinger(myEp, id);
+		if (next.equals(myEp)) {
+			next = succ;
+		}
+		forwardLookup(next, id, origin, lookupId, hops + 1);
+	}
+
+	/* Complete lookup lookupId, which found (pred, succ]. */
+	public void completeLookup(long lookupId, Endpoint pred, Endpoint succ) {
+		CompletableFuture<Endpoint[]> result = lookups.get(lookupId);
+		if (result != null && pred != null && succ != null) {
+			result.complete(new Endpoint[] { pred, succ });
+		}
+	}
+
+	/*
+	 * Read key from the owner or a replica of owner's items. Of two replicas
+	 * picked at random, ask the one with fewer requests from this node still
+	 * outstanding. Return null if the key was not found there or the owner
+	 * itself was picked, in which case the caller reads from the owner.
+	 */
+	private Long getFromReplica(Endpoint owner, long key) {
+		Endpoint[] set = replicaSets.get(owner);
+		if (set == null) {
+			Endpoint[] next = getSuccessorList(owner);
+			if (next == null) {
+				return null;
+			}
+			set = replicaSet(owner, next, replication);
+			if (replicaSets.size() >= LocationCache.DEFAULT_CAPACITY) {
+				replicaSets.clear();
+			}
+			replicaSets.put(owner, set);
+		}
+
+		Endpoint ep = pickReplica(owner, set);
+		if (ep.equals(owner)) {
+			return null;
+		}
+		AtomicInteger load = outstanding.computeIfAbsent(ep, e -> new AtomicInteger());
+		load.incrementAndGet();
+		try {
+			Long value = getReplica(ep, owner, key);
+			if (value == null && isSuspected(ep)) {
+				replicaSets.remove(owner);
+			}
+			return value;
+		} finally {
+			load.decrementAndGet();
+		}
+	}
+
+	/* Return the less loaded of two random members of owner's replica set. */
+	private Endpoint pickReplica(Endpoint owner, Endpoint[] set) {
+		List<Endpoint> live = new ArrayList<Endpoint>(set.length + 1);
+		live.add(owner);
+		for (Endpoint ep : set) {
+			if (!isSuspected(ep)) {
+				live.add(ep);
+			}
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Endpoint a = live.get(random.nextInt(live.size()));
+		Endpoint b = live.get(random.nextInt(live.size()));
+		return load(a) <= load(b) ? a : b;
+	}
+
+	/* Return number of replica reads to ep this node is waiting for. */
+	private int load(Endpoint ep) {
+		AtomicInteger n = outstanding.get(ep);
+		return n == null ? 0 : n.get();
+	}
+
+	/*
+	 * Return the first k nodes of next, the successor list of owner, that
+	 * are on a different host than owner, so that replicas survive the host.
+	 */
+	static Endpoint[] replicaSet(Endpoint owner, Endpoint[] next, int k) {
+		List<Endpoint> set = new ArrayList<Endpoint>(k);
+		for (Endpoint ep : next) {
+			if (set.size() == k) {
+				break;
+			}
+			if (ep.port != owner.port || !ep.host.equals(owner.host)) {
+				set.add(ep);
+			}
+		}
+		return set.toArray(new Endpoint[set.size()]);
+	}
+
+	/* Receive notice that ep is leaving and that pred preceded it. */
+	public void processLeave(Endpoint ep, Endpoint pred) {
+		suspect(ep);
+		if (ep.equals(predecessor)) {
+			predecessor = (pred == null || pred.equals(myEp)) ? null : pred;
+			markChanged();
+		}
+	}
+
 	/* Receive notification from ep (ep thinks it is this node's predecssor). */
 	public void processNotification(Endpoint ep) {
+		alive(ep);
 		// Debug.DEBUG("" + ep + " NOTIFYING " + myEp);
 		if (predecessor == null || inBetween(predecessor.key, myEp.key, ep.key)) {
 			predecessor = ep;
+			markChanged();
 
-			// give keys to new predecessor
+			// give keys to new predecessor: those past this node up to it
 			if (!this.myEp.equals(predecessor)) {
-				Map<Long, Long> toGive = new HashMap<>();
-				for (Map.Entry<Long, Long> e : myItems.entrySet()) {
-					if (!inBetween(ep.key, (myEp.key + 1) % MOD, Utils.hash(e.getKey()))) {
-						toGive.put(e.getKey(), e.getValue());
+				LongLongMap toGive = new LongLongMap();
+				myItems.forEachInRange(myEp.key, ep.key, toGive::put);
+				// keep the items if the handoff failed; the next notify retries
+				if (giveItems(ep, toGive)) {
+					metrics.handedOff(toGive.size());
+					removeItems(toGive);
+				}
+				long[] blobKeys = myBlobs.keysInRange(myEp.key, ep.key);
+				if (blobKeys.length > 0 && giveBlobs(ep, myBlobs, blobKeys)) {
+					metrics.handedOff(blobKeys.length);
+					for (long key : blobKeys) {
+						myBlobs.remove(key);
 					}
 				}
-				giveItems(ep, toGive);
-				for (Long key : toGive.keySet()) {
-					myItems.remove(key);
+			}
+		}
+	}
+
+	// ==============================
+  // Item Store Functions
+  // ==============================
+
+	/* Keep items durable in dir, first recovering any items saved there. */
+	public void openItemLog(File dir, ItemLog.SyncPolicy policy) throws IOException {
+		itemLog = new ItemLog(dir, policy, myItems);
+	}
+
+	/* Store (key, value) pair in this node and pass it on to the replicas. */
+	protected void storeItem(long key, long value) {
+		if (itemLog == null) {
+			myItems.put(key, value);
+		} else {
+			itemLog.sync(itemLog.put(myItems, key, value));
+		}
+		replicate(key, value);
+	}
+
+	/* Return values of keys, or null if this node does not own all of them. */
+	protected Long[] ownedItems(long[] keys) {
+		for (long key : keys) {
+			if (!owns(Utils.hash(key))) {
+				return null;
+			}
+		}
+		Long[] values = new Long[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			values[i] = myItems.get(keys[i]);
+		}
+		return values;
+	}
+
+	/*
+	 * Store (keys[i], values[i]) pairs in this node and pass them on to the
+	 * replicas, unless it does not own all the keys. Return whether it
+	 * stored them.
+	 */
+	protected boolean storeOwnedItems(long[] keys, long[] values) {
+		for (long key : keys) {
+			if (!owns(Utils.hash(key))) {
+				return false;
+			}
+		}
+		LongLongMap items = new LongLongMap(keys.length);
+		long seq = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			items.put(keys[i], values[i]);
+			if (itemLog == null) {
+				myItems.put(keys[i], values[i]);
+			} else {
+				seq = itemLog.put(myItems, keys[i], values[i]);
+			}
+		}
+		if (itemLog != null) {
+			// one sync covers the whole batch
+			itemLog.sync(seq);
+		}
+		replicate(items);
+		return true;
+	}
+
+	/*
+	 * Store items in this node. The replicas get them at the next
+	 * stabilize, which resends everything.
+	 */
+	protected void storeItems(LongLongMap items) {
+		if (items == myItems) {
+			// last node leaving hands its items to itself
+			return;
+		}
+		metrics.takenOver(items.size());
+		markReplicasStale();
+		if (itemLog == null) {
+			myItems.putAll(items);
+			return;
+		}
+		itemLog.sync(itemLog.putAll(myItems, items));
+	}
+
+	/* Remove keys of items from this node. */
+	protected void removeItems(LongLongMap items) {
+		markReplicasStale();
+		if (itemLog == null) {
+			items.forEach((key, value) -> myItems.remove(key));
+			return;
+		}
+		itemLog.sync(itemLog.removeAll(myItems, items));
+	}
+
+	/* Remove all items from this node. */
+	protected void clearItems() {
+		markReplicasStale();
+		if (itemLog == null) {
+			myItems.clear();
+			return;
+		}
+		itemLog.sync(itemLog.clear(myItems));
+	}
+
+	/* Return value of key under this node's lease, or null if it does not own key. */
+	protected NearCache.Lease leasedItem(long key) {
+		if (!owns(Utils.hash(key))) {
+			return null;
+		}
+		return new NearCache.Lease(myItems.get(key), leaseMillis);
+	}
+
+	/* Store byte-array value, the remaining bytes of value, in this node. */
+	protected void storeBlob(long key, ByteBuffer value) {
+		myBlobs.put(key, value);
+	}
+
+	/* Store the byte-array values of keys held in blobs in this node. */
+	protected void storeBlobs(BlobStore blobs, long[] keys) {
+		if (blobs == myBlobs) {
+			return;
+		}
+		long n = 0;
+		for (long key : keys) {
+			ByteBuffer value = blobs.getBuffer(key);
+			if (value != null) {
+				myBlobs.put(key, value);
+				++n;
+			}
+		}
+		metrics.takenOver(n);
+	}
+
+	// ==============================
+  // Replication Functions
+  // ==============================
+
+	/* Send (key, value) to the replicas without waiting for them. */
+	private void replicate(long key, long value) {
+		if (replicaSet.length == 0) {
+			return;
+		}
+		LongLongMap item = new LongLongMap(1);
+		item.put(key, value);
+		replicate(item);
+	}
+
+	/* Send items to the replicas without waiting for them. */
+	private void replicate(LongLongMap items) {
+		Endpoint[] set = replicaSet;
+		if (set.length == 0) {
+			return;
+		}
+		replicaExecutor().execute(() -> {
+			for (Endpoint ep : set) {
+				if (!giveReplicas(ep, items)) {
+					replicasStale = true;
 				}
 			}
+		});
+	}
+
+	/*
+	 * Bring the replicas of this node's items in line with its successor
+	 * list. Nodes that joined the first replication successors get every
+	 * item, and nodes that dropped out are told to forget them; after items
+	 * were handed over, or a replica missed a write, all replicas get every
+	 * item again. Also take over items replicated here whose owner failed.
+	 */
+	protected void repairReplicas() {
+		promoteReplicas();
+
+		Endpoint[] old = replicaSet;
+		Endpoint[] set = replication == 0 ? new Endpoint[0] :
+				replicaSet(myEp, successors, replication);
+		boolean resync = replicasStale;
+		if (!resync && Arrays.equals(set, old)) {
+			return;
 		}
+		replicasStale = false;
+		replicaSet = set;
+
+		// queued behind pending writes, so no replica ends up with an old value
+		replicaExecutor().execute(() -> {
+			List<Endpoint> kept = Arrays.asList(set);
+			for (Endpoint ep : old) {
+				if (!kept.contains(ep) && !isSuspected(ep)) {
+					dropReplicas(ep);
+				}
+			}
+			List<Endpoint> had = Arrays.asList(old);
+			for (Endpoint ep : set) {
+				if (resync || !had.contains(ep)) {
+					dropReplicas(ep);
+					if (!giveReplicas(ep, myItems)) {
+						replicasStale = true;
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Move replicated items that this node now owns into its own items, and
+	 * forget the replicas of owners suspected to have failed. Waits until
+	 * this node knows its predecessor, since until then it would claim every
+	 * key.
+	 */
+	private void promoteReplicas() {
+		Endpoint pred = predecessor;
+		if (pred == null) {
+			return;
+		}
+		for (Map.Entry<Endpoint, LongLongMap> e : replicas.entrySet()) {
+			LongLongMap promoted = new LongLongMap();
+			if (pred.key != myEp.key) {
+				// the keys this node owns, as owns would tell
+				e.getValue().forEachInRange(pred.key, myEp.key, (key, value) -> {
+					if (!myItems.containsKey(key)) {
+						promoted.put(key, value);
+					}
+				});
+			}
+			if (!promoted.isEmpty()) {
+				Debug.DEBUG("PROMOTING: " + promoted.size() + " items of " + e.getKey());
+				storeItems(promoted);
+			}
+			if (isSuspected(e.getKey())) {
+				replicas.remove(e.getKey());
+			}
+		}
+	}
+
+	/* Record that the replicas must be sent every item again. */
+	protected void markReplicasStale() {
+		replicasStale = true;
+	}
+
+	/* Keep items as replicas of owner's. */
+	protected void storeReplicas(Endpoint owner, LongLongMap items) {
+		replicas.computeIfAbsent(owner, ep -> new LongLongMap(0, Utils.HASHER))
+				.putAll(items);
+	}
+
+	/* Forget the replicas of owner's items. */
+	protected void removeReplicas(Endpoint owner) {
+		replicas.remove(owner);
+	}
+
+	/* Return value of key held for owner, who may be this node, or null. */
+	protected Long replicaItem(Endpoint owner, long key) {
+		if (owner.equals(myEp)) {
+			return myItems.get(key);
+		}
+		LongLongMap items = replicas.get(owner);
+		return items == null ? null : items.get(key);
+	}
+
+	/*
+	 * Keep each item on the first k successors as well as on its owner.
+	 * Every node in a ring should use the same k.
+	 */
+	public void setReplication(int k) {
+		if (k < 0 || k > SUCCESSORS) {
+			throw new IllegalArgumentException("replication must be 0 to " +
+					SUCCESSORS + ": " + k);
+		}
+		replication = k;
+		markChanged();
+	}
+
+	/* Choose where this node serves its gets from. */
+	public void setReadConsistency(ReadConsistency consistency) {
+		readConsistency = consistency;
+	}
+
+	/*
+	 * Keep values read from other nodes in cache, for as long as their
+	 * owners' leases allow, or read every value from its owner if cache is
+	 * null.
+	 */
+	public void setNearCache(NearCache cache) {
+		nearCache = cache;
+	}
+
+	/* Return the near cache, or null if there is none. */
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	/*
+	 * Let other nodes serve values read from this node for up to millis ms
+	 * after reading them, or never if millis is 0. This bounds how stale
+	 * their reads of keys this node owns can be.
+	 */
+	public void setLease(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("lease must not be negative: " + millis);
+		}
+		leaseMillis = millis;
+	}
+
+	/* Drop key from the near cache, so this node reads its own writes. */
+	private void invalidateNear(long key) {
+		NearCache near = nearCache;
+		if (near != null) {
+			near.invalidate(key);
+		}
+	}
+
+	/* Return the nodes currently holding replicas of this node's items. */
+	public Endpoint[] getReplicaSet() {
+		return replicaSet.clone();
 	}
 
 	// ==============================
   // Periodic Functions
   // ==============================
 
-	/* Stabilize to learn about newly joined nodes. */
+	/*
+	 * Stabilize to learn about newly joined nodes. Fetching the successor's
+	 * list also checks that it is alive; failed successors are suspected and
+	 * the next one on the list takes over.
+	 */
 	public void stabilize() {
 		Endpoint successor = getSuccessor();
+		Endpoint[] next = getSuccessorList(successor);
+		while (next == null) {
+			suspect(successor);
+			successor = getSuccessor();
+			next = getSuccessorList(successor);
+		}
+		alive(successor);
+		updateSuccessors(successor, next);
+
 		Endpoint x = getPredecessor(successor);
+		if (x != null) {
+			locations.learn(x.key, successor);
+		}
 		if (x == null || x.equals(successor) || inBetween(x.key, successor.key, myEp.key)) {
 			notify(successor);
 		}
-		else if (inBetween(myEp.key, successor.key, x.key)) {
+		else if (inBetween(myEp.key, successor.key, x.key) && !isSuspected(x)) {
 			finger.put(0, x);
+			markChanged();
+			updateSuccessors(x, successors);
 			notify(x);
 		}
+		repairReplicas();
+	}
+
+	/* Set successor list to successor followed by the start of its list. */
+	private void updateSuccessors(Endpoint successor, Endpoint[] next) {
+		ArrayList<Endpoint> list = new ArrayList<Endpoint>(SUCCESSORS);
+		list.add(successor);
+		for (Endpoint ep : next) {
+			if (list.size() == SUCCESSORS || ep.equals(myEp)) {
+				break;
+			}
+			if (!list.contains(ep)) {
+				list.add(ep);
+			}
+		}
+		Endpoint[] updated = list.toArray(new Endpoint[list.size()]);
+		if (!Arrays.equals(updated, successors)) {
+			successors = updated;
+			markChanged();
+		}
 	}
 	
-	/* Update finger table. */
+	/*
+	 * Update finger table. Consecutive fingers that the current table maps to
+	 * the same node share one lookup, and the lookups run concurrently on
+	 * lookupExecutor. A finger that a new node has split off from its group
+	 * gets a lookup of its own.
+	 */
 	public void fixFingers() {
-		finger.put(nextToFix, findSuccessor((myEp.key + (1 << nextToFix)) % MOD));
-		nextToFix = (nextToFix + 1) % M;
+		// group fingers whose start the lead's current finger already covers
+		List<Integer> leads = new ArrayList<Integer>();
+		for (int i = 0; i < M; ++i) {
+			if (!leads.isEmpty() && covers(leads.get(leads.size() - 1), i)) {
+				continue;
+			}
+			leads.add(i);
+		}
+
+		Map<Integer, Endpoint> found = resolveFingers(leads);
+		List<Integer> split = new ArrayList<Integer>();
+		int lead = -1;
+		for (int i = 0; i < M; ++i) {
+			if (found.containsKey(i)) {
+				lead = i;
+			} else if (lead == -1 || !reaches(lead, found.get(lead), i)) {
+				split.add(i);
+			} else {
+				setFinger(i, found.get(lead));
+			}
+		}
+
+		found.putAll(resolveFingers(split));
+		for (Map.Entry<Integer, Endpoint> e : found.entrySet()) {
+			setFinger(e.getKey(), e.getValue());
+		}
+	}
+
+	/* Look up fingers concurrently. Return those that were found. */
+	private Map<Integer, Endpoint> resolveFingers(List<Integer> idx) {
+		Map<Integer, CompletableFuture<Endpoint>> pending =
+				new HashMap<Integer, CompletableFuture<Endpoint>>();
+		for (int i : idx) {
+			pending.put(i, CompletableFuture.supplyAsync(
+					() -> findSuccessor(fingerStart(i)), lookupExecutor()));
+		}
+
+		Map<Integer, Endpoint> found = new HashMap<Integer, Endpoint>();
+		for (Map.Entry<Integer, CompletableFuture<Endpoint>> e : pending.entrySet()) {
+			try {
+				Endpoint ep = e.getValue().join();
+				if (ep != null) {
+					found.put(e.getKey(), ep);
+				}
+			} catch (CompletionException | CancellationException ex) {
+				Debug.DEBUG("FINGER LOOKUP FAILED: " + e.getKey() + " at " + myEp);
+			}
+		}
+		return found;
+	}
+
+	/* Return whether finger lead's current node is also finger i's. */
+	private boolean covers(int lead, int i) {
+		return reaches(lead, finger.get(lead), i);
+	}
+
+	/* Return whether ep, the successor of lead's start, succeeds i's start. */
+	private boolean reaches(int lead, Endpoint ep, int i) {
+		if (ep == null) {
+			return false;
+		}
+		long start = fingerStart(lead);
+		return Long.compareUnsigned(distance(start, fingerStart(i)),
+				distance(start, ep.key)) <= 0;
+	}
+
+	/* Set finger i, noting a change. */
+	private void setFinger(int i, Endpoint ep) {
+		Endpoint old = finger.put(i, ep);
+		if (old == null || !old.equals(ep)) {
+			markChanged();
+		}
+	}
+
+	/* Return the first id finger i is responsible for. */
+	private long fingerStart(int i) {
+		return (myEp.key + (1L << i)) & MASK;
+	}
+
+	/*
+	 * Seed the finger table from successor's table: each finger gets the
+	 * known node closest after its start.
+	 */
+	private void bootstrapFingers(Endpoint successor, Endpoint[] table) {
+		List<Endpoint> known = new ArrayList<Endpoint>();
+		known.add(successor);
+		for (Endpoint ep : table) {
+			if (ep != null && !ep.equals(myEp)) {
+				known.add(ep);
+			}
+		}
+		for (int i = 1; i < M; ++i) {
+			long start = fingerStart(i);
+			Endpoint best = successor;
+			long bestDistance = MASK;
+			for (Endpoint ep : known) {
+				long distance = distance(start, ep.key);
+				if (Long.compareUnsigned(distance, bestDistance) < 0) {
+					best = ep;
+					bestDistance = distance;
+				}
+			}
+			finger.put(i, best);
+		}
 	}
 	
-	/* Return whether predecssor is reachable. Set predecessor to null if not. */
+	/* Return whether predecssor is alive. Set predecessor to null if not. */
 	public boolean checkPredecessor() {
-		if (predecessor == null) {
+		Endpoint pred = predecessor;
+		if (pred == null) {
 			return false;
 		}
-		if (!isReachable(predecessor)) {
+		if (isSuspected(pred)) {
 			predecessor = null;
+			markChanged();
 			return false;
 		}
 		return true;
 	}
 
+	/*
+	 * Send heartbeats to the predecessor, the successors, the owners of the
+	 * items replicated here and the next few fingers in turn, and stop
+	 * monitoring nodes that are none of these.
+	 */
+	public void heartbeat() {
+		Set<Endpoint> monitored = new HashSet<Endpoint>();
+		heartbeat(monitored).join();
+		detector.retain(monitored);
+	}
+
+	/*
+	 * Send this round's heartbeats and add every node this one monitors to
+	 * monitored, without dropping any other node from the detector. The
+	 * probes go out together and each peer's answer is recorded as it
+	 * arrives, so a stalled peer delays no one else's; the returned future
+	 * completes once every probe has answered or timed out.
+	 */
+	protected CompletableFuture<Void> heartbeat(Set<Endpoint> monitored) {
+		Set<Endpoint> neighbors = new LinkedHashSet<Endpoint>();
+		Endpoint pred = predecessor;
+		if (pred != null) {
+			neighbors.add(pred);
+		}
+		neighbors.addAll(Arrays.asList(successors));
+		neighbors.addAll(replicas.keySet());
+		Set<Endpoint> fingers = new LinkedHashSet<Endpoint>(finger.values());
+		fingers.removeAll(neighbors);
+		neighbors.remove(myEp);
+		fingers.remove(myEp);
+
+		monitored.addAll(neighbors);
+		monitored.addAll(fingers);
+
+		List<Endpoint> targets = new ArrayList<Endpoint>(neighbors);
+		List<Endpoint> others = new ArrayList<Endpoint>(fingers);
+		for (int i = 0; i < Math.min(HEARTBEAT_FINGERS, others.size()); ++i) {
+			targets.add(others.get((nextToProbe + i) % others.size()));
+		}
+		nextToProbe = others.isEmpty() ? 0 :
+				(nextToProbe + HEARTBEAT_FINGERS) % others.size();
+
+		// give up well before the next round is due
+		long timeout = Math.max(1, detector.interval() / 2);
+		CompletableFuture<?>[] probes = new CompletableFuture<?>[targets.size()];
+		for (int i = 0; i < probes.length; ++i) {
+			Endpoint ep = targets.get(i);
+			detector.monitor(ep);
+			probes[i] = isReachableAsync(ep)
+					.completeOnTimeout(false, timeout, TimeUnit.MILLISECONDS)
+					.exceptionally(e -> false)
+					.thenAccept(reachable -> {
+						if (reachable) {
+							detector.heartbeat(ep);
+						} else {
+							// let stabilization react before the next scheduled round
+							markChanged();
+						}
+					});
+		}
+		return CompletableFuture.allOf(probes);
+	}
+
 	// ==============================
   // Utility Functions
   // ==============================
 
-	/* Return whether id is in the interval (left, right) on the circle. */
+	/* Return whether this node owns id, as far as it knows. */
+	protected boolean owns(long id) {
+		Endpoint pred = predecessor;
+		return pred == null || inBetween(pred.key, (myEp.key + 1) & MASK, id);
+	}
+
+	/* Record that the ring around this node changed. */
+	protected void markChanged() {
+		changed = true;
+	}
+
+	/* Return whether the ring changed since the last clearChanged. */
+	public boolean isChanged() {
+		return changed;
+	}
+
+	/* Start watching for the next change. */
+	public void clearChanged() {
+		changed = false;
+	}
+
+	/* Return executor for the lookups of fixFingers; runs them inline here. */
+	protected Executor lookupExecutor() {
+		return Runnable::run;
+	}
+
+	/*
+	 * Return executor that sends items to the replicas, in the order they
+	 * were submitted; runs them inline here.
+	 */
+	protected Executor replicaExecutor() {
+		return Runnable::run;
+	}
+
+	/* Return whether the failure detector suspects ep. */
+	protected boolean isSuspected(Endpoint ep) {
+		return !ep.equals(myEp) && !detector.isAvailable(ep);
+	}
+
+	/* Record that ep could not be reached. */
+	protected void suspect(Endpoint ep) {
+		if (!ep.equals(myEp)) {
+			detector.failed(ep);
+		}
+	}
+
+	/* Record that ep answered. */
+	protected void alive(Endpoint ep) {
+		detector.reachable(ep);
+	}
+
+	/* Replace the failure detector, e.g. to tune it or to use a test clock. */
+	public void setFailureDetector(FailureDetector detector) {
+		this.detector = detector;
+	}
+
+	/* Return the failure detector. */
+	public FailureDetector getFailureDetector() {
+		return detector;
+	}
+
+	/* Choose how this node routes its own lookups. */
+	public void setRouting(Routing routing) {
+		this.routing = routing;
+	}
+
+	/* Return counters and histograms of this node. */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/* Return cache of key owners, with its hit and miss counters. */
+	public LocationCache getLocationCache() {
+		return locations;
+	}
+
+	/*
+	 * Return whether id is in the interval (left, right) on the circle. The
+	 * whole circle if left equals right.
+	 */
 	protected boolean inBetween(long left, long right, long id) {
-		if (left < right) {
-			return id > left && id < right;
-		} else if (left > right) {
-			return id > left || id < right;
-		} else {
-			return true;
+		long span = distance(left, right);
+		long offset = distance(left, id);
+		return span == 0 || (offset != 0 && Long.compareUnsigned(offset, span) < 0);
+	}
+
+	/* Return clockwise distance from one id to another, as unsigned M bits. */
+	public static long distance(long from, long to) {
+		return (to - from) & MASK;
+	}
+
+	/* Return M from the chord.bits property. */
+	private static int identifierBits() {
+		int bits = Integer.getInteger("chord.bits", 31);
+		if (bits < 8 || bits > 64) {
+			throw new IllegalArgumentException("chord.bits must be 8 to 64: " + bits);
 		}
+		return bits;
 	}
 
 	// ==============================
@@ -189,19 +1613,170 @@ public abstract class AbstractNode {
 	
 	/* Get predecessor of ep. */
 	abstract Endpoint getPredecessor(Endpoint ep);
+
+	/* Get successor list of ep, or null if ep cannot be reached. */
+	abstract Endpoint[] getSuccessorList(Endpoint ep);
+
+	/* Get finger table of ep, or null if ep cannot be reached. */
+	abstract Endpoint[] getFingerTable(Endpoint ep);
 	
 	/* Get value associated with key from ep. */
 	abstract Long getItem(Endpoint ep, long key);
 	
 	/* Give (key, value) pair to ep. */
 	abstract void giveItem(Endpoint ep, long key, long value);
+
+	/* Get value associated with key from ep, which must own key. */
+	abstract Long getOwnedItem(Endpoint ep, long key) throws StaleRouteException;
+
+	/* Give (key, value) pair to ep, which must own key. */
+	abstract void giveOwnedItem(Endpoint ep, long key, long value)
+			throws StaleRouteException;
+
+	/*
+	 * Get value associated with key from ep, which must own key, with the
+	 * lease ep grants on it.
+	 */
+	abstract NearCache.Lease getLeasedItem(Endpoint ep, long key)
+			throws StaleRouteException;
 	
-	/* Give items to ep. */
-	abstract void giveItems(Endpoint ep, Map<Long, Long> items);
+	/*
+	 * Get values of keys from ep, null where a key has none. Throw
+	 * StaleRouteException unless ep owns every key.
+	 */
+	abstract Long[] getOwnedItems(Endpoint ep, long[] keys) throws StaleRouteException;
+
+	/*
+	 * Give (keys[i], values[i]) pairs to ep. Throw StaleRouteException,
+	 * storing none of them, unless ep owns every key.
+	 */
+	abstract void giveOwnedItems(Endpoint ep, long[] keys, long[] values)
+			throws StaleRouteException;
+
+	/* Give items to ep in bulk. Return whether ep received all of them. */
+	abstract boolean giveItems(Endpoint ep, LongLongMap items);
+
+	/*
+	 * Get byte-array value associated with key from ep, which must own key.
+	 * Throw StaleRouteException if it does not.
+	 */
+	abstract byte[] getOwnedBlob(Endpoint ep, long key) throws StaleRouteException;
+
+	/* Give (key, value) pair to ep, which must own key. */
+	abstract void giveOwnedBlob(Endpoint ep, long key, byte[] value)
+			throws StaleRouteException;
+
+	/*
+	 * Give the byte-array values of keys held in blobs to ep in bulk. Return
+	 * whether ep received all of them.
+	 */
+	abstract boolean giveBlobs(Endpoint ep, BlobStore blobs, long[] keys);
+	
+	/* Pass lookup for id to ep, which continues routing it. */
+	abstract void forwardLookup(Endpoint ep, long id, Endpoint origin,
+			long lookupId, int hops);
+
+	/* Tell origin that lookup lookupId found (pred, succ]. */
+	abstract void lookupDone(Endpoint origin, long lookupId, Endpoint pred,
+			Endpoint succ);
+	
+	/* Give items to ep as replicas of this node's. Return whether ep got all. */
+	abstract boolean giveReplicas(Endpoint ep, LongLongMap items);
+
+	/* Tell ep to forget the replicas of this node's items. */
+	abstract void dropReplicas(Endpoint ep);
+
+	/* Get value of key from ep, which holds owner's items or a replica. */
+	abstract Long getReplica(Endpoint ep, Endpoint owner, long key);
+	
+	/* Tell successor ep that this node is leaving and pred preceded it. */
+	abstract void leaving(Endpoint ep, Endpoint pred);
 	
 	/* Notify ep that this node may be its predecessor. */
 	abstract void notify(Endpoint ep);
 	
 	/* Return whether ep is reachable. */
 	abstract boolean isReachable(Endpoint ep);
+
+	// ==============================
+  // Asynchronous Communication Functions
+  // ==============================
+
+	// These default to the blocking calls above, run inline, which suits
+	// nodes in the same process. Nodes that talk over a network override them.
+
+	/* Asynchronous closestPrecedingFinger. */
+	CompletableFuture<Endpoint> closestPrecedingFingerAsync(Endpoint ep, long id) {
+		return CompletableFuture.completedFuture(closestPrecedingFinger(ep, id));
+	}
+
+	/* Asynchronous isReachable. */
+	CompletableFuture<Boolean> isReachableAsync(Endpoint ep) {
+		return CompletableFuture.completedFuture(isReachable(ep));
+	}
+
+	/* Asynchronous getSuccessor. */
+	CompletableFuture<Endpoint> getSuccessorAsync(Endpoint ep) {
+		return CompletableFuture.completedFuture(getSuccessor(ep));
+	}
+
+	/* Asynchronous getSuccessorList. */
+	CompletableFuture<Endpoint[]> getSuccessorListAsync(Endpoint ep) {
+		return CompletableFuture.completedFuture(getSuccessorList(ep));
+	}
+
+	/* Asynchronous getItem. */
+	CompletableFuture<Long> getItemAsync(Endpoint ep, long key) {
+		return CompletableFuture.completedFuture(getItem(ep, key));
+	}
+
+	/* Asynchronous giveItem. */
+	CompletableFuture<Void> giveItemAsync(Endpoint ep, long key, long value) {
+		giveItem(ep, key, value);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/* Asynchronous getOwnedItem; fails with StaleRouteException. */
+	CompletableFuture<Long> getOwnedItemAsync(Endpoint ep, long key) {
+		try {
+			return CompletableFuture.completedFuture(getOwnedItem(ep, key));
+		} catch (StaleRouteException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/* Asynchronous giveOwnedItem; fails with StaleRouteException. */
+	CompletableFuture<Void> giveOwnedItemAsync(Endpoint ep, long key, long value) {
+		try {
+			giveOwnedItem(ep, key, value);
+			return CompletableFuture.completedFuture(null);
+		} catch (StaleRouteException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/* Asynchronous getOwnedItems; fails with StaleRouteException. */
+	CompletableFuture<Long[]> getOwnedItemsAsync(Endpoint ep, long[] keys) {
+		try {
+			return CompletableFuture.completedFuture(getOwnedItems(ep, keys));
+		} catch (StaleRouteException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/* Asynchronous giveOwnedItems; fails with StaleRouteException. */
+	CompletableFuture<Void> giveOwnedItemsAsync(Endpoint ep, long[] keys,
+			long[] values) {
+		try {
+			giveOwnedItems(ep, keys, values);
+			return CompletableFuture.completedFuture(null);
+		} catch (StaleRouteException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/* Asynchronous getReplica. */
+	CompletableFuture<Long> getReplicaAsync(Endpoint ep, Endpoint owner, long key) {
+		return CompletableFuture.completedFuture(getReplica(ep, owner, key));
+	}
 }
@@ -0,0 +1,342 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * BlobStore
+ * Byte-array values keyed by long, kept off the heap. Values are appended to
+ * direct buffers of SLAB_SIZE bytes, each behind a 4-byte length; a value
+ * larger than MAX_SMALL gets a direct buffer of its own. The location of
+ * each value lives in a LongLongMap indexed by identifier, so a range of
+ * keys can be found without visiting every value, as in the item store.
+ *
+ * Bytes that have been written are never written again: an overwrite or
+ * remove only leaves the old copy behind as garbage, and a slab whose
+ * values are all garbage is released. Once garbage outweighs the live bytes,
+ * values of mostly empty slabs are moved to fresh ones. A buffer returned
+ * by getBuffer therefore keeps its contents however the store changes.
+ * Nothing is allocated until the first value is put, since every node
+ * has a store, and most, in a simulation, never hold a value.
+ */
+public class BlobStore {
+	public static final int SLAB_SIZE = 1 << 20;
+	// values above this size get a slab of their own
+	public static final int MAX_SMALL = SLAB_SIZE / 8;
+
+	private static final int HEADER = 4;
+	private static final int INITIAL_SLABS = 8;
+
+	// locations of values, or null until the first put
+	private volatile LongLongMap index;
+	private final ReentrantReadWriteLock lock;
+	private ByteBuffer[] slabs;
+	// bytes used and bytes still live in each slab, headers included
+	private int[] used;
+	private int[] live;
+	private final ArrayDeque<Integer> freeSlots;
+	private int current;
+	private long liveBytes;
+	private long reservedBytes;
+
+	/* BlobStore constructor. */
+	public BlobStore() {
+		index = null;
+		lock = new ReentrantReadWriteLock();
+		slabs = new ByteBuffer[0];
+		used = new int[0];
+		live = new int[0];
+		freeSlots = new ArrayDeque<Integer>(0);
+		current = -1;
+		liveBytes = 0;
+		reservedBytes = 0;
+	}
+
+	/* Return slab number of location loc. */
+	private static int slab(long loc) {
+		return (int) (loc >>> 32);
+	}
+
+	/* Return offset of location loc within its slab. */
+	private static int offset(long loc) {
+		return (int) loc;
+	}
+
+	/* Return value of key, copied to the heap, or null if there is none. */
+	public byte[] get(long key) {
+		ByteBuffer buf = getBuffer(key);
+		if (buf == null) {
+			return null;
+		}
+		byte[] value = new byte[buf.remaining()];
+		buf.get(value);
+		return value;
+	}
+
+	/*
+	 * Return a read-only view of the value of key in place, or null if there
+	 * is none. The view stays valid after the value is replaced or removed.
+	 */
+	public ByteBuffer getBuffer(long key) {
+		lock.readLock().lock();
+		try {
+			long loc = index == null ? -1 : index.get(key, -1);
+			if (loc == -1) {
+				return null;
+			}
+			ByteBuffer s = slabs[slab(loc)];
+			int off = offset(loc);
+			int len = s.getInt(off);
+			return s.asReadOnlyBuffer().limit(off + HEADER + len)
+					.position(off + HEADER).slice();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Return whether key has a value. */
+	public boolean containsKey(long key) {
+		LongLongMap map = index;
+		return map != null && map.containsKey(key);
+	}
+
+	/* Associate value with key. */
+	public void put(long key, byte[] value) {
+		put(key, ByteBuffer.wrap(value));
+	}
+
+	/*
+	 * Associate the remaining bytes of value with key. The bytes are copied
+	 * once, straight into a slab; the position of value is left alone.
+	 */
+	public void put(long key, ByteBuffer value) {
+		int len = value.remaining();
+		lock.writeLock().lock();
+		try {
+			if (index == null) {
+				index = new LongLongMap(0, Utils.HASHER);
+			}
+			long loc = allocate(HEADER + len);
+			ByteBuffer s = slabs[slab(loc)];
+			int off = offset(loc);
+			s.putInt(off, len);
+			s.put(off + HEADER, value, value.position(), len);
+			release(index.get(key, -1));
+			index.put(key, loc);
+			live[slab(loc)] += HEADER + len;
+			liveBytes += HEADER + len;
+			if (shouldCompact()) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* Remove key. Return whether it had a value. */
+	public boolean remove(long key) {
+		lock.writeLock().lock();
+		try {
+			long loc = index == null ? -1 : index.get(key, -1);
+			if (loc == -1) {
+				return false;
+			}
+			index.remove(key);
+			release(loc);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* Remove all values and release every slab. */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			if (index != null) {
+				index.clear();
+			}
+			Arrays.fill(slabs, null);
+			Arrays.fill(used, 0);
+			Arrays.fill(live, 0);
+			freeSlots.clear();
+			for (int i = slabs.length - 1; i >= 0; --i) {
+				freeSlots.push(i);
+			}
+			current = -1;
+			liveBytes = 0;
+			reservedBytes = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* Return number of values. */
+	public int size() {
+		LongLongMap map = index;
+		return map == null ? 0 : map.size();
+	}
+
+	/* Return whether the store is empty. */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/* Return bytes taken by live values, their length headers included. */
+	public long liveBytes() {
+		lock.readLock().lock();
+		try {
+			return liveBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Return off-heap bytes held in slabs. */
+	public long reservedBytes() {
+		lock.readLock().lock();
+		try {
+			return reservedBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Return keys whose identifiers fall in (left, right], or every key if
+	 * left equals right, as LongLongMap.forEachInRange visits them.
+	 */
+	public long[] keysInRange(long left, long right) {
+		LongLongMap map = index;
+		if (map == null) {
+			return new long[0];
+		}
+		long[][] keys = { new long[16] };
+		int[] n = { 0 };
+		map.forEachInRange(left, right, (key, loc) -> {
+			if (n[0] == keys[0].length) {
+				keys[0] = Arrays.copyOf(keys[0], n[0] * 2);
+			}
+			keys[0][n[0]++] = key;
+		});
+		return Arrays.copyOf(keys[0], n[0]);
+	}
+
+	/* Return every key. */
+	public long[] keys() {
+		return keysInRange(0, 0);
+	}
+
+	// ==============================
+  // Slab Functions
+  // ==============================
+
+	/* Reserve size bytes for a value and return their location. */
+	private long allocate(int size) {
+		if (size > MAX_SMALL + HEADER) {
+			int s = newSlab(size);
+			used[s] = size;
+			return (long) s << 32;
+		}
+		if (current < 0 || used[current] + size > slabs[current].capacity()) {
+			int old = current;
+			current = newSlab(SLAB_SIZE);
+			if (old >= 0 && live[old] == 0) {
+				freeSlab(old);
+			}
+		}
+		long loc = (long) current << 32 | used[current];
+		used[current] += size;
+		return loc;
+	}
+
+	/* Add a direct slab of capacity bytes and return its number. */
+	private int newSlab(int capacity) {
+		if (freeSlots.isEmpty()) {
+			int n = slabs.length;
+			int grown = Math.max(INITIAL_SLABS, n * 2);
+			slabs = Arrays.copyOf(slabs, grown);
+			used = Arrays.copyOf(used, grown);
+			live = Arrays.copyOf(live, grown);
+			for (int i = grown - 1; i >= n; --i) {
+				freeSlots.push(i);
+			}
+		}
+		int s = freeSlots.pop();
+		slabs[s] = ByteBuffer.allocateDirect(capacity);
+		used[s] = 0;
+		live[s] = 0;
+		reservedBytes += capacity;
+		return s;
+	}
+
+	/*
+	 * Drop slab s. Its memory goes back once no view of it is left; the
+	 * slot is reused for a new slab.
+	 */
+	private void freeSlab(int s) {
+		reservedBytes -= slabs[s].capacity();
+		slabs[s] = null;
+		used[s] = 0;
+		live[s] = 0;
+		freeSlots.push(s);
+	}
+
+	/* Count the value at loc as garbage, freeing its slab if nothing is left. */
+	private void release(long loc) {
+		if (loc == -1) {
+			return;
+		}
+		int s = slab(loc);
+		int size = HEADER + slabs[s].getInt(offset(loc));
+		live[s] -= size;
+		liveBytes -= size;
+		if (live[s] == 0 && s != current) {
+			freeSlab(s);
+		}
+	}
+
+	/* Return whether garbage outweighs live values by enough to compact. */
+	private boolean shouldCompact() {
+		long garbage = reservedBytes - liveBytes;
+		if (current >= 0) {
+			garbage -= slabs[current].capacity() - used[current];
+		}
+		return garbage > Math.max(liveBytes, 4L * SLAB_SIZE);
+	}
+
+	/*
+	 * Move the values of small-value slabs that are less than half live to
+	 * fresh slabs, which frees the old ones. Visits every key, but only
+	 * once the garbage is at least as large as the live values.
+	 */
+	private void compact() {
+		boolean[] sparse = new boolean[slabs.length];
+		for (int s = 0; s < slabs.length; ++s) {
+			sparse[s] = slabs[s] != null && s != current &&
+					slabs[s].capacity() == SLAB_SIZE && live[s] < used[s] / 2;
+		}
+		// the index cannot be written while it is being visited
+		LongLongMap moves = new LongLongMap();
+		index.forEach((key, loc) -> {
+			if (sparse[slab(loc)]) {
+				moves.put(key, loc);
+			}
+		});
+
+		moves.forEach((key, loc) -> {
+			int s = slab(loc);
+			ByteBuffer from = slabs[s];
+			int off = offset(loc);
+			int size = HEADER + from.getInt(off);
+			long to = allocate(size);
+			slabs[slab(to)].put(offset(to), from, off, size);
+			index.put(key, to);
+			live[slab(to)] += size;
+			live[s] -= size;
+			if (live[s] == 0) {
+				freeSlab(s);
+			}
+		});
+	}
+}
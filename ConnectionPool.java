@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * ConnectionPool
+ * Pool of persistent connections to other nodes, keyed by endpoint.
+ */
+public class ConnectionPool {
+	public static final int MAX_IDLE_PER_ENDPOINT = 8;
+	public static final long IDLE_TIMEOUT = 30000;
+
+	// bound how long a dead or stalled peer can hold up the caller
+	public static final int CONNECT_TIMEOUT = 1000;
+	public static final int READ_TIMEOUT = 5000;
+
+	private Map<Endpoint, Deque<Connection>> idle;
+	private AtomicLong connects;
+	private volatile boolean closed;
+	private boolean binary;
+
+	/* ConnectionPool constructor. */
+	public ConnectionPool(boolean binary) {
+		this.binary = binary;
+		idle = new ConcurrentHashMap<Endpoint, Deque<Connection>>();
+		connects = new AtomicLong();
+		closed = false;
+	}
+
+	/*
+	 * Connection
+	 * Socket with its streams and the time it was last returned to the pool.
+	 * Text connections use in and out; binary connections use codec and call.
+	 */
+	static class Connection {
+		final Endpoint ep;
+		final Socket s;
+		BufferedReader in;
+		DataOutputStream out;
+		WireCodec codec;
+		private DataInputStream din;
+		private OutputStream rawOut;
+		private WritableByteChannel rawChannel;
+		long lastUsed;
+		boolean reused;
+
+		/* Connection constructor. */
+		Connection(Endpoint ep, boolean binary) throws IOException {
+			this.ep = ep;
+			this.s = new Socket();
+			this.s.connect(new InetSocketAddress(ep.host, ep.port), CONNECT_TIMEOUT);
+			this.s.setSoTimeout(READ_TIMEOUT);
+			this.s.setTcpNoDelay(true);
+			this.reused = false;
+
+			if (!binary) {
+				this.in = Utils.getInputStream(s);
+				this.out = Utils.getOutputStream(s);
+				return;
+			}
+
+			// handshake: magic and version, answered with the agreed version
+			this.codec = new WireCodec();
+			this.din = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			this.rawOut = s.getOutputStream();
+			rawOut.write(new byte[] { WireCodec.MAGIC, WireCodec.VERSION });
+			rawOut.flush();
+			if (din.readByte() != WireCodec.VERSION) {
+				close();
+				throw new IOException("protocol version rejected by " + ep);
+			}
+		}
+
+		/* Send frame and return the response frame, starting at its opcode. */
+		ByteBuffer call(ByteBuffer... frame) throws IOException {
+			send(frame);
+			return receive();
+		}
+
+		/*
+		 * Send frame, given as buffers to write in order, without waiting for
+		 * its response. Direct buffers go through a channel on the stream.
+		 */
+		void send(ByteBuffer... frame) throws IOException {
+			for (ByteBuffer b : frame) {
+				if (b.hasArray()) {
+					rawOut.write(b.array(), b.arrayOffset() + b.position(),
+							b.remaining());
+					continue;
+				}
+				if (rawChannel == null) {
+					rawChannel = Channels.newChannel(rawOut);
+				}
+				rawChannel.write(b.duplicate());
+			}
+			rawOut.flush();
+		}
+
+		/* Receive the next response frame, starting at its opcode. */
+		ByteBuffer receive() throws IOException {
+			int len = din.readInt();
+			if (len < 1 || len > WireCodec.MAX_FRAME) {
+				throw new IOException("bad frame length " + len);
+			}
+			ByteBuffer response = codec.inBuffer(len);
+			din.readFully(response.array(), 0, len);
+			return response;
+		}
+
+		/* Close connection, ignoring errors. */
+		void close() {
+			try {
+				s.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/* Borrow an idle connection to ep, or open a new one. */
+	Connection borrow(Endpoint ep) throws IOException {
+		Deque<Connection> q = idle.get(ep);
+		if (q != null) {
+			long now = System.currentTimeMillis();
+			Connection c;
+			while ((c = q.pollFirst()) != null) {
+				if (now - c.lastUsed < IDLE_TIMEOUT && !c.s.isClosed()) {
+					c.reused = true;
+					return c;
+				}
+				c.close();
+			}
+		}
+		connects.incrementAndGet();
+		return new Connection(ep, binary);
+	}
+
+	/* Return a healthy connection to the pool. */
+	void release(Connection c) {
+		if (closed) {
+			c.close();
+			return;
+		}
+		c.lastUsed = System.currentTimeMillis();
+		Deque<Connection> q = idle.computeIfAbsent(c.ep,
+				k -> new ConcurrentLinkedDeque<Connection>());
+		if (q.size() >= MAX_IDLE_PER_ENDPOINT) {
+			c.close();
+			return;
+		}
+		q.offerFirst(c);
+	}
+
+	/* Close connections that have been idle longer than IDLE_TIMEOUT. */
+	void evictIdle() {
+		evictIdle(System.currentTimeMillis());
+	}
+
+	/* Close connections that have been idle longer than IDLE_TIMEOUT at now. */
+	void evictIdle(long now) {
+		for (Deque<Connection> q : idle.values()) {
+			Iterator<Connection> it = q.iterator();
+			while (it.hasNext()) {
+				Connection c = it.next();
+				if (now - c.lastUsed >= IDLE_TIMEOUT) {
+					it.remove();
+					c.close();
+				}
+			}
+		}
+	}
+
+	/* Close every pooled connection and stop pooling. */
+	void close() {
+		closed = true;
+		for (Deque<Connection> q : idle.values()) {
+			Connection c;
+			while ((c = q.pollFirst()) != null) {
+				c.close();
+			}
+		}
+		idle.clear();
+	}
+
+	/* Return number of connections opened so far. */
+	public long connects() {
+		return connects.get();
+	}
+}
@@ -1,5 +1,7 @@
 public class Debug {
-	private static final boolean _DEBUG = true;
+	// run with -Dchord.debug=false to silence debug output
+	private static final boolean _DEBUG =
+			Boolean.parseBoolean(System.getProperty("chord.debug", "true"));
 	
 	public static void DEBUG(Object o) {
 		if (_DEBUG) {
@@ -24,9 +24,18 @@ public class Endpoint {
 	@Override
 	/* Return whether two endpoints are equal. */
 	public boolean equals(Object obj) {
+		if (!(obj instanceof Endpoint)) {
+			return false;
+		}
 		Endpoint e = (Endpoint) obj;
 		return e.host.equals(this.host) && e.port == this.port && e.key == this.key;
 	}
+
+	@Override
+	/* Return hash code consistent with equals. */
+	public int hashCode() {
+		return (host.hashCode() * 31 + port) * 31 + Long.hashCode(key);
+	}
 	
 	@Override
 	/* Return endpoint in readable format. */
@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * FailureDetector
+ * Phi-accrual failure detector. Heartbeat arrivals from each monitored peer
+ * are kept as a window of inter-arrival times, and phi is how unlikely the
+ * current silence is under a normal fit of that window: phi = 1 means about
+ * a 10% chance the peer is still alive, phi = 2 about 1%, and so on. A peer
+ * is suspected once phi reaches the threshold. A failed request marks a peer
+ * suspected at once, until it is heard from again.
+ */
+public class FailureDetector {
+	public static final long DEFAULT_INTERVAL = 500;
+	public static final double DEFAULT_THRESHOLD = 8.0;
+
+	private static final int MAX_SAMPLES = 200;
+	private static final double MIN_STD_DEV = 100;
+
+	// missed heartbeats tolerated before the silence counts against a peer
+	private static final int ACCEPTABLE_MISSES = 2;
+
+	private final Clock clock;
+	private final long interval;
+	private final double threshold;
+	private final Map<Endpoint, History> peers;
+
+	/*
+	 * Clock
+	 * Source of time in milliseconds, replaceable in tests.
+	 */
+	public interface Clock {
+		long millis();
+	}
+
+	/*
+	 * History
+	 * Last arrival and recent inter-arrival times of one peer.
+	 */
+	private class History {
+		final double[] samples;
+		int count;
+		int next;
+		double sum;
+		double sumSquares;
+		long last;
+		boolean failed;
+
+		/* History constructor, seeded as if heartbeats arrive every interval. */
+		History(long now) {
+			samples = new double[MAX_SAMPLES];
+			last = now;
+			add(interval);
+		}
+
+		/* Add inter-arrival time, dropping the oldest past MAX_SAMPLES. */
+		void add(double sample) {
+			if (count == MAX_SAMPLES) {
+				double old = samples[next];
+				sum -= old;
+				sumSquares -= old * old;
+			} else {
+				++count;
+			}
+			samples[next] = sample;
+			next = (next + 1) % MAX_SAMPLES;
+			sum += sample;
+			sumSquares += sample * sample;
+		}
+
+		/* Return phi at time now. */
+		double phi(long now) {
+			if (failed) {
+				return Double.POSITIVE_INFINITY;
+			}
+			double avg = sum / count;
+			double variance = Math.max(0, sumSquares / count - avg * avg);
+			double stdDev = Math.max(Math.sqrt(variance), MIN_STD_DEV);
+			double mean = avg + ACCEPTABLE_MISSES * interval;
+
+			// logistic approximation of the normal tail, accurate to 1e-4
+			double y = (now - last - mean) / stdDev;
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			if (now - last > mean) {
+				return -Math.log10(e / (1.0 + e));
+			}
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+
+	/* FailureDetector constructor with default tuning. */
+	public FailureDetector() {
+		this(DEFAULT_INTERVAL, DEFAULT_THRESHOLD);
+	}
+
+	/* FailureDetector constructor. */
+	public FailureDetector(long interval, double threshold) {
+		this(System::currentTimeMillis, interval, threshold);
+	}
+
+	/*
+	 * FailureDetector constructor. Heartbeats are expected every interval
+	 * milliseconds; a lower threshold detects failures sooner but suspects
+	 * slow peers more often.
+	 */
+	public FailureDetector(Clock clock, long interval, double threshold) {
+		this.clock = clock;
+		this.interval = interval;
+		this.threshold = threshold;
+		peers = new ConcurrentHashMap<Endpoint, History>();
+	}
+
+	/* Return milliseconds between heartbeats. */
+	public long interval() {
+		return interval;
+	}
+
+	/* Start monitoring ep if it is not already monitored. */
+	public void monitor(Endpoint ep) {
+		peers.computeIfAbsent(ep, k -> new History(clock.millis()));
+	}
+
+	/* Stop monitoring every peer not in eps. */
+	public void retain(Collection<Endpoint> eps) {
+		peers.keySet().retainAll(eps);
+	}
+
+	/* Record heartbeat from ep. */
+	public void heartbeat(Endpoint ep) {
+		History h = peers.get(ep);
+		if (h == null) {
+			return;
+		}
+		synchronized (h) {
+			long now = clock.millis();
+			if (!h.failed) {
+				h.add(now - h.last);
+			}
+			h.last = now;
+			h.failed = false;
+		}
+	}
+
+	/* Record that ep answered some other request. */
+	public void reachable(Endpoint ep) {
+		History h = peers.get(ep);
+		if (h == null) {
+			return;
+		}
+		synchronized (h) {
+			h.last = clock.millis();
+			h.failed = false;
+		}
+	}
+
+	/* Record that a request to ep failed. */
+	public void failed(Endpoint ep) {
+		History h = peers.computeIfAbsent(ep, k -> new History(clock.millis()));
+		synchronized (h) {
+			h.failed = true;
+		}
+	}
+
+	/* Return suspicion level of ep; 0 if it is not monitored. */
+	public double phi(Endpoint ep) {
+		History h = peers.get(ep);
+		if (h == null) {
+			return 0;
+		}
+		synchronized (h) {
+			return h.phi(clock.millis());
+		}
+	}
+
+	/* Return whether ep is below the suspicion threshold. */
+	public boolean isAvailable(Endpoint ep) {
+		return phi(ep) < threshold;
+	}
+}
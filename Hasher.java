@@ -0,0 +1,160 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Hasher
+ * Maps keys and node names to identifiers on the ring. Every node in a ring
+ * must use the same hasher. SHA1 gives the original placement; MIX is a much
+ * cheaper non-cryptographic hash that is just as uniform, for rings that do
+ * not need to stay compatible with SHA1 nodes.
+ */
+public interface Hasher {
+	Hasher SHA1 = new Sha1();
+	Hasher MIX = new Mix();
+
+	/* Return identifier of key. */
+	long hash(long key);
+
+	/* Return identifier of string, such as a node's host and port. */
+	long hash(String s);
+
+	/* Return hasher by name, SHA1 or MIX. */
+	static Hasher forName(String name) {
+		switch (name.toUpperCase()) {
+			case "SHA1":
+				return SHA1;
+			case "MIX":
+				return MIX;
+			default:
+				throw new IllegalArgumentException("unknown hasher " + name);
+		}
+	}
+
+	/*
+	 * Sha1
+	 * SHA1 digest of the key's decimal string. Up to 31 bits, ids come from
+	 * its first five bytes as the node has always placed keys; wider rings
+	 * use its first eight. Digests and buffers are kept per thread,
+	 * and a long is written as digits straight into a reused buffer, so
+	 * hashing a key allocates nothing.
+	 */
+	static class Sha1 implements Hasher {
+		private static final int DIGEST_LENGTH = 20;
+		private static final int MAX_DIGITS = 20;
+		private static final int LEGACY_BITS = 31;
+
+		private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+		/*
+		 * State
+		 * Per-thread digest and buffers.
+		 */
+		private static class State {
+			final MessageDigest digest;
+			final byte[] in;
+			final byte[] out;
+
+			/* State constructor. */
+			State() {
+				try {
+					digest = MessageDigest.getInstance("SHA1");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException("SHA1 not found", e);
+				}
+				in = new byte[MAX_DIGITS];
+				out = new byte[DIGEST_LENGTH];
+			}
+
+			/* Return identifier from digest of in[from, MAX_DIGITS). */
+			long finish(int from) {
+				digest.update(in, from, MAX_DIGITS - from);
+				return fold();
+			}
+
+			/* Digest pending input into out and fold its first five bytes. */
+			long fold() {
+				try {
+					digest.digest(out, 0, DIGEST_LENGTH);
+				} catch (DigestException e) {
+					throw new IllegalStateException(e);
+				}
+				if (AbstractNode.M <= LEGACY_BITS) {
+					// bytes are sign-extended, as in the original placement
+					return Math.abs((long) out[0] +
+							((long) out[1] << 8) +
+							((long) out[2] << 16) +
+							((long) out[3] << 24) +
+							((long) out[4] << 32)) & AbstractNode.MASK;
+				}
+
+				// wider rings take the top M bits of the first eight bytes
+				long h = 0;
+				for (int i = 0; i < 8; ++i) {
+					h = (h << 8) | (out[i] & 0xff);
+				}
+				return h >>> (64 - AbstractNode.M);
+			}
+		}
+
+		@Override
+		/* Hash decimal digits of key, written backwards into the buffer. */
+		public long hash(long key) {
+			State s = state.get();
+			byte[] in = s.in;
+			int pos = MAX_DIGITS;
+			long x = key;
+			do {
+				// digit by digit, so that Long.MIN_VALUE needs no special case
+				in[--pos] = (byte) ('0' + Math.abs(x % 10));
+				x /= 10;
+			} while (x != 0);
+			if (key < 0) {
+				in[--pos] = '-';
+			}
+			return s.finish(pos);
+		}
+
+		@Override
+		/* Hash UTF-8 bytes of s. */
+		public long hash(String s) {
+			State st = state.get();
+			st.digest.update(s.getBytes(Utils.CHARSET));
+			return st.fold();
+		}
+	}
+
+	/*
+	 * Mix
+	 * 64-bit finalizer of SplitMix64 over the key, keeping the top M bits.
+	 * Every input bit affects every output bit, so consecutive keys spread
+	 * evenly around the ring.
+	 */
+	static class Mix implements Hasher {
+		private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+		private static final long FNV_PRIME = 0x100000001b3L;
+
+		/* Scramble all 64 bits of x. */
+		private static long mix(long x) {
+			x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+			x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+			return x ^ (x >>> 31);
+		}
+
+		@Override
+		/* Return top M bits of the mixed key. */
+		public long hash(long key) {
+			return mix(key) >>> (64 - AbstractNode.M);
+		}
+
+		@Override
+		/* Fold chars of s with FNV-1a, then mix. */
+		public long hash(String s) {
+			long h = FNV_OFFSET;
+			for (int i = 0; i < s.length(); ++i) {
+				h = (h ^ s.charAt(i)) * FNV_PRIME;
+			}
+			return mix(h) >>> (64 - AbstractNode.M);
+		}
+	}
+}
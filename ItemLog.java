@@ -0,0 +1,535 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/*
+ * ItemLog
+ * Optional durability for a node's items: an append-only write-ahead log of
+ * every change plus periodic binary snapshots, both kept in one directory.
+ *
+ * Files are numbered by generation. snap-G holds the items as of some moment
+ * after wal-G was started, and wal-G, wal-G+1, ... hold every change made
+ * since wal-G was started. Recovery maps the newest snapshot and replays the
+ * logs from its generation on; replaying a change the snapshot already holds
+ * is harmless because records set or remove a key rather than adjust it.
+ *
+ * Every change goes through this class, which applies it to the map and
+ * appends it to the log under the same stripe lock, so the log order for a
+ * key matches the order the map saw. The caller then waits for the record
+ * to be durable as the SyncPolicy requires. Every lock here is a Lock rather
+ * than a monitor, since a virtual thread that blocks on file I/O or waits
+ * for a group commit inside a monitor pins its carrier thread.
+ */
+public class ItemLog implements Closeable {
+	/*
+	 * SyncPolicy
+	 * When a change counts as durable. PER_WRITE forces the log before every
+	 * change returns. BATCHED makes writers wait for a background group commit
+	 * that forces once for everything pending. INTERVAL returns immediately
+	 * and forces every SYNC_INTERVAL milliseconds.
+	 */
+	public enum SyncPolicy { PER_WRITE, BATCHED, INTERVAL }
+
+	public static final long SYNC_INTERVAL = 100;
+	public static final long CHECKPOINT_BYTES = 64L << 20;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte CLEAR = 3;
+	private static final int RECORD_SIZE = 1 + 8 + 8 + 4;
+	private static final long SNAPSHOT_MAGIC = 0x43484f5244534e50L;
+	private static final int STRIPES = 64;
+	private static final long SNAPSHOT_WINDOW = 1L << 30;
+	private static final long WAL_WINDOW = (long) RECORD_SIZE << 24;
+
+	private final File dir;
+	private final SyncPolicy policy;
+	private final ReadWriteLock rotation;
+	private final Lock[] stripes;
+	private final Lock flushLock;
+	// guards pending, spare, the sequence numbers and walBytes
+	private final Lock state;
+	// signalled when durableSeq moves, and to wake the writer
+	private final Condition durable;
+	private final Condition work;
+	private final CRC32 crc;
+	private final Thread writer;
+
+	private ByteBuffer pending;
+	private ByteBuffer spare;
+	private FileChannel wal;
+	private long generation;
+	private long walBytes;
+	private long appendedSeq;
+	private long durableSeq;
+	private volatile boolean closed;
+
+	/* Open log in dir, recovering any items already there into map. */
+	public ItemLog(File dir, SyncPolicy policy, LongLongMap map) throws IOException {
+		this.dir = dir;
+		this.policy = policy;
+		rotation = new ReentrantReadWriteLock();
+		stripes = new Lock[STRIPES];
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new ReentrantLock();
+		}
+		flushLock = new ReentrantLock();
+		state = new ReentrantLock();
+		durable = state.newCondition();
+		work = state.newCondition();
+		crc = new CRC32();
+		pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+		spare = ByteBuffer.allocate(64 * RECORD_SIZE);
+		appendedSeq = 0;
+		durableSeq = 0;
+		closed = false;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		generation = recover(map);
+
+		// start a fresh log so a torn tail never sits in front of new records
+		++generation;
+		wal = openWal(generation);
+		walBytes = 0;
+
+		writer = new Thread(this::writeLoop, "item-log-" + dir.getName());
+		writer.setDaemon(true);
+		if (policy != SyncPolicy.PER_WRITE) {
+			writer.start();
+		}
+	}
+
+	// ==============================
+  // Changes
+  // ==============================
+
+	/* Put (key, value) into map and log it. Return sequence number to sync. */
+	public long put(LongLongMap map, long key, long value) {
+		rotation.readLock().lock();
+		Lock stripe = stripe(key);
+		stripe.lock();
+		try {
+			map.put(key, value);
+			return append(PUT, key, value);
+		} finally {
+			stripe.unlock();
+			rotation.readLock().unlock();
+		}
+	}
+
+	/* Put every item into map and log them. Return sequence number to sync. */
+	public long putAll(LongLongMap map, LongLongMap items) {
+		long[] seq = new long[1];
+		items.forEach((key, value) -> seq[0] = put(map, key, value));
+		return seq[0];
+	}
+
+	/* Remove key from map and log it. Return sequence number to sync. */
+	public long remove(LongLongMap map, long key) {
+		rotation.readLock().lock();
+		Lock stripe = stripe(key);
+		stripe.lock();
+		try {
+			map.remove(key);
+			return append(REMOVE, key, 0);
+		} finally {
+			stripe.unlock();
+			rotation.readLock().unlock();
+		}
+	}
+
+	/* Remove every key of items from map and log it. Return sequence to sync. */
+	public long removeAll(LongLongMap map, LongLongMap items) {
+		long[] seq = new long[1];
+		items.forEach((key, value) -> seq[0] = remove(map, key));
+		return seq[0];
+	}
+
+	/* Clear map and log it. Return sequence number to sync. */
+	public long clear(LongLongMap map) {
+		// exclusive, so no change on any stripe can straddle the clear
+		rotation.writeLock().lock();
+		try {
+			map.clear();
+			return append(CLEAR, 0, 0);
+		} finally {
+			rotation.writeLock().unlock();
+		}
+	}
+
+	/* Wait until change seq is durable as the policy requires. */
+	public void sync(long seq) {
+		switch (policy) {
+			case PER_WRITE:
+				flush(seq);
+				break;
+			case BATCHED:
+				state.lock();
+				try {
+					work.signal();
+					while (durableSeq < seq && !closed) {
+						durable.await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					state.unlock();
+				}
+				break;
+			default:
+				// INTERVAL: the writer forces the log in the background
+		}
+	}
+
+	/* Return whether the log has grown enough to be worth a checkpoint. */
+	public boolean shouldCheckpoint() {
+		state.lock();
+		try {
+			return walBytes + pending.position() >= CHECKPOINT_BYTES;
+		} finally {
+			state.unlock();
+		}
+	}
+
+	/*
+	 * Write a snapshot of map and drop the files it makes redundant. Changes
+	 * keep flowing while the snapshot is written; they land in the new log.
+	 */
+	public void checkpoint(LongLongMap map) throws IOException {
+		long gen;
+
+		// switch to a new log with no change in flight
+		rotation.writeLock().lock();
+		try {
+			flush(Long.MAX_VALUE);
+			flushLock.lock();
+			try {
+				wal.close();
+				gen = ++generation;
+				wal = openWal(gen);
+				state.lock();
+				try {
+					walBytes = 0;
+				} finally {
+					state.unlock();
+				}
+			} finally {
+				flushLock.unlock();
+			}
+		} finally {
+			rotation.writeLock().unlock();
+		}
+
+		writeSnapshot(map, gen);
+
+		// older snapshots and logs are now covered by snap-gen and wal-gen
+		for (File f : listFiles()) {
+			long g = generationOf(f);
+			if (g >= 0 && g < gen) {
+				f.delete();
+			}
+		}
+	}
+
+	@Override
+	/* Flush outstanding changes and close the log. */
+	public void close() throws IOException {
+		flush(Long.MAX_VALUE);
+		closed = true;
+		state.lock();
+		try {
+			work.signalAll();
+			durable.signalAll();
+		} finally {
+			state.unlock();
+		}
+		if (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {}
+		}
+		flushLock.lock();
+		try {
+			wal.close();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	// ==============================
+  // Log Writing
+  // ==============================
+
+	/* Return lock stripe for key. */
+	private Lock stripe(long key) {
+		return stripes[(int) (key ^ (key >>> 32)) & (STRIPES - 1)];
+	}
+
+	/* Append record to the pending buffer. Return its sequence number. */
+	private long append(byte op, long key, long value) {
+		state.lock();
+		try {
+			if (pending.remaining() < RECORD_SIZE) {
+				ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				bigger.put(pending);
+				pending = bigger;
+			}
+			int start = pending.position();
+			pending.put(op).putLong(key).putLong(value);
+			crc.reset();
+			crc.update(pending.array(), start, RECORD_SIZE - 4);
+			pending.putInt((int) crc.getValue());
+			return ++appendedSeq;
+		} finally {
+			state.unlock();
+		}
+	}
+
+	/* Write and force pending records if change seq is not yet durable. */
+	private void flush(long seq) {
+		flushLock.lock();
+		try {
+			ByteBuffer buf;
+			long upTo;
+			state.lock();
+			try {
+				if (durableSeq >= Math.min(seq, appendedSeq)) {
+					return;
+				}
+				buf = pending;
+				pending = spare;
+				spare = buf;
+				upTo = appendedSeq;
+			} finally {
+				state.unlock();
+			}
+
+			// written outside state, so writers keep appending meanwhile
+			int n;
+			try {
+				buf.flip();
+				n = buf.remaining();
+				while (buf.hasRemaining()) {
+					wal.write(buf);
+				}
+				wal.force(false);
+			} catch (IOException e) {
+				// a log that cannot be written is not durable; fail loudly
+				throw new UncheckedIOException(e);
+			} finally {
+				buf.clear();
+			}
+
+			state.lock();
+			try {
+				walBytes += n;
+				durableSeq = upTo;
+				durable.signalAll();
+			} finally {
+				state.unlock();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/* Background group commit for BATCHED and INTERVAL. */
+	private void writeLoop() {
+		while (!closed) {
+			state.lock();
+			try {
+				if (policy == SyncPolicy.INTERVAL || appendedSeq == durableSeq) {
+					work.await(SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				state.unlock();
+			}
+			try {
+				flush(Long.MAX_VALUE);
+			} catch (UncheckedIOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/* Open log file for generation gen. */
+	private FileChannel openWal(long gen) throws IOException {
+		return FileChannel.open(new File(dir, "wal-" + gen).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	// ==============================
+  // Snapshots and Recovery
+  // ==============================
+
+	/* Write map to snap-gen, atomically replacing any partial attempt. */
+	private void writeSnapshot(LongLongMap map, long gen) throws IOException {
+		File tmp = new File(dir, "snap-" + gen + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream dos = new DataOutputStream(
+						new BufferedOutputStream(fos, 1 << 16))) {
+			// the count is patched in once the entries are written
+			dos.writeLong(SNAPSHOT_MAGIC);
+			dos.writeLong(0);
+			long[] count = new long[1];
+			map.forEach((key, value) -> {
+				try {
+					dos.writeLong(key);
+					dos.writeLong(value);
+					++count[0];
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			dos.flush();
+			fos.getChannel().write(longBuffer(count[0]), 8);
+			fos.getChannel().force(true);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Files.move(tmp.toPath(), new File(dir, "snap-" + gen).toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/* Load newest snapshot and replay later logs into map. Return generation. */
+	private long recover(LongLongMap map) throws IOException {
+		long snapGen = 0;
+		long maxGen = 0;
+		for (File f : listFiles()) {
+			long g = generationOf(f);
+			if (g < 0) {
+				if (f.getName().endsWith(".tmp")) {
+					f.delete();
+				}
+				continue;
+			}
+			maxGen = Math.max(maxGen, g);
+			if (f.getName().startsWith("snap-") && g > snapGen) {
+				snapGen = g;
+			}
+		}
+
+		long items = 0;
+		if (snapGen > 0) {
+			items = loadSnapshot(new File(dir, "snap-" + snapGen), map);
+		}
+		long records = 0;
+		for (long g = Math.max(snapGen, 1); g <= maxGen; ++g) {
+			records += replay(new File(dir, "wal-" + g), map);
+		}
+		if (snapGen > 0 || records > 0) {
+			Debug.DEBUG("RECOVERED: " + items + " items from snapshot, " +
+					records + " log records from " + dir);
+		}
+		return maxGen;
+	}
+
+	/* Load snapshot file into map through a memory mapping. Return item count. */
+	private static long loadSnapshot(File f, LongLongMap map) throws IOException {
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(size, 16));
+			if (size < 16 || header.getLong() != SNAPSHOT_MAGIC) {
+				throw new IOException("corrupt snapshot " + f);
+			}
+			long count = header.getLong();
+			if (size - 16 != count * 16) {
+				throw new IOException("truncated snapshot " + f);
+			}
+
+			// map in windows, since one mapping is limited to 2 GB
+			for (long pos = 16; pos < size; pos += SNAPSHOT_WINDOW) {
+				LongBuffer entries = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(size - pos, SNAPSHOT_WINDOW)).asLongBuffer();
+				while (entries.hasRemaining()) {
+					map.put(entries.get(), entries.get());
+				}
+			}
+			return count;
+		}
+	}
+
+	/* Replay log file into map, stopping at a torn record. Return records. */
+	private static long replay(File f, LongLongMap map) throws IOException {
+		if (!f.exists()) {
+			return 0;
+		}
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size() - ch.size() % RECORD_SIZE;
+			CRC32 crc = new CRC32();
+			byte[] record = new byte[RECORD_SIZE - 4];
+			ByteBuffer r = ByteBuffer.wrap(record);
+			long n = 0;
+
+			for (long pos = 0; pos < size; pos += WAL_WINDOW) {
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(size - pos, WAL_WINDOW));
+				while (buf.hasRemaining()) {
+					buf.get(record);
+					crc.reset();
+					crc.update(record, 0, record.length);
+					if ((int) crc.getValue() != buf.getInt()) {
+						System.err.println("ERROR: torn record in " + f + ", ignoring rest");
+						return n;
+					}
+
+					r.clear();
+					byte op = r.get();
+					long key = r.getLong();
+					long value = r.getLong();
+					if (op == PUT) {
+						map.put(key, value);
+					} else if (op == REMOVE) {
+						map.remove(key);
+					} else if (op == CLEAR) {
+						map.clear();
+					}
+					++n;
+				}
+			}
+			if (size != ch.size()) {
+				System.err.println("ERROR: torn record in " + f + ", ignoring rest");
+			}
+			return n;
+		}
+	}
+
+	/* Return files in dir. */
+	private File[] listFiles() {
+		File[] files = dir.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	/* Return generation of a snap- or wal- file, or -1 for anything else. */
+	private static long generationOf(File f) {
+		String name = f.getName();
+		int dash = name.indexOf('-');
+		if (dash < 0 || !(name.startsWith("snap-") || name.startsWith("wal-"))) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(dash + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/* Return buffer holding a single long. */
+	private static ByteBuffer longBuffer(long x) {
+		ByteBuffer b = ByteBuffer.allocate(8);
+		b.putLong(0, x);
+		return b;
+	}
+}
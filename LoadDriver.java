@@ -0,0 +1,482 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * LoadDriver
+ * Load generator for a ring. It starts nodes in this process, attaches to
+ * running ones, or both, and runs clients that send GET and PUT requests in
+ * the text protocol to entry nodes picked at random. Keys are drawn
+ * uniformly or from a Zipf distribution.
+ *
+ * Clients either send their next request as soon as the last one is
+ * answered (closed loop), or together keep to a target rate. At a target
+ * rate, latency counts from when a request was due, so a ring that stalls
+ * shows up in the percentiles rather than as fewer requests. With churn,
+ * nodes started here join and leave during the run. Throughput and latency
+ * percentiles are printed every report seconds and for the whole run.
+ *
+ * Run `java -cp chord.jar NodeProgram load [name=value...]`, e.g. nodes=8
+ * clients=32 reads=95 zipf=0.99 churn=10. See DEFAULTS for the settings.
+ */
+public class LoadDriver {
+	// settings; times in seconds, rate in requests per second or 0 for closed
+	// loop, reads in percent, zipf the exponent or 0 for uniform keys, and
+	// attach a comma-separated list of host:port of nodes already running
+	private static final String[][] DEFAULTS = {
+			{ "nodes", "4" },
+			{ "port", "8001" },
+			{ "attach", "" },
+			{ "seconds", "30" },
+			{ "clients", "16" },
+			{ "rate", "0" },
+			{ "reads", "90" },
+			{ "keys", "100000" },
+			{ "zipf", "0" },
+			{ "churn", "0" },
+			{ "report", "1" },
+			{ "seed", "1" }
+	};
+
+	private static final int SETTLE_DELAY = 1000;
+	private static final int TIMEOUT = 5000;
+
+	/*
+	 * Zipf
+	 * Key ranks 0 to n - 1, drawn with probability proportional to
+	 * 1 / (rank + 1)^s by binary search in the cumulative distribution.
+	 */
+	private static class Zipf {
+		private final double[] cdf;
+
+		/* Zipf constructor. */
+		Zipf(int n, double s) {
+			cdf = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; ++i) {
+				sum += 1 / Math.pow(i + 1, s);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < n; ++i) {
+				cdf[i] /= sum;
+			}
+		}
+
+		/* Return next rank. */
+		int next(Random random) {
+			int i = Arrays.binarySearch(cdf, random.nextDouble());
+			return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+		}
+	}
+
+	/*
+	 * Conn
+	 * Connection from a client to an entry node.
+	 */
+	private static class Conn {
+		final Socket socket;
+		final DataOutputStream out;
+		final BufferedReader in;
+
+		/* Conn constructor. */
+		Conn(InetSocketAddress ep) throws IOException {
+			socket = new Socket();
+			socket.connect(ep, TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+			socket.setTcpNoDelay(true);
+			out = Utils.getOutputStream(socket);
+			in = Utils.getInputStream(socket);
+		}
+
+		/* Close connection, ignoring errors. */
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/*
+	 * Started
+	 * Node started by this driver, and its thread.
+	 */
+	private static class Started {
+		final InetSocketAddress ep;
+		final Thread thread;
+
+		/* Started constructor. */
+		Started(InetSocketAddress ep, Thread thread) {
+			this.ep = ep;
+			this.thread = thread;
+		}
+	}
+
+	/*
+	 * Client
+	 * Sends one request at a time to random entry nodes, keeping a connection
+	 * to each one it has used.
+	 */
+	private class Client implements Runnable {
+		private final Random random;
+		private final Map<InetSocketAddress, Conn> conns;
+		// ns between requests, or 0 for closed loop
+		private final long interval;
+
+		/* Client constructor. */
+		Client(long seed, long interval) {
+			random = new Random(seed);
+			conns = new HashMap<InetSocketAddress, Conn>();
+			this.interval = interval;
+		}
+
+		@Override
+		/* Run method. */
+		public void run() {
+			// spread the clients' first requests over one interval
+			long due = System.nanoTime() + (long) (random.nextDouble() * interval);
+			while (running) {
+				long start = System.nanoTime();
+				if (interval > 0) {
+					while (running && start < due) {
+						LockSupport.parkNanos(due - start);
+						start = System.nanoTime();
+					}
+					if (!running) {
+						break;
+					}
+					start = due;
+					due += interval;
+				}
+				request(start);
+			}
+			for (Conn c : conns.values()) {
+				c.close();
+			}
+		}
+
+		/* Send one request and record it as started at start. */
+		private void request(long start) {
+			InetSocketAddress entry;
+			try {
+				entry = entries.get(random.nextInt(entries.size()));
+			} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+				// no entry node left
+				errors.increment();
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				return;
+			}
+			long key = zipf != null ? zipf.next(random) : random.nextInt(keys);
+			boolean read = random.nextInt(100) < reads;
+			String msg = read ? String.format("%s %d\r\n", Node.GET, key) :
+					String.format("%s %d %d\r\n", Node.PUT, key, random.nextInt());
+
+			String response = null;
+			Conn c = conns.get(entry);
+			try {
+				if (c == null) {
+					c = new Conn(entry);
+					conns.put(entry, c);
+				}
+				c.out.writeBytes(msg);
+				c.out.flush();
+				response = c.in.readLine();
+			} catch (IOException e) {
+			}
+			long ns = System.nanoTime() - start;
+
+			if (response == null) {
+				errors.increment();
+				if (c != null) {
+					c.close();
+					conns.remove(entry);
+				}
+				return;
+			}
+			if (response.startsWith("ERROR")) {
+				// the node answered but could not reach the key's owner
+				errors.increment();
+				return;
+			}
+			current.get().record(ns);
+			total.record(ns);
+			if (read) {
+				gets.record(ns);
+				if (!response.equals("null")) {
+					found.increment();
+				}
+			} else {
+				puts.record(ns);
+			}
+		}
+	}
+
+	private Map<String, String> settings;
+	private String host;
+	private List<InetSocketAddress> entries;
+	private Deque<Started> started;
+	private int nextPort;
+	private boolean joinNext;
+	private int joins;
+	private int leaves;
+
+	private Zipf zipf;
+	private int keys;
+	private int reads;
+	private volatile boolean running;
+
+	private AtomicReference<Metrics.Histogram> current;
+	private Metrics.Histogram total;
+	private Metrics.Histogram gets;
+	private Metrics.Histogram puts;
+	private LongAdder found;
+	private LongAdder errors;
+
+	/* LoadDriver constructor with settings overriding DEFAULTS. */
+	public LoadDriver(Map<String, String> overrides) throws UnknownHostException {
+		settings = new HashMap<String, String>();
+		for (String[] d : DEFAULTS) {
+			settings.put(d[0], d[1]);
+		}
+		for (Map.Entry<String, String> e : overrides.entrySet()) {
+			if (!settings.containsKey(e.getKey())) {
+				throw new IllegalArgumentException("unknown setting: " + e.getKey());
+			}
+			settings.put(e.getKey(), e.getValue());
+		}
+
+		host = InetAddress.getLocalHost().getHostAddress();
+		entries = new CopyOnWriteArrayList<InetSocketAddress>();
+		started = new ArrayDeque<Started>();
+		nextPort = (int) setting("port");
+		joinNext = true;
+
+		keys = (int) setting("keys");
+		reads = (int) setting("reads");
+		double s = Double.parseDouble(settings.get("zipf"));
+		zipf = s > 0 ? new Zipf(keys, s) : null;
+
+		current = new AtomicReference<Metrics.Histogram>(new Metrics.Histogram());
+		total = new Metrics.Histogram();
+		gets = new Metrics.Histogram();
+		puts = new Metrics.Histogram();
+		found = new LongAdder();
+		errors = new LongAdder();
+	}
+
+	/* Return numeric setting name. */
+	private long setting(String name) {
+		return Long.parseLong(settings.get(name));
+	}
+
+	// ==============================
+  // Ring Functions
+  // ==============================
+
+	/* Send request line to the node at ep and return its answer. */
+	private static String command(InetSocketAddress ep, String line)
+			throws IOException {
+		try (Socket s = new Socket()) {
+			s.connect(ep, TIMEOUT);
+			DataOutputStream out = Utils.getOutputStream(s);
+			out.writeBytes(line + "\r\n");
+			out.flush();
+			return Utils.getInputStream(s).readLine();
+		}
+	}
+
+	/*
+	 * Start a node on the next port and have it join the ring through via,
+	 * or create one if via is null. Return whether it did.
+	 */
+	private boolean startNode(InetSocketAddress via) {
+		int port = nextPort++;
+		InetSocketAddress ep = new InetSocketAddress(host, port);
+		Thread thread = null;
+		try {
+			Node n = NodeProgram.newNode(host, port, NodeProgram.VNODES);
+			thread = new Thread(n);
+			thread.start();
+
+			String line = via == null ? Node.CREATE : String.format("%s %s %d",
+					Node.JOIN, via.getHostString(), via.getPort());
+			if (Node.OK.equals(command(ep, line))) {
+				started.add(new Started(ep, thread));
+				entries.add(ep);
+				return true;
+			}
+			System.err.println("ERROR: node on port " + port + " did not start");
+		} catch (IOException e) {
+			System.err.println("ERROR: could not start node on port " + port +
+					": " + e.getMessage());
+		}
+
+		// a node left running would keep the JVM alive after the run
+		if (thread != null) {
+			stopNode(new Started(ep, thread));
+		}
+		return false;
+	}
+
+	/* Tell node to leave, without sending it more requests, and wait for it. */
+	private void stopNode(Started node) {
+		entries.remove(node.ep);
+		try {
+			command(node.ep, Node.LEAVE);
+			node.thread.join();
+		} catch (IOException e) {
+			System.err.println("ERROR: could not stop node " + node.ep);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Start a node, or stop the oldest one started here, in turn. A ring
+	 * is never left without entry nodes.
+	 */
+	private void churn() {
+		try {
+			if (joinNext) {
+				InetSocketAddress via = entries.get(0);
+				if (startNode(via)) {
+					++joins;
+				}
+			} else if (!started.isEmpty() && entries.size() > 1) {
+				stopNode(started.poll());
+				++leaves;
+			}
+			joinNext = !joinNext;
+		} catch (RuntimeException e) {
+			// keep the schedule alive; the next turn retries
+			e.printStackTrace();
+		}
+	}
+
+	// ==============================
+  // Load Functions
+  // ==============================
+
+	/* Set up the ring, run the workload for the set time and report. */
+	public void run() throws InterruptedException {
+		for (String attach : settings.get("attach").split(",")) {
+			if (!attach.isEmpty()) {
+				String[] hp = attach.split(":");
+				entries.add(new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+			}
+		}
+		for (int i = 0; i < setting("nodes"); ++i) {
+			startNode(entries.isEmpty() ? null : entries.get(0));
+		}
+		if (entries.isEmpty()) {
+			System.err.println("ERROR: no nodes to send requests to");
+			return;
+		}
+		// let the ring stabilize before measuring it
+		Thread.sleep(SETTLE_DELAY);
+
+		int clients = (int) setting("clients");
+		long rate = setting("rate");
+		long interval = rate > 0 ? clients * 1000000000L / rate : 0;
+		running = true;
+		Random seeds = new Random(setting("seed"));
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; ++i) {
+			Thread t = new Thread(new Client(seeds.nextLong(), interval), "load-" + i);
+			threads.add(t);
+			t.start();
+		}
+
+		ScheduledExecutorService churner = Executors.newSingleThreadScheduledExecutor();
+		long churn = setting("churn");
+		if (churn > 0) {
+			churner.scheduleWithFixedDelay(() -> churn(), churn, churn, TimeUnit.SECONDS);
+		}
+
+		System.out.println("  time  nodes      ops/s   p50 ms   p90 ms   p99 ms" +
+				"   max ms  errors");
+		long report = setting("report") * 1000;
+		long seconds = setting("seconds");
+		long begin = System.currentTimeMillis();
+		long end = begin + seconds * 1000;
+		long lastErrors = 0;
+		for (long next = begin + report; next <= end; next += report) {
+			Thread.sleep(Math.max(0, next - System.currentTimeMillis()));
+			Metrics.Histogram h = current.getAndSet(new Metrics.Histogram());
+			long e = errors.sum();
+			System.out.printf(Locale.ROOT, "%6d %6d %10.0f %8.2f %8.2f %8.2f %8.2f %7d%n",
+					(next - begin) / 1000, entries.size(), h.count() * 1000.0 / report,
+					ms(h.percentile(50)), ms(h.percentile(90)), ms(h.percentile(99)),
+					ms(h.max()), e - lastErrors);
+			lastErrors = e;
+		}
+
+		running = false;
+		for (Thread t : threads) {
+			t.join();
+		}
+		churner.shutdown();
+		churner.awaitTermination(1, TimeUnit.MINUTES);
+		report(seconds);
+
+		// one at a time, so the nodes do not hand items to each other at once
+		Started node;
+		while ((node = started.poll()) != null) {
+			stopNode(node);
+		}
+	}
+
+	/* Print totals of the run. */
+	private void report(long seconds) {
+		System.out.printf(Locale.ROOT, "total      %d requests in %d s, %.0f/s, " +
+				"%d errors%n", total.count(), seconds, (double) total.count() / seconds,
+				errors.sum());
+		System.out.printf(Locale.ROOT, "gets       %d, %.1f%% found%n", gets.count(),
+				gets.count() == 0 ? 0.0 : 100.0 * found.sum() / gets.count());
+		System.out.printf(Locale.ROOT, "puts       %d%n", puts.count());
+		System.out.printf(Locale.ROOT, "latency    p50 %.2f ms, p90 %.2f ms, " +
+				"p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n", ms(total.percentile(50)),
+				ms(total.percentile(90)), ms(total.percentile(99)),
+				ms(total.percentile(99.9)), ms(total.max()));
+		if (setting("churn") > 0) {
+			System.out.println("churn      " + joins + " joined, " + leaves + " left");
+		}
+	}
+
+	/* Return ns in milliseconds. */
+	private static double ms(long ns) {
+		return ns / 1e6;
+	}
+
+	/* Return number of requests answered. */
+	public long getRequests() {
+		return total.count();
+	}
+
+	/* Return number of requests that got no answer. */
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/* Main method. */
+	public static void main(String args[]) throws Exception {
+		// debug lines would drown the report; -Dchord.debug=true brings them back
+		if (System.getProperty("chord.debug") == null) {
+			System.setProperty("chord.debug", "false");
+		}
+
+		Map<String, String> overrides = new HashMap<String, String>();
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2) {
+				System.err.println("ERROR: expected name=value: " + arg);
+				return;
+			}
+			overrides.put(kv[0], kv[1]);
+		}
+		new LoadDriver(overrides).run();
+	}
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class LocalNode extends AbstractNode {
@@ -42,15 +43,50 @@ public class LocalNode extends AbstractNode {
 	}
 
 	@Override
-	void giveItems(Endpoint ep, Map<Long, Long> items) {
-		for (Map.Entry<Long, Long> e : items.entrySet()) {
-			giveItem(ep, e.getKey(), e.getValue());
+	Endpoint[] getSuccessorList(Endpoint ep) {
+		LocalNode n = nodeMap.get(ep.port);
+		return n == null ? null : n.getSuccessorList();
+	}
+
+	@Override
+	Endpoint[] getFingerTable(Endpoint ep) {
+		LocalNode n = nodeMap.get(ep.port);
+		return n == null ? null : n.getFingerTable();
+	}
+
+	@Override
+	boolean giveItems(Endpoint ep, LongLongMap items) {
+		nodeMap.get(ep.port).storeItems(items);
+		return true;
+	}
+
+	@Override
+	byte[] getOwnedBlob(Endpoint ep, long key) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
 		}
+		return n.myBlobs.get(key);
+	}
+
+	@Override
+	void giveOwnedBlob(Endpoint ep, long key, byte[] value) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		n.storeBlob(key, ByteBuffer.wrap(value));
+	}
+
+	@Override
+	boolean giveBlobs(Endpoint ep, BlobStore blobs, long[] keys) {
+		nodeMap.get(ep.port).storeBlobs(blobs, keys);
+		return true;
 	}
 	
 	@Override
 	void giveItem(Endpoint ep, long key, long value) {
-		nodeMap.get(ep.port).myItems.put(key, value);
+		nodeMap.get(ep.port).storeItem(key, value);
 	}
 	
 	@Override
@@ -58,6 +94,102 @@ public class LocalNode extends AbstractNode {
 		return nodeMap.get(ep.port).myItems.get(key);
 	}
 
+	@Override
+	Long getOwnedItem(Endpoint ep, long key) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		return n.myItems.get(key);
+	}
+
+	@Override
+	NearCache.Lease getLeasedItem(Endpoint ep, long key) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		NearCache.Lease lease = n == null ? null : n.leasedItem(key);
+		if (lease == null) {
+			throw new StaleRouteException(ep);
+		}
+		return lease;
+	}
+
+	@Override
+	void giveOwnedItem(Endpoint ep, long key, long value) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		n.storeItem(key, value);
+	}
+
+	@Override
+	Long[] getOwnedItems(Endpoint ep, long[] keys) throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		Long[] values = n == null ? null : n.ownedItems(keys);
+		if (values == null) {
+			throw new StaleRouteException(ep);
+		}
+		return values;
+	}
+
+	@Override
+	void giveOwnedItems(Endpoint ep, long[] keys, long[] values)
+			throws StaleRouteException {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null || !n.storeOwnedItems(keys, values)) {
+			throw new StaleRouteException(ep);
+		}
+	}
+
+	@Override
+	boolean giveReplicas(Endpoint ep, LongLongMap items) {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n == null) {
+			return false;
+		}
+		n.storeReplicas(myEp, items);
+		return true;
+	}
+
+	@Override
+	void dropReplicas(Endpoint ep) {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n != null) {
+			n.removeReplicas(myEp);
+		}
+	}
+
+	@Override
+	Long getReplica(Endpoint ep, Endpoint owner, long key) {
+		LocalNode n = nodeMap.get(ep.port);
+		return n == null ? null : n.replicaItem(owner, key);
+	}
+
+	@Override
+	void forwardLookup(Endpoint ep, long id, Endpoint origin, long lookupId,
+			int hops) {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n != null) {
+			n.routeLookup(id, origin, lookupId, hops);
+		}
+	}
+
+	@Override
+	void lookupDone(Endpoint origin, long lookupId, Endpoint pred, Endpoint succ) {
+		LocalNode n = nodeMap.get(origin.port);
+		if (n != null) {
+			n.completeLookup(lookupId, pred, succ);
+		}
+	}
+
+	@Override
+	void leaving(Endpoint ep, Endpoint pred) {
+		LocalNode n = nodeMap.get(ep.port);
+		if (n != null) {
+			n.processLeave(myEp, pred);
+		}
+	}
+
 	@Override
 	void notify(Endpoint ep) {
 		nodeMap.get(ep.port).processNotification(myEp);
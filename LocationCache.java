@@ -0,0 +1,153 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * LocationCache
+ * Bounded cache from identifier ranges to the node that owns them, so that a
+ * get or put for a recently resolved range can go straight to its owner. A
+ * range (start, owner.key] is learned whenever a lookup or a GET_PRED or
+ * GET_SUCC response shows two adjacent nodes, and it is dropped when the
+ * owner rejects a key or cannot be reached. Least recently used ranges are
+ * evicted first.
+ */
+public class LocationCache {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final int capacity;
+	private final TreeMap<Long, Range> byEnd;
+	private final LinkedHashMap<Long, Range> lru;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder staleHits;
+
+	/*
+	 * Range
+	 * Identifiers in (start, owner.key] on the circle, owned by owner.
+	 */
+	private static class Range {
+		final long start;
+		final Endpoint owner;
+
+		/* Range constructor. */
+		Range(long start, Endpoint owner) {
+			this.start = start;
+			this.owner = owner;
+		}
+
+		/* Return whether id falls in this range. */
+		boolean contains(long id) {
+			long span = AbstractNode.distance(start, owner.key);
+			long offset = AbstractNode.distance(start, id);
+			return span == 0 || (offset != 0 && Long.compareUnsigned(offset, span) <= 0);
+		}
+	}
+
+	/* LocationCache constructor with default capacity. */
+	public LocationCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/* LocationCache constructor. */
+	public LocationCache(int capacity) {
+		this.capacity = capacity;
+		byEnd = new TreeMap<Long, Range>();
+		lru = new LinkedHashMap<Long, Range>(16, 0.75f, true);
+		hits = new LongAdder();
+		misses = new LongAdder();
+		staleHits = new LongAdder();
+	}
+
+	/* Return id as a key whose signed order is the ids' unsigned order. */
+	private static long order(long id) {
+		return id ^ Long.MIN_VALUE;
+	}
+
+	/* Return cached owner of id, or null on a miss. */
+	public synchronized Endpoint lookup(long id) {
+		Map.Entry<Long, Range> e = byEnd.ceilingEntry(order(id));
+		if (e == null) {
+			e = byEnd.firstEntry();
+		}
+		if (e == null || !e.getValue().contains(id)) {
+			misses.increment();
+			return null;
+		}
+		lru.get(e.getKey());
+		hits.increment();
+		return e.getValue().owner;
+	}
+
+	/* Learn that owner owns (start, owner.key]. */
+	public synchronized void learn(long start, Endpoint owner) {
+		if (owner == null || capacity == 0) {
+			return;
+		}
+		Range r = new Range(start, owner);
+		long from = order(start);
+		long to = order(owner.key);
+
+		// drop ranges that claim an owner inside the new range
+		if (from != to) {
+			List<Long> overlapping = new ArrayList<Long>();
+			if (from < to) {
+				overlapping.addAll(byEnd.subMap(from, false, to, false).keySet());
+			} else {
+				overlapping.addAll(byEnd.tailMap(from, false).keySet());
+				overlapping.addAll(byEnd.headMap(to, false).keySet());
+			}
+			for (Long end : overlapping) {
+				byEnd.remove(end);
+				lru.remove(end);
+			}
+		}
+
+		byEnd.put(to, r);
+		lru.put(to, r);
+		if (lru.size() > capacity) {
+			Long eldest = lru.keySet().iterator().next();
+			lru.remove(eldest);
+			byEnd.remove(eldest);
+		}
+	}
+
+	/* Forget every range owned by owner after it rejected a key or failed. */
+	public synchronized void invalidate(Endpoint owner) {
+		Range r = byEnd.get(order(owner.key));
+		if (r != null && r.owner.equals(owner)) {
+			byEnd.remove(order(owner.key));
+			lru.remove(order(owner.key));
+		}
+	}
+
+	/* Record a hit whose owner turned out to be wrong, and forget it. */
+	public void stale(Endpoint owner) {
+		staleHits.increment();
+		invalidate(owner);
+	}
+
+	/* Forget everything. */
+	public synchronized void clear() {
+		byEnd.clear();
+		lru.clear();
+	}
+
+	/* Return number of cached ranges. */
+	public synchronized int size() {
+		return byEnd.size();
+	}
+
+	/* Return number of lookups answered from the cache. */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/* Return number of lookups the cache could not answer. */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/* Return number of hits whose owner rejected the key or was unreachable. */
+	public long staleHits() {
+		return staleHits.sum();
+	}
+}
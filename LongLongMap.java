@@ -0,0 +1,693 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * LongLongMap
+ * Concurrent map from long to long without boxing. Keys are spread over
+ * striped segments, each an open-addressing table of interleaved key/value
+ * slots with linear probing and backward-shift deletion. Writers lock their
+ * segment; readers probe optimistically and only lock if a write raced them.
+ *
+ * A map made with a Hasher also keeps its keys ordered by identifier on the
+ * ring, hashing each key once when it is inserted, so the entries of an
+ * identifier range can be visited without hashing the whole map. Each
+ * segment keeps its own index as (identifier, key) pairs in one long array:
+ * a sorted prefix, then a sorted tail, then the pairs appended since. When
+ * a range is next visited only the new pairs are sorted and merged into the
+ * tail, and the tail is merged into the prefix once it outgrows an eighth
+ * of it, so a few inserts never re-sort the whole index. Removed keys are
+ * dropped from it lazily. The index costs about 16 more bytes per entry.
+ */
+public class LongLongMap {
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int MIN_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.6f;
+	// the index's tail is merged into its prefix past 1 / TAIL_SHARE of it
+	private static final int TAIL_SHARE = 8;
+
+	// key that marks a free slot; the real key 0 is stored beside the table
+	private static final long FREE = 0;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	// identifier of a key, or null if the map keeps no index
+	private final Hasher hasher;
+
+	/*
+	 * LongLongConsumer
+	 * Receives entries during iteration.
+	 */
+	public interface LongLongConsumer {
+		void accept(long key, long value);
+	}
+
+	/* LongLongMap constructor. */
+	public LongLongMap() {
+		this(0);
+	}
+
+	/* LongLongMap constructor, sized for expected entries. */
+	public LongLongMap(int expected) {
+		this(expected, null);
+	}
+
+	/*
+	 * LongLongMap constructor, sized for expected entries, that indexes its
+	 * keys by their identifier from hasher unless hasher is null.
+	 */
+	public LongLongMap(int expected, Hasher hasher) {
+		segments = new Segment[DEFAULT_SEGMENTS];
+		segmentMask = DEFAULT_SEGMENTS - 1;
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i] = new Segment(expected / DEFAULT_SEGMENTS, hasher != null);
+		}
+		this.hasher = hasher;
+	}
+
+	/* Spread key bits so that nearby keys land in different slots. */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/* Return segment holding key with mixed hash h. */
+	private Segment segment(long h) {
+		return segments[(int) (h >>> 60) & segmentMask];
+	}
+
+	/* Return value for key, or absent if there is none. */
+	public long get(long key, long absent) {
+		long h = mix(key);
+		return segment(h).get(key, h, absent);
+	}
+
+	/* Return value for key, or null if there is none. Boxes only on a hit. */
+	public Long get(long key) {
+		long h = mix(key);
+		Segment s = segment(h);
+		long stamp = s.lock.tryOptimisticRead();
+		int idx = s.find(key, h);
+		boolean found = idx != -1;
+		long value = found ? s.valueAt(idx) : 0;
+		if (!s.lock.validate(stamp)) {
+			stamp = s.lock.readLock();
+			try {
+				idx = s.find(key, h);
+				found = idx != -1;
+				value = found ? s.valueAt(idx) : 0;
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		return found ? Long.valueOf(value) : null;
+	}
+
+	/* Return whether key is present. */
+	public boolean containsKey(long key) {
+		long h = mix(key);
+		Segment s = segment(h);
+		long stamp = s.lock.tryOptimisticRead();
+		boolean found = s.find(key, h) != -1;
+		if (!s.lock.validate(stamp)) {
+			stamp = s.lock.readLock();
+			try {
+				found = s.find(key, h) != -1;
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		return found;
+	}
+
+	/* Associate value with key. */
+	public void put(long key, long value) {
+		long h = mix(key);
+		Segment s = segment(h);
+		long stamp = s.lock.writeLock();
+		try {
+			// indexed under the lock, so the index never disagrees with the table
+			if (s.put(key, h, value) && hasher != null) {
+				s.index(hasher.hash(key), key);
+			}
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/* Remove key. Return whether it was present. */
+	public boolean remove(long key) {
+		long h = mix(key);
+		Segment s = segment(h);
+		long stamp = s.lock.writeLock();
+		try {
+			boolean removed = s.remove(key, h);
+			if (removed && hasher != null) {
+				s.unindex();
+			}
+			return removed;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/* Copy every entry of other into this map. */
+	public void putAll(LongLongMap other) {
+		other.forEach(this::put);
+	}
+
+	/* Return number of entries. */
+	public int size() {
+		int n = 0;
+		for (Segment s : segments) {
+			n += s.size;
+		}
+		return n;
+	}
+
+	/* Return whether the map is empty. */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/* Remove all entries. */
+	public void clear() {
+		for (Segment s : segments) {
+			long stamp = s.lock.writeLock();
+			try {
+				s.clear();
+			} finally {
+				s.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/*
+	 * Call action for every entry. Each segment is read-locked while it is
+	 * visited, so action must not write to this map.
+	 */
+	public void forEach(LongLongConsumer action) {
+		for (Segment s : segments) {
+			long stamp = s.lock.readLock();
+			try {
+				s.forEach(action);
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/*
+	 * Call action, in identifier order, for every entry whose key's
+	 * identifier is in (left, right] on the circle, or on the whole circle if
+	 * left equals right. The map must keep an index. Each segment is locked
+	 * only while its entries in range are copied out, so action may write to
+	 * this map; entries added or removed meanwhile may or may not be visited.
+	 */
+	public void forEachInRange(long left, long right, LongLongConsumer action) {
+		if (hasher == null) {
+			throw new IllegalStateException("map keeps no index");
+		}
+		long[][] runs = new long[segments.length][];
+		for (int i = 0; i < segments.length; ++i) {
+			Segment s = segments[i];
+			long stamp = s.lock.readLock();
+			try {
+				if (!s.indexed()) {
+					long ws = s.lock.tryConvertToWriteLock(stamp);
+					if (ws == 0) {
+						s.lock.unlockRead(stamp);
+						ws = s.lock.writeLock();
+					}
+					stamp = ws;
+					s.normalize();
+				}
+				runs[i] = s.range(left, right);
+			} finally {
+				s.lock.unlock(stamp);
+			}
+		}
+
+		// merge the runs, each already in ring order from left
+		int[] pos = new int[runs.length];
+		while (true) {
+			int next = -1;
+			for (int i = 0; i < runs.length; ++i) {
+				if (pos[i] < runs[i].length && (next == -1 ||
+						before(runs[i], pos[i], runs[next], pos[next], left))) {
+					next = i;
+				}
+			}
+			if (next == -1) {
+				return;
+			}
+			long[] run = runs[next];
+			action.accept(run[pos[next] + 1], run[pos[next] + 2]);
+			pos[next] += 3;
+		}
+	}
+
+	/*
+	 * Return whether the (identifier, key, value) entry at a[i] comes before
+	 * the one at b[j] going round the circle from just after left.
+	 */
+	private static boolean before(long[] a, int i, long[] b, int j, long left) {
+		int c = Long.compareUnsigned(a[i] - left - 1, b[j] - left - 1);
+		return c != 0 ? c < 0 : a[i + 1] < b[j + 1];
+	}
+
+	/* Order index pairs by unsigned identifier, then by key. */
+	private static int compare(long[] a, int i, long id, long key) {
+		int c = Long.compareUnsigned(a[2 * i], id);
+		return c != 0 ? c : Long.compare(a[2 * i + 1], key);
+	}
+
+	/* Swap index pairs i and j. */
+	private static void swap(long[] a, int i, int j) {
+		long id = a[2 * i];
+		long key = a[2 * i + 1];
+		a[2 * i] = a[2 * j];
+		a[2 * i + 1] = a[2 * j + 1];
+		a[2 * j] = id;
+		a[2 * j + 1] = key;
+	}
+
+	/* Merge sorted index pairs lo to mid and mid to hi, exclusive, in place. */
+	private static void merge(long[] a, int lo, int mid, int hi) {
+		if (lo == mid || mid == hi || compare(a, mid - 1, a[2 * mid], a[2 * mid + 1]) <= 0) {
+			return;
+		}
+		// fill from the back, so pairs before the first one merged stay put
+		long[] b = Arrays.copyOfRange(a, 2 * mid, 2 * hi);
+		int i = mid - 1;
+		int j = hi - mid - 1;
+		for (int w = hi - 1; j >= 0; --w) {
+			if (i >= lo && compare(a, i, b[2 * j], b[2 * j + 1]) > 0) {
+				a[2 * w] = a[2 * i];
+				a[2 * w + 1] = a[2 * i + 1];
+				--i;
+			} else {
+				a[2 * w] = b[2 * j];
+				a[2 * w + 1] = b[2 * j + 1];
+				--j;
+			}
+		}
+	}
+
+	/*
+	 * Return (identifier, key, value) runs a and b, each in ring order from
+	 * left, merged into one.
+	 */
+	private static long[] merge(long[] a, long[] b, long left) {
+		if (b.length == 0) {
+			return a;
+		}
+		long[] run = new long[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		for (int r = 0; r < run.length; r += 3) {
+			if (j == b.length || (i < a.length && before(a, i, b, j, left))) {
+				System.arraycopy(a, i, run, r, 3);
+				i += 3;
+			} else {
+				System.arraycopy(b, j, run, r, 3);
+				j += 3;
+			}
+		}
+		return run;
+	}
+
+	/* Sort index pairs lo to hi, exclusive, in place. */
+	private static void sort(long[] a, int lo, int hi) {
+		while (hi - lo > 16) {
+			// median of three at mid, then Hoare partition around it
+			int mid = (lo + hi - 1) >>> 1;
+			if (compare(a, mid, a[2 * lo], a[2 * lo + 1]) < 0) {
+				swap(a, lo, mid);
+			}
+			if (compare(a, hi - 1, a[2 * lo], a[2 * lo + 1]) < 0) {
+				swap(a, lo, hi - 1);
+			}
+			if (compare(a, hi - 1, a[2 * mid], a[2 * mid + 1]) < 0) {
+				swap(a, mid, hi - 1);
+			}
+			long id = a[2 * mid];
+			long key = a[2 * mid + 1];
+			int i = lo - 1;
+			int j = hi;
+			while (true) {
+				do {
+					++i;
+				} while (compare(a, i, id, key) < 0);
+				do {
+					--j;
+				} while (compare(a, j, id, key) > 0);
+				if (i >= j) {
+					break;
+				}
+				swap(a, i, j);
+			}
+			// recurse into the smaller half so the stack stays shallow
+			if (j + 1 - lo < hi - j - 1) {
+				sort(a, lo, j + 1);
+				lo = j + 1;
+			} else {
+				sort(a, j + 1, hi);
+				hi = j + 1;
+			}
+		}
+		for (int i = lo + 1; i < hi; ++i) {
+			for (int j = i; j > lo && compare(a, j - 1, a[2 * j], a[2 * j + 1]) > 0; --j) {
+				swap(a, j - 1, j);
+			}
+		}
+	}
+
+	/*
+	 * Segment
+	 * One open-addressing table. Slot i holds its key at table[2i] and its
+	 * value at table[2i + 1], so a reader sees both through one reference.
+	 */
+	private static class Segment {
+		final StampedLock lock;
+		volatile long[] table;
+		volatile int size;
+		boolean hasFreeKey;
+		long freeKeyValue;
+		int threshold;
+		// (identifier, key) pairs, or null if the map keeps no index
+		long[] order;
+		// pairs in order, ends of the sorted prefix and of the sorted tail,
+		// and how many pairs are stale
+		int ordered;
+		int sorted;
+		int merged;
+		int stale;
+
+		/* Segment constructor. */
+		Segment(int expected, boolean indexed) {
+			lock = new StampedLock();
+			if (indexed) {
+				order = new long[2 * MIN_CAPACITY];
+			}
+			int capacity = MIN_CAPACITY;
+			while (capacity * LOAD_FACTOR < expected) {
+				capacity <<= 1;
+			}
+			table = new long[2 * capacity];
+			threshold = (int) (capacity * LOAD_FACTOR);
+			size = 0;
+		}
+
+		/* Return slot of key, Integer.MAX_VALUE for key 0, or -1 if absent. */
+		int find(long key, long h) {
+			if (key == FREE) {
+				return hasFreeKey ? Integer.MAX_VALUE : -1;
+			}
+			long[] t = table;
+			int mask = (t.length >> 1) - 1;
+			for (int i = (int) h & mask, n = 0; n <= mask; i = (i + 1) & mask, ++n) {
+				long k = t[2 * i];
+				if (k == key) {
+					return i;
+				}
+				if (k == FREE) {
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		/* Return value at slot index returned by find. */
+		long valueAt(int idx) {
+			if (idx == Integer.MAX_VALUE) {
+				return freeKeyValue;
+			}
+			long[] t = table;
+			int i = 2 * idx + 1;
+			return i < t.length ? t[i] : 0;
+		}
+
+		/* Optimistic get with locked fallback. */
+		long get(long key, long h, long absent) {
+			long stamp = lock.tryOptimisticRead();
+			int idx = find(key, h);
+			long value = idx != -1 ? valueAt(idx) : absent;
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					idx = find(key, h);
+					value = idx != -1 ? valueAt(idx) : absent;
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return value;
+		}
+
+		/* Put under write lock. Return whether key is new. */
+		boolean put(long key, long h, long value) {
+			if (key == FREE) {
+				boolean added = !hasFreeKey;
+				if (added) {
+					hasFreeKey = true;
+					++size;
+				}
+				freeKeyValue = value;
+				return added;
+			}
+
+			long[] t = table;
+			int mask = (t.length >> 1) - 1;
+			int i = (int) h & mask;
+			while (true) {
+				long k = t[2 * i];
+				if (k == key) {
+					t[2 * i + 1] = value;
+					return false;
+				}
+				if (k == FREE) {
+					// value before key, so an optimistic reader never sees a stale value
+					t[2 * i + 1] = value;
+					t[2 * i] = key;
+					if (++size > threshold) {
+						rehash(t.length);
+					}
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		/* Remove under write lock, shifting later entries back into the gap. */
+		boolean remove(long key, long h) {
+			if (key == FREE) {
+				if (!hasFreeKey) {
+					return false;
+				}
+				hasFreeKey = false;
+				--size;
+				return true;
+			}
+
+			long[] t = table;
+			int mask = (t.length >> 1) - 1;
+			int i = (int) h & mask;
+			while (true) {
+				long k = t[2 * i];
+				if (k == FREE) {
+					return false;
+				}
+				if (k == key) {
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+
+			// backward-shift deletion keeps probe sequences unbroken without tombstones
+			int gap = i;
+			int j = (i + 1) & mask;
+			while (t[2 * j] != FREE) {
+				int home = (int) mix(t[2 * j]) & mask;
+				if (((j - home) & mask) >= ((j - gap) & mask)) {
+					t[2 * gap] = t[2 * j];
+					t[2 * gap + 1] = t[2 * j + 1];
+					gap = j;
+				}
+				j = (j + 1) & mask;
+			}
+			t[2 * gap] = FREE;
+			t[2 * gap + 1] = 0;
+			--size;
+			return true;
+		}
+
+		/* Remove all entries under write lock. */
+		void clear() {
+			table = new long[2 * MIN_CAPACITY];
+			threshold = (int) (MIN_CAPACITY * LOAD_FACTOR);
+			hasFreeKey = false;
+			size = 0;
+			if (order != null) {
+				order = new long[2 * MIN_CAPACITY];
+				ordered = 0;
+				sorted = 0;
+				merged = 0;
+				stale = 0;
+			}
+		}
+
+		/* Add new key with identifier id to the index under write lock. */
+		void index(long id, long key) {
+			if (2 * ordered == order.length) {
+				order = Arrays.copyOf(order, 2 * order.length);
+			}
+			// keys added in order extend the prefix and need no sorting
+			boolean inOrder = sorted == ordered &&
+					(ordered == 0 || compare(order, ordered - 1, id, key) <= 0);
+			order[2 * ordered] = id;
+			order[2 * ordered + 1] = key;
+			++ordered;
+			if (inOrder) {
+				sorted = ordered;
+				merged = ordered;
+			}
+		}
+
+		/*
+		 * Note under write lock that a key left the table. Its pair stays in
+		 * the index until stale pairs outnumber live ones.
+		 */
+		void unindex() {
+			if (++stale > Math.max(size, MIN_CAPACITY)) {
+				normalize();
+			}
+		}
+
+		/*
+		 * Return whether the index holds only live keys, in a sorted prefix
+		 * and tail.
+		 */
+		boolean indexed() {
+			return merged == ordered && stale == 0;
+		}
+
+		/*
+		 * Sort the pairs appended since the last call into the tail, merge
+		 * the tail into the prefix once it is large enough, and drop stale
+		 * pairs, under write lock.
+		 */
+		void normalize() {
+			long[] o = order;
+			if (merged < ordered) {
+				sort(o, merged, ordered);
+				merge(o, sorted, merged, ordered);
+				merged = ordered;
+			}
+			if (stale > 0 || merged - sorted > sorted / TAIL_SHARE) {
+				merge(o, 0, sorted, merged);
+				sorted = merged;
+			}
+			if (stale == 0) {
+				return;
+			}
+			// a key removed and added again has a stale pair right beside its live one
+			int n = 0;
+			for (int i = 0; i < ordered; ++i) {
+				long id = o[2 * i];
+				long key = o[2 * i + 1];
+				if (find(key, mix(key)) == -1 ||
+						(n > 0 && o[2 * n - 2] == id && o[2 * n - 1] == key)) {
+					continue;
+				}
+				o[2 * n] = id;
+				o[2 * n + 1] = key;
+				++n;
+			}
+			ordered = n;
+			sorted = n;
+			merged = n;
+			stale = 0;
+			if (o.length > 8 * Math.max(n, MIN_CAPACITY)) {
+				order = Arrays.copyOf(o, 4 * Math.max(n, MIN_CAPACITY));
+			}
+		}
+
+		/* Return first index pair from lo to hi with identifier after id. */
+		private int after(long id, int lo, int hi) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (Long.compareUnsigned(order[2 * mid], id) <= 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/*
+		 * Return (identifier, key, value) of the entries in range, in ring
+		 * order from left, as forEachInRange takes them. The index must be
+		 * normalized and the segment locked.
+		 */
+		long[] range(long left, long right) {
+			long[] run = range(left, right, 0, sorted);
+			return merge(run, range(left, right, sorted, merged), left);
+		}
+
+		/* Return the entries in range of the sorted index pairs lo to hi. */
+		private long[] range(long left, long right, int lo, int hi) {
+			int from = after(left, lo, hi);
+			int to = after(right, lo, hi);
+			int n = Long.compareUnsigned(left, right) < 0 ? to - from : hi - from + to - lo;
+			long[] run = new long[3 * n];
+			int r = 0;
+			for (int k = 0; k < n; ++k) {
+				int i = from + k < hi ? from + k : from + k - hi + lo;
+				long key = order[2 * i + 1];
+				run[r++] = order[2 * i];
+				run[r++] = key;
+				run[r++] = valueAt(find(key, mix(key)));
+			}
+			return run;
+		}
+
+		/* Visit entries under read lock. */
+		void forEach(LongLongConsumer action) {
+			if (hasFreeKey) {
+				action.accept(FREE, freeKeyValue);
+			}
+			long[] t = table;
+			for (int i = 0; i < t.length; i += 2) {
+				if (t[i] != FREE) {
+					action.accept(t[i], t[i + 1]);
+				}
+			}
+		}
+
+		/* Double capacity and reinsert every entry. */
+		private void rehash(int oldLength) {
+			long[] old = table;
+			long[] t = new long[2 * oldLength];
+			int mask = (t.length >> 1) - 1;
+			for (int i = 0; i < old.length; i += 2) {
+				long k = old[i];
+				if (k == FREE) {
+					continue;
+				}
+				int j = (int) mix(k) & mask;
+				while (t[2 * j] != FREE) {
+					j = (j + 1) & mask;
+				}
+				t[2 * j] = k;
+				t[2 * j + 1] = old[i + 1];
+			}
+			threshold = (int) ((t.length >> 1) * LOAD_FACTOR);
+			table = t;
+		}
+	}
+}
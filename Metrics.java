@@ -0,0 +1,240 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Metrics
+ * Counters and latency histograms of one node: requests it served and sent
+ * per opcode, latency of requests sent to each peer, lookup hops and items
+ * handed to and taken from other nodes. Recording takes no locks, so the
+ * server and client threads record every request. All figures are totals
+ * since the node started.
+ */
+public class Metrics {
+	// peers tracked at once; the table starts over when it fills up
+	private static final int MAX_PEERS = 1024;
+
+	/*
+	 * Histogram
+	 * Log-linear histogram in the style of HdrHistogram. Values below 2^SUB_BITS
+	 * are counted exactly; above that each power of two is split into 2^SUB_BITS
+	 * buckets, so a reported value is within 1/2^SUB_BITS of the recorded one.
+	 */
+	public static class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB = 1 << SUB_BITS;
+		private static final int BUCKETS = SUB + (64 - SUB_BITS) * SUB;
+
+		private final AtomicLongArray counts;
+		private final LongAdder count;
+		private final LongAdder sum;
+		private final AtomicLong max;
+
+		/* Histogram constructor. */
+		public Histogram() {
+			counts = new AtomicLongArray(BUCKETS);
+			count = new LongAdder();
+			sum = new LongAdder();
+			max = new AtomicLong();
+		}
+
+		/* Return bucket of value v, which is not negative. */
+		static int bucket(long v) {
+			if (v < SUB) {
+				return (int) v;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+			return SUB + shift * SUB + (int) (v >>> shift) - SUB;
+		}
+
+		/* Return highest value that falls in bucket b. */
+		static long highest(int b) {
+			if (b < SUB) {
+				return b;
+			}
+			int shift = (b - SUB) / SUB;
+			long lowest = (long) (SUB + (b - SUB) % SUB) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+
+		/* Record value v; negative values count as 0. */
+		public void record(long v) {
+			v = Math.max(v, 0);
+			counts.incrementAndGet(bucket(v));
+			count.increment();
+			sum.add(v);
+			if (v > max.get()) {
+				max.accumulateAndGet(v, Math::max);
+			}
+		}
+
+		/* Return number of values recorded. */
+		public long count() {
+			return count.sum();
+		}
+
+		/* Return largest value recorded. */
+		public long max() {
+			return max.get();
+		}
+
+		/* Return mean of values recorded, or 0 if there are none. */
+		public double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		/* Return the value p percent of the recorded values are at or below. */
+		public long percentile(double p) {
+			long n = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				n += counts.get(b);
+			}
+			long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				seen += counts.get(b);
+				if (seen >= rank) {
+					return Math.min(highest(b), max.get());
+				}
+			}
+			return 0;
+		}
+
+		/* Return count and percentiles, dividing values by unit. */
+		String summary(long unit) {
+			return String.format(Locale.ROOT, "%d/%d/%d/%d/%d", count(),
+					percentile(50) / unit, percentile(90) / unit,
+					percentile(99) / unit, max() / unit);
+		}
+	}
+
+	private final Map<String, Histogram> served;
+	private final Map<String, Histogram> sent;
+	private final Map<String, LongAdder> failed;
+	private final Map<String, Histogram> peers;
+	private final Histogram hops;
+	private final LongAdder handedOff;
+	private final LongAdder takenOver;
+
+	/* Metrics constructor. */
+	public Metrics() {
+		served = new ConcurrentHashMap<String, Histogram>();
+		sent = new ConcurrentHashMap<String, Histogram>();
+		failed = new ConcurrentHashMap<String, LongAdder>();
+		peers = new ConcurrentHashMap<String, Histogram>();
+		hops = new Histogram();
+		handedOff = new LongAdder();
+		takenOver = new LongAdder();
+	}
+
+	/* Return histogram of name in table, adding it if it is new. */
+	private static Histogram histogram(Map<String, Histogram> table, String name) {
+		Histogram h = table.get(name);
+		return h != null ? h : table.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	/* Record a request for op served in the ns since start. */
+	public void served(String op, long start) {
+		histogram(served, op).record(System.nanoTime() - start);
+	}
+
+	/*
+	 * Record a request for op sent to ep in the ns since start, and whether
+	 * ep answered it.
+	 */
+	public void sent(String op, Endpoint ep, long start, boolean answered) {
+		long ns = System.nanoTime() - start;
+		histogram(sent, op).record(ns);
+		if (!answered) {
+			LongAdder n = failed.get(op);
+			if (n == null) {
+				n = failed.computeIfAbsent(op, k -> new LongAdder());
+			}
+			n.increment();
+		}
+
+		String peer = ep.host + ":" + ep.port;
+		if (peers.size() >= MAX_PEERS && !peers.containsKey(peer)) {
+			peers.clear();
+		}
+		histogram(peers, peer).record(ns);
+	}
+
+	/* Record a lookup that took n hops. */
+	public void hops(int n) {
+		hops.record(n);
+	}
+
+	/* Record n items handed to another node. */
+	public void handedOff(long n) {
+		handedOff.add(n);
+	}
+
+	/* Record n items taken over from another node in one handoff. */
+	public void takenOver(long n) {
+		takenOver.add(n);
+	}
+
+	/* Return histogram of lookup hops. */
+	public Histogram getHops() {
+		return hops;
+	}
+
+	/* Return histogram of requests for op served, or null if there were none. */
+	public Histogram getServed(String op) {
+		return served.get(op);
+	}
+
+	/* Return histogram of requests for op sent, or null if there were none. */
+	public Histogram getSent(String op) {
+		return sent.get(op);
+	}
+
+	/* Return number of items handed to other nodes. */
+	public long getHandedOff() {
+		return handedOff.sum();
+	}
+
+	/* Return number of items taken over from other nodes. */
+	public long getTakenOver() {
+		return takenOver.sum();
+	}
+
+	/*
+	 * Return the metrics on one line of name=value fields, with the store's
+	 * items, replicas and byte-array values, the location cache's counts and
+	 * the near cache's, if there is one. Histograms read count/p50/p90/p99/max,
+	 * latencies in microseconds.
+	 */
+	public String report(long items, long replicaItems, long blobs,
+			LocationCache locations, NearCache near) {
+		StringJoiner line = new StringJoiner(" ");
+		line.add("items=" + items);
+		line.add("replicas=" + replicaItems);
+		line.add("blobs=" + blobs);
+		line.add("handoff.out=" + handedOff.sum());
+		line.add("handoff.in=" + takenOver.sum());
+		line.add(String.format(Locale.ROOT, "cache=%d/%d/%d", locations.hits(),
+				locations.misses(), locations.staleHits()));
+		if (near != null) {
+			line.add(String.format(Locale.ROOT, "near=%d/%d/%d", near.hits(),
+					near.misses(), near.expired()));
+		}
+		line.add("hops=" + hops.summary(1));
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(served).entrySet()) {
+			line.add("server." + e.getKey() + "=" + e.getValue().summary(1000));
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(sent).entrySet()) {
+			LongAdder n = failed.get(e.getKey());
+			line.add("client." + e.getKey() + "=" + e.getValue().summary(1000) +
+					"/" + (n == null ? 0 : n.sum()));
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(peers).entrySet()) {
+			line.add("peer." + e.getKey() + "=" + e.getValue().summary(1000));
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,295 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * NearCache
+ * Bounded cache of values this node read from the keys' owners. Each value
+ * is kept only until the lease its owner granted with it runs out, so a read
+ * served from the cache is never older than the lease.
+ *
+ * LRU evicts the least recently used value. TINYLFU is W-TinyLFU: a new
+ * value enters a small LRU window, and a value pushed out of the window
+ * joins the main space, a segmented LRU, only if a count-min sketch of
+ * recent reads shows it is read more often than the value it would evict.
+ * A burst of keys read once then cannot push the hot keys out.
+ */
+public class NearCache {
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/*
+	 * Policy
+	 * How values are chosen for eviction.
+	 */
+	public enum Policy {
+		LRU, TINYLFU
+	}
+
+	/*
+	 * Entry
+	 * Cached value of a key and when its lease runs out, in System.nanoTime.
+	 */
+	private static final class Entry {
+		final long key;
+		long value;
+		long expires;
+
+		/* Entry constructor. */
+		Entry(long key, long value, long expires) {
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/*
+	 * Lease
+	 * Value of a key as its owner read it, and how many ms the owner lets
+	 * another node serve it from a near cache.
+	 */
+	public static final class Lease {
+		public final Long value;
+		public final int millis;
+
+		/* Lease constructor. */
+		public Lease(Long value, int millis) {
+			this.value = value;
+			this.millis = millis;
+		}
+	}
+
+	private final int capacity;
+	private final Policy policy;
+	// LRU keeps every entry in the window; TINYLFU splits the main space into
+	// probation, for entries read once since admission, and protected
+	private final LinkedHashMap<Long, Entry> window;
+	private final LinkedHashMap<Long, Entry> probation;
+	private final LinkedHashMap<Long, Entry> protect;
+	private final int windowCapacity;
+	private final int protectCapacity;
+	private final Sketch sketch;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder expired;
+
+	/* NearCache constructor. */
+	public NearCache(int capacity, Policy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " +
+					capacity);
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		window = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+		probation = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+		protect = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+		if (policy == Policy.LRU) {
+			windowCapacity = capacity;
+			protectCapacity = 0;
+			sketch = null;
+		} else {
+			// 1% window, 80% of the rest protected, as in Caffeine
+			windowCapacity = Math.max(1, capacity / 100);
+			protectCapacity = (capacity - windowCapacity) * 4 / 5;
+			sketch = new Sketch(capacity);
+		}
+		hits = new LongAdder();
+		misses = new LongAdder();
+		expired = new LongAdder();
+	}
+
+	/* Return cached value of key, or null on a miss or an expired lease. */
+	public synchronized Long get(long key) {
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		Entry e = window.get(key);
+		LinkedHashMap<Long, Entry> segment = window;
+		if (e == null) {
+			e = probation.get(key);
+			segment = probation;
+		}
+		if (e == null) {
+			e = protect.get(key);
+			segment = protect;
+		}
+		if (e == null) {
+			misses.increment();
+			return null;
+		}
+		if (System.nanoTime() - e.expires >= 0) {
+			segment.remove(key);
+			expired.increment();
+			return null;
+		}
+
+		// a second read since admission promotes a probation entry
+		if (segment == probation) {
+			probation.remove(key);
+			protect.put(key, e);
+			if (protect.size() > protectCapacity) {
+				Entry demoted = eldest(protect);
+				protect.remove(demoted.key);
+				probation.put(demoted.key, demoted);
+			}
+		}
+		hits.increment();
+		return e.value;
+	}
+
+	/*
+	 * Cache value of key under a lease of leaseMillis, counted from start
+	 * in System.nanoTime, which should be when the value was asked for.
+	 */
+	public synchronized void put(long key, long value, long start, long leaseMillis) {
+		long expires = start + leaseMillis * 1000000;
+		Entry e = window.get(key);
+		if (e == null) {
+			e = probation.get(key);
+		}
+		if (e == null) {
+			e = protect.get(key);
+		}
+		if (e != null) {
+			e.value = value;
+			e.expires = expires;
+			return;
+		}
+
+		window.put(key, new Entry(key, value, expires));
+		if (window.size() <= windowCapacity) {
+			return;
+		}
+		Entry candidate = eldest(window);
+		window.remove(candidate.key);
+		if (policy == Policy.TINYLFU) {
+			admit(candidate);
+		}
+	}
+
+	/* Move candidate from the window to the main space if it earns a place. */
+	private void admit(Entry candidate) {
+		if (window.size() + probation.size() + protect.size() < capacity) {
+			probation.put(candidate.key, candidate);
+			return;
+		}
+		LinkedHashMap<Long, Entry> segment =
+				probation.isEmpty() ? protect : probation;
+		if (segment.isEmpty()) {
+			// no main space at all in a cache this small
+			return;
+		}
+		Entry victim = eldest(segment);
+		if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+			segment.remove(victim.key);
+			probation.put(candidate.key, candidate);
+		}
+	}
+
+	/* Return least recently used entry of segment, which is not empty. */
+	private static Entry eldest(LinkedHashMap<Long, Entry> segment) {
+		return segment.values().iterator().next();
+	}
+
+	/* Drop the cached value of key, if any. */
+	public synchronized void invalidate(long key) {
+		if (window.remove(key) == null && probation.remove(key) == null) {
+			protect.remove(key);
+		}
+	}
+
+	/* Drop every cached value. */
+	public synchronized void clear() {
+		window.clear();
+		probation.clear();
+		protect.clear();
+	}
+
+	/* Return number of cached values, some of which may have expired. */
+	public synchronized int size() {
+		return window.size() + probation.size() + protect.size();
+	}
+
+	/* Return eviction policy. */
+	public Policy policy() {
+		return policy;
+	}
+
+	/* Return number of reads served from the cache. */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/* Return number of reads of keys that were not cached. */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/* Return number of reads of keys whose lease had run out. */
+	public long expired() {
+		return expired.sum();
+	}
+
+	/*
+	 * Sketch
+	 * Count-min sketch of how often keys were read, with four rows of 4-bit
+	 * counters. Once it has counted ten reads per cache entry, every counter
+	 * is halved, so it tracks recent popularity rather than all-time.
+	 */
+	private static final class Sketch {
+		private static final int ROWS = 4;
+		private static final int MAX_COUNT = 15;
+		private static final long[] SEEDS = {
+				0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL,
+				0x165667b19e3779f9L, 0xd6e8feb86659fd93L
+		};
+
+		private final byte[][] counts;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		/* Sketch constructor for a cache of capacity entries. */
+		Sketch(int capacity) {
+			int width = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+			counts = new byte[ROWS][width];
+			mask = width - 1;
+			sampleSize = 10 * capacity;
+			additions = 0;
+		}
+
+		/* Return slot of key in row. */
+		private int slot(long key, int row) {
+			long h = (key ^ SEEDS[row]) * 0xbf58476d1ce4e5b9L;
+			return (int) (h ^ (h >>> 31)) & mask;
+		}
+
+		/* Count one read of key. */
+		void increment(long key) {
+			boolean added = false;
+			for (int r = 0; r < ROWS; ++r) {
+				int i = slot(key, r);
+				if (counts[r][i] < MAX_COUNT) {
+					++counts[r][i];
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (byte[] row : counts) {
+					for (int i = 0; i < row.length; ++i) {
+						row[i] >>= 1;
+					}
+				}
+				additions /= 2;
+			}
+		}
+
+		/* Return estimated number of recent reads of key. */
+		int frequency(long key) {
+			int min = MAX_COUNT;
+			for (int r = 0; r < ROWS; ++r) {
+				min = Math.min(min, counts[r][slot(key, r)]);
+			}
+			return min;
+		}
+	}
+}
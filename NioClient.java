@@ -0,0 +1,420 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * NioClient
+ * Selector-based client for the binary protocol, used for asynchronous
+ * requests. One thread owns a few connections to each peer and pipelines
+ * requests on them: a server answers the frames of a connection in order, so
+ * each response completes the oldest request still waiting on it. A request
+ * that takes longer than ConnectionPool.READ_TIMEOUT fails its connection and
+ * every request queued behind it.
+ *
+ * Futures are completed on the client thread, so stages chained on them must
+ * not block.
+ */
+public class NioClient {
+	public static final int CHANNELS_PER_ENDPOINT = 2;
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final long TICK = 100;
+
+	private Selector selector;
+	private Thread thread;
+	private Queue<Runnable> tasks;
+	private Map<Endpoint, Channel[]> channels;
+	private volatile boolean closed;
+
+	/*
+	 * Pending
+	 * Request waiting for its response.
+	 */
+	private static class Pending<T> {
+		final WireCodec.Decoder<T> decoder;
+		final CompletableFuture<T> result;
+		final boolean owned;
+		final long deadline;
+
+		/* Pending constructor. */
+		Pending(WireCodec.Decoder<T> decoder, CompletableFuture<T> result,
+				boolean owned, long deadline) {
+			this.decoder = decoder;
+			this.result = result;
+			this.owned = owned;
+			this.deadline = deadline;
+		}
+
+		/* Complete with the response payload, starting after its status. */
+		void deliver(Endpoint ep, byte status, WireCodec codec, ByteBuffer payload) {
+			if (status == WireCodec.OK) {
+				result.complete(decoder.decode(codec, payload));
+			} else if (owned) {
+				result.completeExceptionally(new StaleRouteException(ep));
+			} else {
+				result.complete(null);
+			}
+		}
+	}
+
+	/*
+	 * Channel
+	 * Connection to one peer with its codec, queued output and the requests
+	 * waiting for responses, oldest first.
+	 */
+	private static class Channel {
+		final Endpoint ep;
+		final SocketChannel ch;
+		final WireCodec codec;
+		final Deque<Pending<?>> pending;
+		final Deque<ByteBuffer> out;
+		final long opened;
+		SelectionKey key;
+		ByteBuffer in;
+		boolean versioned;
+		long lastUsed;
+
+		/* Channel constructor. */
+		Channel(Endpoint ep, SocketChannel ch) {
+			this.ep = ep;
+			this.ch = ch;
+			this.codec = new WireCodec();
+			this.pending = new ArrayDeque<Pending<?>>();
+			this.out = new ArrayDeque<ByteBuffer>();
+			this.opened = System.currentTimeMillis();
+			this.in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			this.versioned = false;
+			this.lastUsed = opened;
+		}
+	}
+
+	/* NioClient constructor. Starts the client thread. */
+	public NioClient() throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		channels = new HashMap<Endpoint, Channel[]>();
+		closed = false;
+		thread = new Thread(() -> run(), "nio-client");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Send a request with opcode op to ep, addressed to ep's key. The future
+	 * gets the decoded response, or null if ep answered anything but OK; for
+	 * owned requests such an answer fails it with StaleRouteException. It
+	 * fails with an IOException if ep could not be reached, and with a
+	 * ConnectException if no connection could be made.
+	 */
+	public <T> CompletableFuture<T> call(Endpoint ep, byte op, WireCodec.Encoder args,
+			WireCodec.Decoder<T> result, boolean owned) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		if (closed) {
+			f.completeExceptionally(new IOException("client closed"));
+			return f;
+		}
+		execute(() -> send(ep, op, args, new Pending<T>(result, f, owned,
+				System.currentTimeMillis() + ConnectionPool.READ_TIMEOUT)));
+		return f;
+	}
+
+	/* Close every connection, failing outstanding requests, and stop. */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	/* Run task on the client thread. */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/* Run method of the client thread. */
+	private void run() {
+		while (!closed) {
+			try {
+				selector.select(TICK);
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+					Channel c = (Channel) k.attachment();
+					if (!k.isValid()) {
+						continue;
+					}
+					try {
+						if (k.isConnectable()) {
+							connected(c);
+						}
+						if (k.isValid() && k.isReadable()) {
+							read(c);
+						}
+						if (k.isValid() && k.isWritable()) {
+							flush(c);
+						}
+					} catch (IOException e) {
+						fail(c, e);
+					}
+				}
+				expire();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// fail whatever is still waiting, including requests queued meanwhile
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		for (Channel[] slots : channels.values()) {
+			for (Channel c : slots) {
+				if (c != null) {
+					fail(c, new IOException("client closed"));
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/* Encode and queue a request on the least busy connection to ep. */
+	private void send(Endpoint ep, byte op, WireCodec.Encoder args, Pending<?> p) {
+		if (closed) {
+			p.result.completeExceptionally(new IOException("client closed"));
+			return;
+		}
+		Channel c;
+		try {
+			c = channel(ep);
+		} catch (IOException e) {
+			p.result.completeExceptionally(e instanceof ConnectException ? e :
+					new ConnectException(e.toString()));
+			return;
+		}
+
+		try {
+			c.codec.begin(op).putLong(ep.key);
+			if (args != null) {
+				args.encode(c.codec);
+			}
+		} catch (RuntimeException e) {
+			p.result.completeExceptionally(e);
+			return;
+		}
+
+		// the codec reuses its buffer for the next request
+		ByteBuffer frame = c.codec.finish();
+		ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+		copy.put(frame).flip();
+		c.out.add(copy);
+		c.pending.add(p);
+		c.lastUsed = System.currentTimeMillis();
+		try {
+			flush(c);
+		} catch (IOException e) {
+			fail(c, e);
+		}
+	}
+
+	/* Return the connection to ep with the fewest waiting requests. */
+	private Channel channel(Endpoint ep) throws IOException {
+		Channel[] slots = channels.computeIfAbsent(ep,
+				k -> new Channel[CHANNELS_PER_ENDPOINT]);
+		int best = -1;
+		for (int i = 0; i < slots.length; ++i) {
+			if (slots[i] == null) {
+				best = i;
+				break;
+			}
+			if (best == -1 || slots[i].pending.size() < slots[best].pending.size()) {
+				best = i;
+			}
+		}
+		if (slots[best] == null) {
+			slots[best] = open(ep);
+		}
+		return slots[best];
+	}
+
+	/* Start connecting to ep, with the handshake queued as first output. */
+	private Channel open(Endpoint ep) throws IOException {
+		SocketChannel ch = SocketChannel.open();
+		try {
+			ch.configureBlocking(false);
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Channel c = new Channel(ep, ch);
+			c.out.add(ByteBuffer.wrap(new byte[] { WireCodec.MAGIC, WireCodec.VERSION }));
+			boolean done = ch.connect(new InetSocketAddress(ep.host, ep.port));
+			c.key = ch.register(selector, done ? SelectionKey.OP_READ :
+					SelectionKey.OP_CONNECT, c);
+			return c;
+		} catch (IOException | UnresolvedAddressException e) {
+			try {
+				ch.close();
+			} catch (IOException ignored) {}
+			throw new ConnectException("could not connect to " + ep + ": " + e);
+		}
+	}
+
+	/* Finish connecting c and start sending its queued output. */
+	private void connected(Channel c) throws IOException {
+		try {
+			c.ch.finishConnect();
+		} catch (IOException e) {
+			throw new ConnectException("could not connect to " + c.ep + ": " + e);
+		}
+		c.key.interestOps(SelectionKey.OP_READ);
+		flush(c);
+	}
+
+	/* Write queued output; wait for the socket to drain if it is full. */
+	private void flush(Channel c) throws IOException {
+		if (!c.ch.isConnected()) {
+			return;
+		}
+		while (!c.out.isEmpty()) {
+			ByteBuffer head = c.out.peekFirst();
+			c.ch.write(head);
+			if (head.hasRemaining()) {
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			c.out.pollFirst();
+		}
+		c.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/* Read available bytes and complete the requests they answer. */
+	private void read(Channel c) throws IOException {
+		if (!c.in.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(c.in.capacity() * 2);
+			c.in.flip();
+			bigger.put(c.in);
+			c.in = bigger;
+		}
+		if (c.ch.read(c.in) < 0) {
+			throw new EOFException("connection to " + c.ep + " closed");
+		}
+
+		if (!c.versioned) {
+			if (c.in.position() < 1) {
+				return;
+			}
+			if (c.in.get(0) != WireCodec.VERSION) {
+				throw new IOException("protocol version rejected by " + c.ep);
+			}
+			consume(c, 1);
+			c.versioned = true;
+		}
+
+		while (c.in.position() >= 4) {
+			int len = c.in.getInt(0);
+			if (len < 1 || len > WireCodec.MAX_FRAME) {
+				throw new IOException("bad frame length " + len);
+			}
+			if (c.in.position() < 4 + len) {
+				return;
+			}
+			Pending<?> p = c.pending.pollFirst();
+			if (p == null) {
+				throw new IOException("unexpected response from " + c.ep);
+			}
+
+			ByteBuffer frame = c.in.duplicate();
+			frame.limit(4 + len);
+			frame.position(4);
+			byte status = frame.get();
+			try {
+				p.deliver(c.ep, status, c.codec, frame);
+			} catch (RuntimeException e) {
+				// malformed response; the connection is out of step
+				p.result.completeExceptionally(e);
+				throw new IOException("bad response from " + c.ep, e);
+			}
+			if (status != WireCodec.OK) {
+				// the peer may not have decoded the request, so the endpoints
+				// it defined are unknown there; later requests must not refer to them
+				throw new IOException("connection to " + c.ep + " dropped after status " +
+						status);
+			}
+			consume(c, 4 + len);
+			c.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/* Drop the first n buffered input bytes. */
+	private static void consume(Channel c, int n) {
+		c.in.flip();
+		c.in.position(n);
+		c.in.compact();
+	}
+
+	/*
+	 * Fail connections whose oldest request or connection attempt timed out,
+	 * and close connections that have been idle too long.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		List<Channel> expired = new ArrayList<Channel>();
+		for (Channel[] slots : channels.values()) {
+			for (Channel c : slots) {
+				if (c == null) {
+					continue;
+				}
+				Pending<?> oldest = c.pending.peekFirst();
+				if ((!c.ch.isConnected() &&
+						now - c.opened > ConnectionPool.CONNECT_TIMEOUT) ||
+						(oldest != null && now > oldest.deadline) ||
+						(oldest == null && now - c.lastUsed > ConnectionPool.IDLE_TIMEOUT)) {
+					expired.add(c);
+				}
+			}
+		}
+		for (Channel c : expired) {
+			fail(c, c.ch.isConnected() ?
+					new SocketTimeoutException("no response from " + c.ep) :
+					new ConnectException("connect to " + c.ep + " timed out"));
+		}
+	}
+
+	/* Close c and fail every request waiting on it. */
+	private void fail(Channel c, IOException e) {
+		if (c.key != null) {
+			c.key.cancel();
+		}
+		try {
+			c.ch.close();
+		} catch (IOException ignored) {}
+
+		Channel[] slots = channels.get(c.ep);
+		if (slots != null) {
+			boolean empty = true;
+			for (int i = 0; i < slots.length; ++i) {
+				if (slots[i] == c) {
+					slots[i] = null;
+				}
+				empty &= slots[i] == null;
+			}
+			if (empty) {
+				channels.remove(c.ep);
+			}
+		}
+
+		Pending<?> p;
+		while ((p = c.pending.pollFirst()) != null) {
+			p.result.completeExceptionally(e);
+		}
+		c.out.clear();
+	}
+}
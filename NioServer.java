@@ -0,0 +1,550 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * NioServer
+ * Selector-based server core. An acceptor hands connections to a small group
+ * of event loops, which frame requests and pass them to a handler. The first
+ * byte of a connection picks its protocol: WireCodec.MAGIC selects binary
+ * frames, anything else selects text lines. Handlers either reply right away
+ * on the loop or move slow work to a bounded worker pool, so the thread count
+ * stays fixed however many peers are connected. With Workers.Model.VIRTUAL the
+ * pool starts a virtual thread per task instead, up to Workers.VIRTUAL_LIMIT.
+ */
+public class NioServer {
+	public static final int DEFAULT_LOOPS =
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	public static final int DEFAULT_WORKERS = 16;
+	public static final int DEFAULT_QUEUE = 1024;
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	// room for the longest frame with its length
+	private static final int MAX_BUFFER = 4 + WireCodec.MAX_FRAME;
+	private static final int SHUTDOWN_TIMEOUT = 5000;
+
+	/*
+	 * Handler
+	 * Receives requests from the server.
+	 */
+	interface Handler {
+		/* Handle a request line, calling reply exactly once, possibly later. */
+		void handle(String line, Reply reply);
+
+		/*
+		 * Handle a binary frame, starting at its opcode, calling reply exactly
+		 * once. The frame is only valid until this method returns, so any
+		 * arguments must be decoded before deferring work. The response should
+		 * be built with codec.
+		 */
+		void handle(WireCodec codec, ByteBuffer frame, FrameReply reply);
+	}
+
+	/*
+	 * Reply
+	 * Sends the response to one request. A null response closes the connection.
+	 */
+	interface Reply {
+		void send(String response);
+	}
+
+	/*
+	 * FrameReply
+	 * Sends the response frame to one request. A frame may come in several
+	 * buffers, written in order by gathering writes, so a large value can be
+	 * sent from where it is stored. Null closes the connection, and so does
+	 * an ERROR frame once it is written: the request may not have been
+	 * decoded, so the endpoints it defined were never interned and the
+	 * connection's codecs are out of step.
+	 */
+	interface FrameReply {
+		void send(ByteBuffer... frame);
+	}
+
+	private ServerSocketChannel server;
+	private Selector acceptSelector;
+	private EventLoop[] loops;
+	private ExecutorService workers;
+	private Semaphore permits;
+	private Handler handler;
+	private volatile boolean stopping;
+	private int nextLoop;
+	private AtomicLong accepted;
+
+	/* NioServer constructor with default sizes. */
+	public NioServer(int port, Handler handler) throws IOException {
+		this(port, handler, DEFAULT_LOOPS, DEFAULT_WORKERS, DEFAULT_QUEUE);
+	}
+
+	/* NioServer constructor. */
+	public NioServer(int port, Handler handler, int numLoops, int numWorkers,
+			int queueSize) throws IOException {
+		this.handler = handler;
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		acceptSelector = Selector.open();
+		server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		loops = new EventLoop[numLoops];
+		for (int i = 0; i < numLoops; ++i) {
+			loops[i] = new EventLoop(i);
+		}
+		if (Workers.MODEL == Workers.Model.VIRTUAL) {
+			// no queue; each task parks on its own thread until it can run
+			workers = Workers.newExecutor(numWorkers);
+			permits = new Semaphore(Workers.VIRTUAL_LIMIT);
+		} else {
+			workers = new ThreadPoolExecutor(numWorkers, numWorkers,
+					0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize));
+		}
+		stopping = false;
+		nextLoop = 0;
+		accepted = new AtomicLong();
+	}
+
+	/* Run acceptor on the calling thread until stop is called. */
+	public void run() {
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+
+		while (!stopping) {
+			try {
+				acceptSelector.select();
+				if (stopping) {
+					break;
+				}
+				acceptSelector.selectedKeys().clear();
+
+				SocketChannel ch;
+				while ((ch = server.accept()) != null) {
+					accepted.incrementAndGet();
+					ch.configureBlocking(false);
+					ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					loops[nextLoop].register(ch);
+					nextLoop = (nextLoop + 1) % loops.length;
+				}
+			} catch (ClosedSelectorException | ClosedChannelException e) {
+				// stop closes the server before it sets stopping
+				break;
+			} catch (IOException e) {
+				if (!stopping) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		// wait for event loops to flush and close their connections
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/* Run task on the worker pool. Return false if the pool is saturated. */
+	public boolean submit(Runnable task) {
+		if (permits == null) {
+			try {
+				workers.execute(task);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+
+		if (!permits.tryAcquire()) {
+			return false;
+		}
+		try {
+			workers.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			return false;
+		}
+	}
+
+	/* Return number of connections accepted so far. */
+	public long accepted() {
+		return accepted.get();
+	}
+
+	/*
+	 * Stop accepting, let in-flight work finish, then close all connections.
+	 * Must not be called from a worker thread.
+	 */
+	public void stop() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+
+		workers.shutdown();
+		try {
+			workers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {}
+		workers.shutdownNow();
+
+		stopping = true;
+		acceptSelector.wakeup();
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	/*
+	 * Conn
+	 * Per-connection state owned by one event loop.
+	 */
+	private static class Conn {
+		static final int UNKNOWN = 0;
+		static final int TEXT = 1;
+		static final int BINARY = 2;
+
+		final SocketChannel ch;
+		final EventLoop loop;
+		ByteBuffer in;
+		ByteBuffer[] out;
+		boolean closeAfterWrite;
+		boolean busy;
+		boolean dispatching;
+		int mode;
+		WireCodec codec;
+		SelectionKey key;
+
+		/* Conn constructor. */
+		Conn(SocketChannel ch, EventLoop loop) {
+			this.ch = ch;
+			this.loop = loop;
+			this.in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			this.out = null;
+			this.busy = false;
+			this.dispatching = false;
+			this.mode = UNKNOWN;
+		}
+	}
+
+	/*
+	 * EventLoop
+	 * Selector thread that reads, frames and writes for its connections.
+	 */
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		final Queue<Runnable> tasks;
+
+		/* EventLoop constructor. */
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "nio-loop-" + index);
+			thread.setDaemon(true);
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+		}
+
+		/* Hand a newly accepted channel to this loop. */
+		void register(SocketChannel ch) {
+			execute(() -> {
+				try {
+					Conn c = new Conn(ch, this);
+					c.key = ch.register(selector, SelectionKey.OP_READ, c);
+				} catch (IOException e) {
+					closeChannel(ch);
+				}
+			});
+		}
+
+		/* Run task on this loop's thread. */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		/* Run method. */
+		public void run() {
+			while (!stopping) {
+				try {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+						Conn c = (Conn) k.attachment();
+						if (!k.isValid()) {
+							continue;
+						}
+						if (k.isReadable()) {
+							read(c);
+						}
+						if (k.isValid() && k.isWritable()) {
+							write(c);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			// flush replies queued during shutdown, then close everything
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+			for (SelectionKey k : selector.keys()) {
+				closeChannel((SocketChannel) k.channel());
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {}
+		}
+
+		/* Read available bytes and dispatch complete requests. */
+		private void read(Conn c) {
+			int n;
+			try {
+				if (!c.in.hasRemaining()) {
+					if (c.in.capacity() >= MAX_BUFFER) {
+						// no request is this long
+						close(c);
+						return;
+					}
+					ByteBuffer bigger = ByteBuffer.allocate(
+							Math.min(c.in.capacity() * 2, MAX_BUFFER));
+					c.in.flip();
+					bigger.put(c.in);
+					c.in = bigger;
+				}
+				n = c.ch.read(c.in);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close(c);
+				return;
+			}
+			dispatch(c);
+		}
+
+		/* Dispatch buffered requests while the connection is idle. */
+		private void dispatch(Conn c) {
+			if (c.dispatching) {
+				return;
+			}
+			c.dispatching = true;
+			try {
+				boolean more = true;
+				while (more && !c.busy && c.key.isValid()) {
+					switch (c.mode) {
+						case Conn.TEXT:
+							more = dispatchLine(c);
+							break;
+						case Conn.BINARY:
+							more = dispatchFrame(c);
+							break;
+						default:
+							more = handshake(c);
+					}
+				}
+			} finally {
+				c.dispatching = false;
+			}
+		}
+
+		/* Pick protocol from the first bytes. Return whether one was picked. */
+		private boolean handshake(Conn c) {
+			if (c.in.position() < 1) {
+				return false;
+			}
+			if (c.in.get(0) != WireCodec.MAGIC) {
+				c.mode = Conn.TEXT;
+				return true;
+			}
+			if (c.in.position() < 2) {
+				return false;
+			}
+
+			// answer with the version we speak; a mismatch closes the connection
+			byte version = c.in.get(1);
+			consume(c, 2);
+			c.mode = Conn.BINARY;
+			c.codec = new WireCodec();
+			c.busy = true;
+			c.out = new ByteBuffer[] {
+					ByteBuffer.wrap(new byte[] { WireCodec.VERSION }) };
+			write(c);
+			if (version != WireCodec.VERSION) {
+				close(c);
+				return false;
+			}
+			return true;
+		}
+
+		/* Dispatch one buffered line. Return whether one was found. */
+		private boolean dispatchLine(Conn c) {
+			// find end of line in buffered input
+			int end = -1;
+			for (int i = 0; i < c.in.position(); ++i) {
+				if (c.in.get(i) == '\n') {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) {
+				return false;
+			}
+
+			int len = (end > 0 && c.in.get(end - 1) == '\r') ? end - 1 : end;
+			String line = new String(c.in.array(), 0, len, Utils.CHARSET);
+			consume(c, end + 1);
+
+			// serve one request at a time per connection, in order
+			c.busy = true;
+			c.key.interestOps(0);
+			try {
+				handler.handle(line, response -> reply(c, response));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				reply(c, (String) null);
+			}
+			return true;
+		}
+
+		/* Dispatch one buffered frame. Return whether one was found. */
+		private boolean dispatchFrame(Conn c) {
+			if (c.in.position() < 4) {
+				return false;
+			}
+			int len = c.in.getInt(0);
+			if (len < 1 || len > WireCodec.MAX_FRAME) {
+				close(c);
+				return false;
+			}
+			if (c.in.position() < 4 + len) {
+				return false;
+			}
+
+			ByteBuffer frame = c.in.duplicate();
+			frame.limit(4 + len);
+			frame.position(4);
+
+			c.busy = true;
+			c.key.interestOps(0);
+			try {
+				handler.handle(c.codec, frame, response -> reply(c, response));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				reply(c, (ByteBuffer[]) null);
+			}
+			consume(c, 4 + len);
+			return true;
+		}
+
+		/*
+		 * Drop the first n buffered input bytes. A buffer grown for a large
+		 * request is given back once what is left fits the usual size, so one
+		 * large frame does not hold its memory for the life of the connection.
+		 */
+		private void consume(Conn c, int n) {
+			c.in.flip();
+			c.in.position(n);
+			if (c.in.capacity() > READ_BUFFER_SIZE &&
+					c.in.remaining() <= READ_BUFFER_SIZE) {
+				ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				smaller.put(c.in);
+				c.in = smaller;
+				return;
+			}
+			c.in.compact();
+		}
+
+		/* Queue text response for c, from any thread. */
+		private void reply(Conn c, String response) {
+			reply(c, response == null ? null : new ByteBuffer[] {
+					ByteBuffer.wrap((response + "\r\n").getBytes(Utils.CHARSET)) });
+		}
+
+		/* Queue response buffers for c, from any thread. */
+		private void reply(Conn c, ByteBuffer[] response) {
+			if (Thread.currentThread() != thread) {
+				execute(() -> reply(c, response));
+				return;
+			}
+			if (response == null || response.length == 0 || response[0] == null) {
+				close(c);
+				return;
+			}
+
+			c.out = response;
+			c.closeAfterWrite = c.mode == Conn.BINARY && isError(response[0]);
+			write(c);
+		}
+
+		/* Return whether frame answers with the ERROR status. */
+		private boolean isError(ByteBuffer frame) {
+			return frame.remaining() > 4 &&
+					frame.get(frame.position() + 4) == WireCodec.ERROR;
+		}
+
+		/* Write pending output; resume reading once it has all been sent. */
+		private void write(Conn c) {
+			if (c.out == null) {
+				return;
+			}
+			try {
+				c.ch.write(c.out);
+			} catch (IOException e) {
+				close(c);
+				return;
+			}
+			if (!c.key.isValid()) {
+				return;
+			}
+			if (c.out[c.out.length - 1].hasRemaining()) {
+				c.key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			c.out = null;
+			if (c.closeAfterWrite) {
+				close(c);
+				return;
+			}
+			c.busy = false;
+			c.key.interestOps(SelectionKey.OP_READ);
+			dispatch(c);
+		}
+
+		/* Close connection. */
+		private void close(Conn c) {
+			if (c.key != null) {
+				c.key.cancel();
+			}
+			closeChannel(c.ch);
+		}
+	}
+
+	/* Close channel, ignoring errors. */
+	private static void closeChannel(SocketChannel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {}
+	}
+}
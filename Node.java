@@ -1,11 +1,30 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 /* 
  * Node
- * Implementation for a node.
+ * Implementation for a node. Nodes talk to each other in WireCodec frames over
+ * pooled connections; the text protocol, one line per request and response,
+ * stays available for NodeProgram and for debugging (run with -Dchord.text=true
+ * to make nodes use it between themselves too). Requests are
+ * served by an NioServer: lookups of local state are answered on its event
+ * loops, and anything that may call other nodes runs on its worker pool.
+ *
+ * Asynchronous requests go out through an NioClient, which pipelines them on
+ * a few connections per peer from a single thread. Work that blocks on other
+ * nodes runs on platform thread pools, or on a virtual thread per request with
+ * -Dchord.threads=VIRTUAL (see Workers).
+ *
+ * Each request served or sent is recorded in the node's Metrics, which the
+ * STATS command returns on one line.
+ *
+ * A node may also host VirtualNodes, further ring positions that share its
+ * server, connections and threads. Requests between nodes name the position
+ * they are for by its key.
  */
 public class Node extends AbstractNode implements Runnable {
 	public static final String CREATE = "CREATE";
@@ -13,6 +32,7 @@ public class Node extends AbstractNode implements Runnable {
 	public static final String LEAVE = "LEAVE";
 	public static final String GET = "GET";
 	public static final String PUT = "PUT";
+	public static final String STATS = "STATS";
 
 	public static final String PRE_FINGER = "PRE_FINGER";
 	public static final String GET_SUCC = "GET_SUCC";
@@ -21,34 +41,132 @@ public class Node extends AbstractNode implements Runnable {
 	public static final String GIVE_ITEM = "GIVE_ITEM";
 	public static final String NOTIFY = "NOTIFY";
 	public static final String IS_REACHABLE = "IS_REACHABLE";
+	public static final String GET_OWNED = "GET_OWNED";
+	public static final String GIVE_OWNED = "GIVE_OWNED";
+	public static final String NOT_OWNER = "NOT_OWNER";
+	public static final String LOOKUP = "LOOKUP";
+	public static final String LOOKUP_DONE = "LOOKUP_DONE";
+	public static final String GET_SUCC_LIST = "GET_SUCC_LIST";
+	public static final String LEAVING = "LEAVING";
+	public static final String GET_FINGERS = "GET_FINGERS";
+	public static final String GIVE_REPLICA = "GIVE_REPLICA";
+	public static final String DROP_REPLICAS = "DROP_REPLICAS";
+	public static final String GET_REPLICA = "GET_REPLICA";
+	public static final String GET_OWNED_ITEMS = "GET_OWNED_ITEMS";
+	public static final String GIVE_OWNED_ITEMS = "GIVE_OWNED_ITEMS";
+	public static final String GET_BLOB = "GET_BLOB";
+	public static final String GIVE_BLOB = "GIVE_BLOB";
+	public static final String GIVE_BLOBS = "GIVE_BLOBS";
+	public static final String GET_LEASED = "GET_LEASED";
 
 	private static final String[] CORE_VALUES = new String[] {
-			CREATE, JOIN, LEAVE, GET, PUT
+			CREATE, JOIN, LEAVE, GET, PUT, STATS
 	};
 	private static final String[] ABSTRACT_VALUES = new String[] {
 			PRE_FINGER, GET_SUCC, GET_PRED, GET_ITEM,
-			GIVE_ITEM, NOTIFY, IS_REACHABLE
+			GIVE_ITEM, NOTIFY, IS_REACHABLE, GET_OWNED, GIVE_OWNED,
+			LOOKUP, LOOKUP_DONE, GET_SUCC_LIST, LEAVING, GET_FINGERS,
+			GIVE_REPLICA, DROP_REPLICAS, GET_REPLICA, GET_OWNED_ITEMS,
+			GIVE_OWNED_ITEMS, GET_BLOB, GIVE_BLOB, GIVE_BLOBS, GET_LEASED
 	};
 	private static final Set<String> CORE_SET =
 			new HashSet<String>(Arrays.asList(CORE_VALUES));
 	private static final Set<String> ABSTRACT_SET =
 			new HashSet<String>(Arrays.asList(ABSTRACT_VALUES));
 
-	private static final int PERIODIC_DELAY = 200;
+	public static final String OK = "OK";
+
+	// prefix naming the ring position a node-to-node text request is for
+	public static final String TARGET = "@";
+
+	// prefix of a byte-array value in text requests, followed by its base64
+	public static final String BLOB = ":";
+
+	public static final boolean USE_BINARY = !Boolean.getBoolean("chord.text");
+
+	private static final int MIN_PERIODIC_DELAY = 50;
+	private static final int MAX_PERIODIC_DELAY = 2000;
+	private static final int FINGER_LOOKUPS = 4;
+	static final int GIVE_CHUNK = 4096;
+	static final int GIVE_WINDOW = 4;
+	// a GIVE_BLOBS chunk is sent once it holds this many bytes of values
+	private static final int GIVE_BLOB_BYTES = 1 << 20;
+	// GIVE_ITEMS and GIVE_REPLICAS count follows length, opcode and target key
+	private static final int COUNT_OFFSET = 4 + 1 + 8;
+	private static final int CHECKPOINT_CHECK = 5000;
+
+	// run with -Dchord.stats=<ms> to print this node's metrics that often
+	private static final long STATS_INTERVAL = Long.getLong("chord.stats", 0);
 
 	private ScheduledExecutorService executor;
 	private ScheduledFuture<?> periodicFuture;
+	private ScheduledFuture<?> heartbeatFuture;
 	private boolean periodicScheduled;
-	private ArrayList<Thread> threads;
-	private ServerSocket ss;
+	private int periodicDelay;
+	private long nextPeriodic;
+	private ExecutorService fingerPool;
+	private ExecutorService requestPool;
+	private ExecutorService replicaPool;
+	private ConnectionPool pool;
+	private NioClient client;
+	private NioServer server;
+	private List<AbstractNode> positions;
+	private Map<Long, AbstractNode> hosted;
+	private File dataDir;
+	private ItemLog.SyncPolicy syncPolicy;
+	private Lock roundLock;
 	
 	/* Node constructor. */
 	public Node(String host, int port) throws IOException {
 		super(host, port);
-		executor = Executors.newScheduledThreadPool(1);
+		// heartbeats get their own thread so a slow peer cannot delay them
+		executor = Executors.newScheduledThreadPool(2);
+		fingerPool = Executors.newFixedThreadPool(FINGER_LOOKUPS);
+		// blocking text requests share the lookup pool unless threads are cheap
+		requestPool = Workers.MODEL == Workers.Model.VIRTUAL ?
+				Workers.newExecutor(FINGER_LOOKUPS) : fingerPool;
+		replicaPool = Executors.newSingleThreadExecutor();
 		periodicScheduled = false;
-		threads = new ArrayList<Thread>();
-		ss = new ServerSocket(port);
+		pool = new ConnectionPool(USE_BINARY);
+		client = new NioClient();
+		positions = new CopyOnWriteArrayList<AbstractNode>();
+		positions.add(this);
+		hosted = new ConcurrentHashMap<Long, AbstractNode>();
+		hosted.put(myEp.key, this);
+		// a lock rather than the monitor, which would pin a virtual thread
+		roundLock = new ReentrantLock();
+		server = new NioServer(port, new NioServer.Handler() {
+			public void handle(String line, NioServer.Reply reply) {
+				handleRequest(line, reply);
+			}
+
+			public void handle(WireCodec codec, ByteBuffer frame,
+					NioServer.FrameReply reply) {
+				// time from arrival to response, including any wait for a worker
+				long start = System.nanoTime();
+				String op = WireCodec.name(frame.get(frame.position()));
+				handleFrame(codec, frame, response -> {
+					reply.send(response);
+					metrics.served(op, start);
+				});
+			}
+		});
+		if (STATS_INTERVAL > 0) {
+			executor.scheduleAtFixedRate(() -> System.out.println(
+					"[STATS] " + myEp + " " + stats()),
+					STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/* Node constructor with items kept durable in dataDir. */
+	public Node(String host, int port, File dataDir, ItemLog.SyncPolicy policy)
+			throws IOException {
+		this(host, port);
+		this.dataDir = dataDir;
+		syncPolicy = policy;
+		openItemLog(dataDir, policy);
+		executor.scheduleWithFixedDelay(() -> rCheckpoint(),
+				CHECKPOINT_CHECK, CHECKPOINT_CHECK, TimeUnit.MILLISECONDS);
 	}
 
 	/* Verify input number of arguments. */
@@ -58,264 +176,1024 @@ public class Node extends AbstractNode implements Runnable {
 				(info[0].equals(LEAVE) && info.length != 1) ||
 				(info[0].equals(GET) && info.length != 2) ||
 				(info[0].equals(PUT) && info.length != 3) ||
+				(info[0].equals(STATS) && info.length != 1) ||
 				(info[0].equals(PRE_FINGER) && info.length != 2) ||
 				(info[0].equals(GET_SUCC) && info.length != 1 && info.length != 2) ||
 				(info[0].equals(GET_PRED) && info.length != 1) ||
+				(info[0].equals(GET_SUCC_LIST) && info.length != 1) ||
+				(info[0].equals(GET_FINGERS) && info.length != 1) ||
 				(info[0].equals(GET_ITEM) && info.length != 2) ||
 				(info[0].equals(GIVE_ITEM) && info.length != 3) ||
+				(info[0].equals(GET_OWNED) && info.length != 2) ||
+				(info[0].equals(GIVE_OWNED) && info.length != 3) ||
+				(info[0].equals(LOOKUP) && info.length != 5) ||
+				(info[0].equals(LOOKUP_DONE) && info.length != 4) ||
+				(info[0].equals(LEAVING) && info.length != 3) ||
 				(info[0].equals(NOTIFY) && info.length != 2) ||
-				(info[0].equals(IS_REACHABLE) && info.length != 1);
+				(info[0].equals(IS_REACHABLE) && info.length != 1) ||
+				(info[0].equals(GIVE_REPLICA) && info.length != 4) ||
+				(info[0].equals(DROP_REPLICAS) && info.length != 2) ||
+				(info[0].equals(GET_REPLICA) && info.length != 3) ||
+				(info[0].equals(GET_OWNED_ITEMS) && info.length < 2) ||
+				(info[0].equals(GIVE_OWNED_ITEMS) &&
+						(info.length < 3 || info.length % 2 == 0)) ||
+				(info[0].equals(GET_BLOB) && info.length != 2) ||
+				(info[0].equals(GIVE_BLOB) && info.length != 3) ||
+				(info[0].equals(GIVE_BLOBS) &&
+						(info.length < 3 || info.length % 2 == 0)) ||
+				(info[0].equals(GET_LEASED) && info.length != 2);
+	}
+
+	/* Return whether request can be served on an event loop without blocking. */
+	private boolean isInline(String[] info) {
+		return ABSTRACT_SET.contains(info[0]) && !info[0].equals(NOTIFY) &&
+				!(info[0].equals(GET_SUCC) && info.length == 2) &&
+				!((info[0].equals(GIVE_ITEM) || info[0].equals(GIVE_OWNED) ||
+						info[0].equals(GIVE_OWNED_ITEMS)) && itemLog != null);
+	}
+
+	/* Start periodic functions if not already started. */
+	private synchronized void schedulePeriodic() {
+		if (!periodicScheduled) {
+			periodicScheduled = true;
+			periodicDelay = MIN_PERIODIC_DELAY;
+			// tick often; rPeriodic decides whether a round is due
+			periodicFuture = executor.scheduleWithFixedDelay(() -> rPeriodic(),
+					0, MIN_PERIODIC_DELAY, TimeUnit.MILLISECONDS);
+			heartbeatFuture = executor.scheduleAtFixedRate(() -> rHeartbeat(),
+					0, detector.interval(), TimeUnit.MILLISECONDS);
+			executor.scheduleAtFixedRate(() -> pool.evictIdle(),
+					ConnectionPool.IDLE_TIMEOUT, ConnectionPool.IDLE_TIMEOUT / 2,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/* Runnable leave. */
+	private void rLeave() {
+		roundLock.lock();
+		try {
+			leave();
+		} finally {
+			roundLock.unlock();
+		}
 	}
 
-	/* Initialize socket from endpoint. */
-	private static Socket getSocket(Endpoint ep) throws IOException {
-		return new Socket(ep.host, ep.port);
+	/* Runnable checkpoint. */
+	private void rCheckpoint() {
+		for (AbstractNode node : positions) {
+			try {
+				if (node.itemLog.shouldCheckpoint()) {
+					node.itemLog.checkpoint(node.myItems);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
-	/* Close socket under try-catch. */
-	private static void closeSocket(Socket s) {
+	/* Runnable heartbeat. */
+	private void rHeartbeat() {
 		try {
-			s.close();
-		} catch (IOException e) {
+			// positions share the detector, so it keeps every position's peers
+			Set<Endpoint> monitored = new HashSet<Endpoint>();
+			List<CompletableFuture<Void>> rounds =
+					new ArrayList<CompletableFuture<Void>>();
+			for (AbstractNode node : positions) {
+				rounds.add(node.heartbeat(monitored));
+			}
+			CompletableFuture.allOf(rounds.toArray(new CompletableFuture<?>[0]))
+					.join();
+			detector.retain(monitored);
+		} catch (RuntimeException e) {
+			// keep the schedule alive; the next round retries
 			e.printStackTrace();
 		}
 	}
 
-	/* Runnable create. */
-	private void rCreate(Socket s) {
-		create();
-		closeSocket(s);
-		if (!periodicScheduled) {
-			periodicScheduled = true;
-			// execute periodic function
-			periodicFuture = executor.scheduleAtFixedRate(() -> rPeriodic(),
-					0, PERIODIC_DELAY, TimeUnit.MILLISECONDS);
+	/*
+	 * Runnable periodic. A round runs as soon as the ring changes, and then
+	 * every MIN_PERIODIC_DELAY while it keeps changing; once it is stable the
+	 * delay doubles up to MAX_PERIODIC_DELAY.
+	 */
+	private void rPeriodic() {
+		roundLock.lock();
+		try {
+			if (!anyChanged() && System.currentTimeMillis() < nextPeriodic) {
+				return;
+			}
+
+			for (AbstractNode node : positions) {
+				node.clearChanged();
+				node.stabilize();
+				node.fixFingers();
+				node.checkPredecessor();
+			}
+
+			periodicDelay = anyChanged() ? MIN_PERIODIC_DELAY :
+					Math.min(2 * periodicDelay, MAX_PERIODIC_DELAY);
+			nextPeriodic = System.currentTimeMillis() + periodicDelay;
+		} finally {
+			roundLock.unlock();
 		}
 	}
 
-	/* Runnable join. */
-	private void rJoin(Socket s, Endpoint ep) {
-		join(ep);
-		closeSocket(s);
-		if (!periodicScheduled) {
-			periodicScheduled = true;
-			// execute periodic function
-			periodicFuture = executor.scheduleAtFixedRate(() -> rPeriodic(),
-					0, PERIODIC_DELAY, TimeUnit.MILLISECONDS);
+	/* Return whether the ring changed around any position of this node. */
+	private boolean anyChanged() {
+		for (AbstractNode node : positions) {
+			if (node.isChanged()) {
+				return true;
+			}
 		}
+		return false;
 	}
 
-	/* Runnable leave. */
-	private synchronized void rLeave(Socket s) {
-		leave();
-		closeSocket(s);
+	/*
+	 * Host count ring positions in all, this node and count - 1 virtual
+	 * nodes. Call before create or join.
+	 */
+	public void setVirtualNodes(int count) throws IOException {
+		if (count < 1) {
+			throw new IllegalArgumentException("need at least one position: " + count);
+		}
+		for (int i = positions.size(); i < count; ++i) {
+			VirtualNode node = new VirtualNode(this, i);
+			if (dataDir != null) {
+				node.openItemLog(new File(dataDir, "v" + i), syncPolicy);
+			}
+			positions.add(node);
+			hosted.put(node.myEp.key, node);
+		}
+	}
+
+	/*
+	 * Return this node's metrics on one line, with the items and replicas
+	 * of all its positions.
+	 */
+	public String stats() {
+		long items = 0;
+		long replicaItems = 0;
+		long blobs = 0;
+		for (AbstractNode node : positions) {
+			items += node.myItems.size();
+			blobs += node.myBlobs.size();
+			for (LongLongMap copies : node.replicas.values()) {
+				replicaItems += copies.size();
+			}
+		}
+		return metrics.report(items, replicaItems, blobs, locations, nearCache);
 	}
 
-	/* Runnable get. */
-	private void rGet(Socket s, long key) {
-		Long getValue = get(key);
+	/* Return the ring positions of this node, itself first. */
+	public List<AbstractNode> getPositions() {
+		return Collections.unmodifiableList(positions);
+	}
 
-		try {
-			DataOutputStream sdos = Utils.getOutputStream(s);
-			sdos.writeBytes(Objects.toString(getValue));
-			sdos.flush();
-			closeSocket(s);
-		} catch (IOException e) {
-			e.printStackTrace();
+	@Override
+	/* Create new chord, which the virtual nodes then join. */
+	public void create() {
+		super.create();
+		joinVirtualNodes();
+	}
+
+	@Override
+	/* Join existing chord, followed by the virtual nodes. */
+	public void join(Endpoint ep) {
+		super.join(ep);
+		joinVirtualNodes();
+	}
+
+	/* Join virtual nodes through this node, which resolves them locally. */
+	private void joinVirtualNodes() {
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.join(myEp);
+			}
+		}
+	}
+
+	@Override
+	/*
+	 * Leave chord with the virtual nodes first. Each one is suspected as it
+	 * goes, so the positions still here hand their items past it.
+	 */
+	public void leave() {
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.leave();
+				positions.remove(node);
+				hosted.remove(node.myEp.key);
+				detector.failed(node.myEp);
+				closeItemLog(node);
+			}
 		}
+		super.leave();
 	}
 
-	/* Runnable put. */
-	private void rPut(Socket s, long key, long value) {
-		put(key, value);
-		closeSocket(s);
+	@Override
+	/* Route lookups of every position this way. */
+	public void setRouting(Routing routing) {
+		super.setRouting(routing);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setRouting(routing);
+			}
+		}
 	}
 
-	/* Runnable periodic. */
-	private synchronized void rPeriodic() {
-		stabilize();
-		fixFingers();
-		checkPredecessor();
+	@Override
+	/* Replicate the items of every position to k successors. */
+	public void setReplication(int k) {
+		super.setReplication(k);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setReplication(k);
+			}
+		}
 	}
 
 	@Override
-	/* Run method. */
-	public void run() {
-		while (true) {
-			try {
-				// accept socket and set up socket streams
-				Socket s = ss.accept();
-				BufferedReader sbr = Utils.getInputStream(s);
-				DataOutputStream sdos = null;
-
-				// read in single line of input
-				String line = sbr.readLine();
-				String[] info = line.split("\\s+");
-
-				// verify number of arguments
-				if (verifyNumArgs(info)) {
-					System.err.println("ERROR: input invalid");
-					s.close();
-					continue;
-				}
+	/* Serve the gets of every position this way. */
+	public void setReadConsistency(ReadConsistency consistency) {
+		super.setReadConsistency(consistency);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setReadConsistency(consistency);
+			}
+		}
+	}
 
-				Thread thread = null;
-
-				Endpoint ep;
-				String msg;
-				String remotehost;
-				int remoteport;
-				long id;
-				long key;
-				Long getValue;
-				long putValue;
-
-				// set up socket output stream
-				if (ABSTRACT_SET.contains(info[0])) {
-					sdos = Utils.getOutputStream(s);
-				}
-
-				// respond to socket input
-				switch (info[0]) {
-					case CREATE:
-						thread = new Thread(() -> rCreate(s));
-						break;
-					case JOIN:
-						remotehost = info[1];
-						remoteport = Integer.parseInt(info[2]);
-						ep = new Endpoint(remotehost, remoteport);
-						thread = new Thread(() -> rJoin(s, ep));
-						break;
-					case LEAVE:
-						ss.close();
-						thread = new Thread(() -> rLeave(s));
-						break;
-					case GET:
-						key = Long.parseLong(info[1]);
-						thread = new Thread(() -> rGet(s, key));
-						break;
-					case PUT:
-						key = Long.parseLong(info[1]);
-						putValue = Long.parseLong(info[2]);
-						thread = new Thread(() -> rPut(s, key, putValue));
-						break;
-					case PRE_FINGER:
-						id = Long.parseLong(info[1]);
-						ep = closestPrecedingFinger(myEp, id);
-						msg = Endpoint.serialize(ep);
-						sdos.writeBytes(msg);
-						sdos.flush();
-						break;
-					case GET_SUCC:
-						if (info.length == 1) {
-							ep = getSuccessor(myEp);
-						} else {
-							id = Long.parseLong(info[1]);
-							ep = getSuccessor(myEp, id);
-						}
-						msg = Endpoint.serialize(ep);
-						sdos.writeBytes(msg);
-						sdos.flush();
-						break;
-					case GET_PRED:
-						ep = getPredecessor(myEp);
-						msg = Endpoint.serialize(ep);
-						sdos.writeBytes(msg);
-						sdos.flush();
-						break;
-					case GET_ITEM:
-						key = Long.parseLong(info[1]);
-						getValue = getItem(myEp, key);
-						msg = Objects.toString(getValue);
-						sdos.writeBytes(msg);
-						sdos.flush();
-						break;
-					case GIVE_ITEM:
-						key = Long.parseLong(info[1]);
-						putValue = Long.parseLong(info[2]);
-						giveItem(myEp, key, putValue);
-						break;
-					case NOTIFY:
-						ep = Endpoint.deserialize(info[1]);
-						processNotification(ep);
-						break;
-					case IS_REACHABLE:
-						sdos.writeBytes(IS_REACHABLE);
-						sdos.flush();
-						break;
-					default:
-						System.err.println("ERROR: input invalid");
-				}
-
-				// execute separate thread
-				if (CORE_SET.contains(info[0])) {
-					threads.add(thread);
-					thread.start();
-
-					// exit while loop if leaving
-					if (info[0].equals(LEAVE)) {
-						break;
-					}
+	@Override
+	/* Keep one near cache for all positions of this node. */
+	public void setNearCache(NearCache cache) {
+		super.setNearCache(cache);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setNearCache(cache);
+			}
+		}
+	}
+
+	@Override
+	/* Grant the same lease from all positions of this node. */
+	public void setLease(int millis) {
+		super.setLease(millis);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setLease(millis);
+			}
+		}
+	}
+
+	@Override
+	/* Replace the failure detector shared by every position. */
+	public void setFailureDetector(FailureDetector detector) {
+		super.setFailureDetector(detector);
+		for (AbstractNode node : positions) {
+			if (node != this) {
+				node.setFailureDetector(detector);
+			}
+		}
+	}
+
+	/* Return the position of this node at ep, or null if ep is elsewhere. */
+	private AbstractNode local(Endpoint ep) {
+		if (ep.port != myEp.port || !ep.host.equals(myEp.host)) {
+			return null;
+		}
+		return hosted.get(ep.key);
+	}
+
+	/* Respond to a single request line for node. Return the response line. */
+	private String handle(AbstractNode node, String[] info) {
+		Endpoint ep;
+		long id;
+		long key;
+
+		switch (info[0]) {
+			case CREATE:
+				create();
+				schedulePeriodic();
+				return OK;
+			case JOIN:
+				ep = new Endpoint(info[1], Integer.parseInt(info[2]));
+				try {
+					join(ep);
+				} catch (IllegalStateException e) {
+					return "ERROR: " + e.getMessage();
+				}
+				schedulePeriodic();
+				return OK;
+			case LEAVE:
+				// hand off items before refusing new connections
+				rLeave();
+				if (periodicScheduled) {
+					periodicFuture.cancel(false);
+					heartbeatFuture.cancel(false);
+				}
+				executor.execute(() -> server.stop());
+				return OK;
+			case GET:
+				key = Long.parseLong(info[1]);
+				return Objects.toString(node.get(key));
+			case PUT:
+				key = Long.parseLong(info[1]);
+				try {
+					node.put(key, Long.parseLong(info[2]));
+				} catch (IllegalStateException e) {
+					return "ERROR: " + e.getMessage();
+				}
+				return OK;
+			case STATS:
+				return stats();
+			case PRE_FINGER:
+				id = Long.parseLong(info[1]);
+				return Endpoint.serialize(closestPrecedingFinger(node.myEp, id));
+			case GET_SUCC:
+				if (info.length == 1) {
+					ep = getSuccessor(node.myEp);
 				} else {
-					s.close();
+					id = Long.parseLong(info[1]);
+					ep = getSuccessor(node.myEp, id);
+				}
+				return Endpoint.serialize(ep);
+			case GET_PRED:
+				return Endpoint.serialize(getPredecessor(node.myEp));
+			case GET_SUCC_LIST:
+				StringJoiner list = new StringJoiner(" ");
+				for (Endpoint succ : node.getSuccessorList()) {
+					list.add(Endpoint.serialize(succ));
+				}
+				return list.toString();
+			case GET_FINGERS:
+				StringJoiner table = new StringJoiner(" ");
+				for (Endpoint f : node.getFingerTable()) {
+					table.add(Endpoint.serialize(f));
+				}
+				return table.toString();
+			case GET_ITEM:
+				key = Long.parseLong(info[1]);
+				return Objects.toString(getItem(node.myEp, key));
+			case GIVE_ITEM:
+				key = Long.parseLong(info[1]);
+				giveItem(node.myEp, key, Long.parseLong(info[2]));
+				return OK;
+			case GET_OWNED:
+				key = Long.parseLong(info[1]);
+				if (!node.owns(Utils.hash(key))) {
+					return NOT_OWNER;
+				}
+				return Objects.toString(node.myItems.get(key));
+			case GIVE_OWNED:
+				key = Long.parseLong(info[1]);
+				if (!node.owns(Utils.hash(key))) {
+					return NOT_OWNER;
+				}
+				node.storeItem(key, Long.parseLong(info[2]));
+				return OK;
+			case GET_LEASED:
+				NearCache.Lease lease = node.leasedItem(Long.parseLong(info[1]));
+				if (lease == null) {
+					return NOT_OWNER;
+				}
+				return lease.value + " " + lease.millis;
+			case LOOKUP:
+				// acknowledge at once; the answer goes straight to the origin
+				long target = Long.parseLong(info[1]);
+				Endpoint origin = Endpoint.deserialize(info[2]);
+				long routeId = Long.parseLong(info[3]);
+				int hops = Integer.parseInt(info[4]);
+				server.submit(() -> node.routeLookup(target, origin, routeId, hops));
+				return OK;
+			case LOOKUP_DONE:
+				node.completeLookup(Long.parseLong(info[1]), Endpoint.deserialize(info[2]),
+						Endpoint.deserialize(info[3]));
+				return OK;
+			case LEAVING:
+				node.processLeave(Endpoint.deserialize(info[1]),
+						Endpoint.deserialize(info[2]));
+				return OK;
+			case NOTIFY:
+				node.processNotification(Endpoint.deserialize(info[1]));
+				return OK;
+			case IS_REACHABLE:
+				return IS_REACHABLE;
+			case GIVE_REPLICA:
+				LongLongMap copy = new LongLongMap(1);
+				copy.put(Long.parseLong(info[2]), Long.parseLong(info[3]));
+				node.storeReplicas(Endpoint.deserialize(info[1]), copy);
+				return OK;
+			case DROP_REPLICAS:
+				node.removeReplicas(Endpoint.deserialize(info[1]));
+				return OK;
+			case GET_REPLICA:
+				key = Long.parseLong(info[2]);
+				return Objects.toString(node.replicaItem(Endpoint.deserialize(info[1]), key));
+			case GET_OWNED_ITEMS:
+				long[] keys = new long[info.length - 1];
+				for (int i = 0; i < keys.length; ++i) {
+					keys[i] = Long.parseLong(info[i + 1]);
+				}
+				Long[] found = node.ownedItems(keys);
+				if (found == null) {
+					return NOT_OWNER;
+				}
+				StringJoiner values = new StringJoiner(" ");
+				for (Long value : found) {
+					values.add(Objects.toString(value));
+				}
+				return values.toString();
+			case GIVE_OWNED_ITEMS:
+				long[] givenKeys = new long[(info.length - 1) / 2];
+				long[] givenValues = new long[givenKeys.length];
+				for (int i = 0; i < givenKeys.length; ++i) {
+					givenKeys[i] = Long.parseLong(info[2 * i + 1]);
+					givenValues[i] = Long.parseLong(info[2 * i + 2]);
+				}
+				return node.storeOwnedItems(givenKeys, givenValues) ? OK : NOT_OWNER;
+			case GET_BLOB:
+				key = Long.parseLong(info[1]);
+				if (!node.owns(Utils.hash(key))) {
+					return NOT_OWNER;
 				}
+				byte[] blob = node.myBlobs.get(key);
+				return blob == null ? "null" : encodeBlob(blob);
+			case GIVE_BLOB:
+				key = Long.parseLong(info[1]);
+				if (!node.owns(Utils.hash(key))) {
+					return NOT_OWNER;
+				}
+				node.storeBlob(key, ByteBuffer.wrap(decodeBlob(info[2])));
+				return OK;
+			case GIVE_BLOBS:
+				for (int i = 1; i < info.length; i += 2) {
+					node.storeBlob(Long.parseLong(info[i]),
+							ByteBuffer.wrap(decodeBlob(info[i + 1])));
+				}
+				metrics.takenOver(info.length / 2);
+				return OK;
+			default:
+				return null;
+		}
+	}
+
+	/* Handle request line from the server, off the event loop if it may block. */
+	private void handleRequest(String line, NioServer.Reply reply) {
+		long start = System.nanoTime();
+		String[] info = line.split("\\s+");
+
+		// requests from other nodes name the position they are for
+		AbstractNode node = this;
+		if (info[0].startsWith(TARGET)) {
+			try {
+				node = hosted.get(Long.parseLong(info[0].substring(TARGET.length())));
+			} catch (NumberFormatException e) {
+				node = null;
+			}
+			info = Arrays.copyOfRange(info, 1, info.length);
+		}
+		if (node == null) {
+			// a position that left, or never was here
+			reply.send("null");
+			return;
+		}
+
+		// verify number of arguments
+		if (info.length == 0 || verifyNumArgs(info)) {
+			System.err.println("ERROR: input invalid");
+			reply.send(null);
+			return;
+		}
+
+		String[] request = info;
+		AbstractNode target = node;
+		NioServer.Reply timed = response -> {
+			reply.send(response);
+			metrics.served(request[0], start);
+		};
+		Runnable task = () -> {
+			String response = null;
+			try {
+				response = handle(target, request);
 			} catch (NumberFormatException e) {
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (response == null) {
 				System.err.println("ERROR: input invalid");
-			} catch (IOException e) {
+			}
+			timed.send(response);
+		};
+
+		if (isInline(info)) {
+			task.run();
+		} else if (!server.submit(task)) {
+			// worker pool saturated; shed load rather than queue without bound
+			timed.send("null");
+		}
+	}
+
+	/* Handle binary frame from the server, off the event loop if it may block. */
+	private void handleFrame(WireCodec codec, ByteBuffer frame,
+			NioServer.FrameReply reply) {
+		long id;
+		long key;
+		Endpoint ep;
+
+		// every request frame names the position it is for after the opcode
+		byte op = frame.get();
+		AbstractNode node = hosted.get(frame.getLong());
+		if (node == null) {
+			reply.send(codec.begin(WireCodec.ERROR).finish());
+			return;
+		}
+
+		switch (op) {
+			case WireCodec.PRE_FINGER:
+				id = frame.getLong();
+				ep = closestPrecedingFinger(node.myEp, id);
+				reply.send(codec.begin(WireCodec.OK).putEndpoint(ep).finish());
+				return;
+			case WireCodec.GET_SUCC:
+				ep = getSuccessor(node.myEp);
+				reply.send(codec.begin(WireCodec.OK).putEndpoint(ep).finish());
+				return;
+			case WireCodec.GET_SUCC_ID:
+				long lookupId = frame.getLong();
+				submitFrame(codec, reply, () -> codec.begin(WireCodec.OK)
+						.putEndpoint(getSuccessor(node.myEp, lookupId)).finish());
+				return;
+			case WireCodec.GET_PRED:
+				ep = getPredecessor(node.myEp);
+				reply.send(codec.begin(WireCodec.OK).putEndpoint(ep).finish());
+				return;
+			case WireCodec.GET_SUCC_LIST:
+				Endpoint[] list = node.getSuccessorList();
+				codec.begin(WireCodec.OK).putInt(list.length);
+				for (Endpoint succ : list) {
+					codec.putEndpoint(succ);
+				}
+				reply.send(codec.finish());
+				return;
+			case WireCodec.GET_FINGERS:
+				Endpoint[] table = node.getFingerTable();
+				codec.begin(WireCodec.OK).putInt(table.length);
+				for (Endpoint f : table) {
+					codec.putEndpoint(f);
+				}
+				reply.send(codec.finish());
+				return;
+			case WireCodec.GET_ITEM:
+				key = frame.getLong();
+				reply.send(codec.begin(WireCodec.OK)
+						.putValue(getItem(node.myEp, key)).finish());
+				return;
+			case WireCodec.GIVE_ITEM:
+				long giveKey = frame.getLong();
+				long giveValue = frame.getLong();
+				if (node.itemLog == null) {
+					giveItem(node.myEp, giveKey, giveValue);
+					reply.send(codec.begin(WireCodec.OK).finish());
+					return;
+				}
+
+				// waiting for the log to sync must not hold up the event loop
+				submitFrame(codec, reply, () -> {
+					giveItem(node.myEp, giveKey, giveValue);
+					return codec.begin(WireCodec.OK).finish();
+				});
+				return;
+			case WireCodec.NOTIFY:
+				Endpoint notifier = codec.readEndpoint(frame);
+				submitFrame(codec, reply, () -> {
+					node.processNotification(notifier);
+					return codec.begin(WireCodec.OK).finish();
+				});
+				return;
+			case WireCodec.LOOKUP:
+				// acknowledge at once; the answer goes straight to the origin
+				long target = frame.getLong();
+				Endpoint origin = codec.readEndpoint(frame);
+				long routeId = frame.getLong();
+				int hops = frame.getInt();
+				boolean routed = server.submit(() ->
+						node.routeLookup(target, origin, routeId, hops));
+				reply.send(codec.begin(routed ? WireCodec.OK : WireCodec.ERROR)
+						.finish());
+				return;
+			case WireCodec.LOOKUP_DONE:
+				long doneId = frame.getLong();
+				Endpoint pred = codec.readEndpoint(frame);
+				Endpoint succ = codec.readEndpoint(frame);
+				node.completeLookup(doneId, pred, succ);
+				reply.send(codec.begin(WireCodec.OK).finish());
+				return;
+			case WireCodec.LEAVING:
+				Endpoint leaver = codec.readEndpoint(frame);
+				Endpoint leaverPred = codec.readEndpoint(frame);
+				node.processLeave(leaver, leaverPred);
+				reply.send(codec.begin(WireCodec.OK).finish());
+				return;
+			case WireCodec.IS_REACHABLE:
+				reply.send(codec.begin(WireCodec.OK).finish());
+				return;
+			case WireCodec.GET_OWNED:
+				key = frame.getLong();
+				if (!node.owns(Utils.hash(key))) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				reply.send(codec.begin(WireCodec.OK)
+						.putValue(node.myItems.get(key)).finish());
+				return;
+			case WireCodec.GET_LEASED:
+				NearCache.Lease lease = node.leasedItem(frame.getLong());
+				if (lease == null) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				reply.send(codec.begin(WireCodec.OK).putValue(lease.value)
+						.putInt(lease.millis).finish());
+				return;
+			case WireCodec.GIVE_OWNED:
+				long ownedKey = frame.getLong();
+				long ownedValue = frame.getLong();
+				if (!node.owns(Utils.hash(ownedKey))) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				if (node.itemLog == null) {
+					node.storeItem(ownedKey, ownedValue);
+					reply.send(codec.begin(WireCodec.OK).finish());
+					return;
+				}
+				submitFrame(codec, reply, () -> {
+					node.storeItem(ownedKey, ownedValue);
+					return codec.begin(WireCodec.OK).finish();
+				});
+				return;
+			case WireCodec.GIVE_ITEMS:
+				int n = frame.getInt();
+				if (node.itemLog == null) {
+					for (int i = 0; i < n; ++i) {
+						key = frame.getLong();
+						node.myItems.put(key, frame.getLong());
+					}
+					metrics.takenOver(n);
+					node.markReplicasStale();
+					reply.send(codec.begin(WireCodec.OK).putInt(n).finish());
+					return;
+				}
+
+				LongLongMap chunk = new LongLongMap(n);
+				for (int i = 0; i < n; ++i) {
+					key = frame.getLong();
+					chunk.put(key, frame.getLong());
+				}
+				submitFrame(codec, reply, () -> {
+					node.storeItems(chunk);
+					return codec.begin(WireCodec.OK).putInt(n).finish();
+				});
+				return;
+			case WireCodec.GIVE_REPLICAS:
+				int copies = frame.getInt();
+				Endpoint replicaOwner = codec.readEndpoint(frame);
+				LongLongMap replicated = new LongLongMap(copies);
+				for (int i = 0; i < copies; ++i) {
+					key = frame.getLong();
+					replicated.put(key, frame.getLong());
+				}
+				node.storeReplicas(replicaOwner, replicated);
+				reply.send(codec.begin(WireCodec.OK).putInt(copies).finish());
+				return;
+			case WireCodec.DROP_REPLICAS:
+				node.removeReplicas(codec.readEndpoint(frame));
+				reply.send(codec.begin(WireCodec.OK).finish());
+				return;
+			case WireCodec.GET_REPLICA:
+				Endpoint heldFor = codec.readEndpoint(frame);
+				key = frame.getLong();
+				reply.send(codec.begin(WireCodec.OK)
+						.putValue(node.replicaItem(heldFor, key)).finish());
+				return;
+			case WireCodec.GET_OWNED_ITEMS:
+				long[] keys = new long[frame.getInt()];
+				for (int i = 0; i < keys.length; ++i) {
+					keys[i] = frame.getLong();
+				}
+				Long[] found = node.ownedItems(keys);
+				if (found == null) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				codec.begin(WireCodec.OK).putInt(found.length);
+				for (Long value : found) {
+					codec.putValue(value);
+				}
+				reply.send(codec.finish());
+				return;
+			case WireCodec.GIVE_OWNED_ITEMS:
+				long[] givenKeys = new long[frame.getInt()];
+				long[] givenValues = new long[givenKeys.length];
+				for (int i = 0; i < givenKeys.length; ++i) {
+					givenKeys[i] = frame.getLong();
+					givenValues[i] = frame.getLong();
+				}
+				if (node.itemLog == null) {
+					reply.send(codec.begin(node.storeOwnedItems(givenKeys, givenValues) ?
+							WireCodec.OK : WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				submitFrame(codec, reply, () -> codec.begin(
+						node.storeOwnedItems(givenKeys, givenValues) ?
+						WireCodec.OK : WireCodec.NOT_OWNER).finish());
+				return;
+			case WireCodec.GET_BLOB:
+				key = frame.getLong();
+				if (!node.owns(Utils.hash(key))) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				// written to the socket straight from the store
+				reply.send(codec.begin(WireCodec.OK)
+						.finishBlob(node.myBlobs.getBuffer(key)));
+				return;
+			case WireCodec.GIVE_BLOB:
+				key = frame.getLong();
+				if (!node.owns(Utils.hash(key))) {
+					reply.send(codec.begin(WireCodec.NOT_OWNER).finish());
+					return;
+				}
+				// copied straight from the read buffer into the store
+				node.storeBlob(key, WireCodec.readBlob(frame));
+				reply.send(codec.begin(WireCodec.OK).finish());
+				return;
+			case WireCodec.GIVE_BLOBS:
+				int blobCount = frame.getInt();
+				for (int i = 0; i < blobCount; ++i) {
+					key = frame.getLong();
+					node.storeBlob(key, WireCodec.readBlob(frame));
+				}
+				metrics.takenOver(blobCount);
+				reply.send(codec.begin(WireCodec.OK).putInt(blobCount).finish());
+				return;
+			default:
+				reply.send(codec.begin(WireCodec.ERROR).finish());
+		}
+	}
+
+	/* Build frame response on the worker pool, answering ERROR if it fails. */
+	private void submitFrame(WireCodec codec, NioServer.FrameReply reply,
+			Callable<ByteBuffer> task) {
+		boolean submitted = server.submit(() -> {
+			ByteBuffer response;
+			try {
+				response = task.call();
+			} catch (Exception e) {
 				e.printStackTrace();
+				response = codec.begin(WireCodec.ERROR).finish();
 			}
+			reply.send(response);
+		});
+
+		// worker pool saturated; shed load rather than queue without bound
+		if (!submitted) {
+			reply.send(codec.begin(WireCodec.ERROR).finish());
 		}
+	}
+
+	@Override
+	/* Run method. */
+	public void run() {
+		server.run();
 
 		// cancel scheduled future and executor
-		if (periodicScheduled) {
-			periodicFuture.cancel(true);
-			executor.shutdown();
-		}
+		executor.shutdown();
+		fingerPool.shutdown();
+		requestPool.shutdown();
+		replicaPool.shutdown();
+
+		// close outgoing connections
+		pool.close();
+		client.close();
+
+		closeItemLog(this);
+	}
 
-		// join all threads
-		for (Thread thread : threads) {
+	/* Close item log of node, if it keeps one. */
+	private static void closeItemLog(AbstractNode node) {
+		if (node.itemLog != null) {
 			try {
-				thread.join();
-			} catch (InterruptedException e) {}
+				node.itemLog.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
-	/* Send a request with header and args. */
+	/* Send a request with header and args over a pooled connection. */
 	String request(Endpoint ep, String header, String args, boolean wait) {
-		String response = null;
+		String msg = String.format("%s%d %s%s\r\n", TARGET, ep.key, header, args);
+		long start = System.nanoTime();
+
+		// retry once on a fresh connection if a pooled one has gone stale
+		for (int attempt = 0; attempt < 2; ++attempt) {
+			ConnectionPool.Connection c = null;
+			try {
+				c = pool.borrow(ep);
+				c.out.writeBytes(msg);
+				c.out.flush();
+
+				// every request is answered, which keeps the connection in sync
+				String response = c.in.readLine();
+				if (response == null) {
+					throw new EOFException();
+				}
+				pool.release(c);
+				alive(ep);
+				metrics.sent(header, ep, start, true);
+				return wait ? response : null;
+			} catch (IOException e) {
+				if (c == null) {
+					// refused or timed out connecting; slower failures are left
+					// to the failure detector
+					suspect(ep);
+					break;
+				}
+				c.close();
+				// a peer that timed out is slow rather than gone; asking again
+				// would only double the wait
+				if (!c.reused || e instanceof SocketTimeoutException) {
+					break;
+				}
+			}
+		}
+
+		metrics.sent(header, ep, start, false);
+		return null;
+	}
+
+	/*
+	 * Send a binary request with opcode op over a pooled connection. Return the
+	 * decoded response, or null if the peer failed or answered ERROR.
+	 */
+	<T> T call(Endpoint ep, byte op, WireCodec.Encoder args,
+			WireCodec.Decoder<T> result) {
+		try {
+			return exchange(ep, op, args, null, result, false);
+		} catch (StaleRouteException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Like call, but for requests that ep must own. Throw StaleRouteException
+	 * if ep answers NOT_OWNER or cannot be reached.
+	 */
+	<T> T callOwner(Endpoint ep, byte op, WireCodec.Encoder args,
+			WireCodec.Decoder<T> result) throws StaleRouteException {
+		return exchange(ep, op, args, null, result, true);
+	}
+
+	/*
+	 * Like callOwner, with byte-array value body last in the request. The
+	 * bytes of body are written from where they are, not copied into the frame.
+	 */
+	<T> T callOwner(Endpoint ep, byte op, WireCodec.Encoder args, ByteBuffer body,
+			WireCodec.Decoder<T> result) throws StaleRouteException {
+		return exchange(ep, op, args, body, result, true);
+	}
+
+	/* Send binary request for call and callOwner. */
+	private <T> T exchange(Endpoint ep, byte op, WireCodec.Encoder args,
+			ByteBuffer body, WireCodec.Decoder<T> result, boolean owned)
+			throws StaleRouteException {
+		long start = System.nanoTime();
+		// retry once on a fresh connection if a pooled one has gone stale
+		for (int attempt = 0; attempt < 2; ++attempt) {
+			ConnectionPool.Connection c = null;
+			try {
+				c = pool.borrow(ep);
+				c.codec.begin(op).putLong(ep.key);
+				if (args != null) {
+					args.encode(c.codec);
+				}
+				ByteBuffer response = body == null ? c.call(c.codec.finish()) :
+						c.call(c.codec.finishBlob(body));
+
+				T ret = null;
+				byte status = response.get();
+				if (status == WireCodec.OK) {
+					ret = result.decode(c.codec, response);
+					pool.release(c);
+				} else {
+					// the peer may not have decoded the request, so the endpoints
+					// it defined are unknown there; start afresh next time
+					c.close();
+				}
+				alive(ep);
+				metrics.sent(WireCodec.name(op), ep, start, true);
+				if (owned && status != WireCodec.OK) {
+					throw new StaleRouteException(ep);
+				}
+				return ret;
+			} catch (IOException e) {
+				if (c == null) {
+					// refused or timed out connecting; slower failures are left
+					// to the failure detector
+					suspect(ep);
+					break;
+				}
+				c.close();
+				// a peer that timed out is slow rather than gone; asking again
+				// would only double the wait
+				if (!c.reused || e instanceof SocketTimeoutException) {
+					break;
+				}
+			} catch (RuntimeException e) {
+				// malformed response; the connection is out of step
+				e.printStackTrace();
+				c.close();
+				break;
+			}
+		}
+
+		metrics.sent(WireCodec.name(op), ep, start, false);
+		if (owned) {
+			throw new StaleRouteException(ep);
+		}
+		return null;
+	}
 
-		try (Socket s = getSocket(ep);) {
-			DataOutputStream sdos = Utils.getOutputStream(s);
-			BufferedReader sbr = Utils.getInputStream(s);
+	/*
+	 * Send a binary request without waiting for the response. The future
+	 * gets what call would return.
+	 */
+	<T> CompletableFuture<T> callAsync(Endpoint ep, byte op, WireCodec.Encoder args,
+			WireCodec.Decoder<T> result) {
+		long start = System.nanoTime();
+		return client.call(ep, op, args, result, false).handle((ret, e) -> {
+			metrics.sent(WireCodec.name(op), ep, start, e == null);
+			if (e == null) {
+				alive(ep);
+			} else if (unwrap(e) instanceof ConnectException) {
+				// slower failures are left to the failure detector
+				suspect(ep);
+			}
+			return ret;
+		});
+	}
 
-			// send request
-			String msg = String.format("%s%s\r\n", header, args);
-			sdos.writeBytes(msg);
-			sdos.flush();
+	/*
+	 * Like callAsync, but for requests that ep must own. The future fails
+	 * with StaleRouteException if ep answers NOT_OWNER or cannot be reached.
+	 */
+	<T> CompletableFuture<T> callOwnerAsync(Endpoint ep, byte op,
+			WireCodec.Encoder args, WireCodec.Decoder<T> result) {
+		long start = System.nanoTime();
+		return client.call(ep, op, args, result, true).handle((ret, e) -> {
+			Throwable cause = e == null ? null : unwrap(e);
+			metrics.sent(WireCodec.name(op), ep, start,
+					cause == null || cause instanceof StaleRouteException);
+			if (cause == null || cause instanceof StaleRouteException) {
+				alive(ep);
+			} else if (cause instanceof ConnectException) {
+				suspect(ep);
+			}
+			if (cause != null) {
+				throw new CompletionException(new StaleRouteException(ep));
+			}
+			return ret;
+		});
+	}
 
-			if (wait) {
-				response = sbr.readLine();
+	/* Run a blocking text-protocol request on the request pool. */
+	private <T> CompletableFuture<T> blocking(Callable<T> request) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return request.call();
+			} catch (Exception e) {
+				throw new CompletionException(e);
 			}
-		} catch (Exception e) {}
+		}, requestPool);
+	}
 
-		return response;
+	/* Return the connection pool used for outgoing requests. */
+	ConnectionPool getPool() {
+		return pool;
 	}
 
 	@Override
 	/* closestPrecedingFinger implementation. */
 	Endpoint closestPrecedingFinger(Endpoint ep, long id) {
-		if (ep.equals(myEp)) {
-			for (int i = M - 1; i >= 0; --i) {
-				Endpoint cur = finger.get(i);
-				if (cur == null) {
-					continue;
-				} else if (inBetween(myEp.key, id, cur.key)) {
-					return cur;
-				}
-			}
-			return myEp;
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.closestPrecedingFinger(id);
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.PRE_FINGER, c -> c.putLong(id),
+					WireCodec::endpoint);
+		}
 		String args = String.format(" %d", id);
 		String response = request(ep, PRE_FINGER, args, true);
 		return Endpoint.deserialize(response);
@@ -324,10 +1202,14 @@ public class Node extends AbstractNode implements Runnable {
 	@Override
 	/* getSuccessor implementation. */
 	Endpoint getSuccessor(Endpoint ep) {
-		if (ep.equals(myEp)) {
-			return finger.get(0);
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.finger.get(0);
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_SUCC, null, WireCodec::endpoint);
+		}
 		String response = request(ep, GET_SUCC, "", true);
 		return Endpoint.deserialize(response);
 	}
@@ -335,10 +1217,15 @@ public class Node extends AbstractNode implements Runnable {
 	@Override
 	/* getSuccessor implementation. */
 	Endpoint getSuccessor(Endpoint ep, long id) {
-		if (ep.equals(myEp)) {
-			return findSuccessor(id);
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.findSuccessor(id);
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_SUCC_ID, c -> c.putLong(id),
+					WireCodec::endpoint);
+		}
 		String args = String.format(" %d", id);
 		String response = request(ep, GET_SUCC, args, true);
 		return Endpoint.deserialize(response);
@@ -347,23 +1234,95 @@ public class Node extends AbstractNode implements Runnable {
 	@Override
 	/* getPredecessor implementation. */
 	Endpoint getPredecessor(Endpoint ep) {
-		if (ep.equals(myEp)) {
-			return predecessor;
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.predecessor;
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_PRED, null, WireCodec::endpoint);
+		}
 		String response = request(ep, GET_PRED, "", true);
 		return Endpoint.deserialize(response);
 	}
 
+	@Override
+	/* getSuccessorList implementation. */
+	Endpoint[] getSuccessorList(Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.getSuccessorList();
+		}
+
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_SUCC_LIST, null, WireCodec::endpoints);
+		}
+		String response = request(ep, GET_SUCC_LIST, "", true);
+		if (response == null) {
+			return null;
+		}
+		ArrayList<Endpoint> list = new ArrayList<Endpoint>();
+		for (String s : response.split("\\s+")) {
+			Endpoint succ = Endpoint.deserialize(s);
+			if (succ != null) {
+				list.add(succ);
+			}
+		}
+		return list.toArray(new Endpoint[list.size()]);
+	}
+
+	@Override
+	/* getFingerTable implementation. */
+	Endpoint[] getFingerTable(Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.getFingerTable();
+		}
+
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_FINGERS, null, WireCodec::endpoints);
+		}
+		String response = request(ep, GET_FINGERS, "", true);
+		if (response == null) {
+			return null;
+		}
+		String[] info = response.split("\\s+");
+		Endpoint[] table = new Endpoint[info.length];
+		for (int i = 0; i < info.length; ++i) {
+			table[i] = Endpoint.deserialize(info[i]);
+		}
+		return table;
+	}
+
+	@Override
+	/* lookupExecutor implementation. */
+	protected Executor lookupExecutor() {
+		return fingerPool;
+	}
+
+	@Override
+	/* replicaExecutor implementation. */
+	protected Executor replicaExecutor() {
+		return replicaPool;
+	}
+
 	@Override
 	/* getItem implementation. */
 	Long getItem(Endpoint ep, long key) {
-		if (ep.equals(myEp)) {
-			return myItems.get(key);
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.myItems.get(key);
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_ITEM, c -> c.putLong(key),
+					WireCodec::value);
+		}
 		String args = String.format(" %d", key);
 		String response = request(ep, GET_ITEM, args, true);
+		if (response == null) {
+			return null;
+		}
 
 		try {
 			return (response.equals("null")) ? null : Long.valueOf(response);
@@ -377,55 +1336,753 @@ public class Node extends AbstractNode implements Runnable {
 	@Override
 	/* giveItem implementation. */
 	void giveItem(Endpoint ep, long key, long value) {
-		if (ep.equals(myEp)) {
-			myItems.put(key, value);
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.storeItem(key, value);
 			return;
 		}
 
-		String args = String.format(" %d %d", key, value);
+		if (USE_BINARY) {
+			call(ep, WireCodec.GIVE_ITEM, c -> c.putLong(key).putLong(value),
+					WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %d %d", key, value);
 		request(ep, GIVE_ITEM, args, false);
 	}
 
+	@Override
+	/* getOwnedItem implementation. */
+	Long getOwnedItem(Endpoint ep, long key) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			if (!node.owns(Utils.hash(key))) {
+				throw new StaleRouteException(ep);
+			}
+			return node.myItems.get(key);
+		}
+
+		if (USE_BINARY) {
+			return callOwner(ep, WireCodec.GET_OWNED, c -> c.putLong(key),
+					WireCodec::value);
+		}
+		String response = request(ep, GET_OWNED, String.format(" %d", key), true);
+		if (response == null || response.equals(NOT_OWNER)) {
+			throw new StaleRouteException(ep);
+		}
+		return response.equals("null") ? null : Long.valueOf(response);
+	}
+
+	@Override
+	/* getLeasedItem implementation. */
+	NearCache.Lease getLeasedItem(Endpoint ep, long key) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			NearCache.Lease lease = node.leasedItem(key);
+			if (lease == null) {
+				throw new StaleRouteException(ep);
+			}
+			return lease;
+		}
+
+		if (USE_BINARY) {
+			return callOwner(ep, WireCodec.GET_LEASED, c -> c.putLong(key),
+					WireCodec::lease);
+		}
+		String response = request(ep, GET_LEASED, String.format(" %d", key), true);
+		String[] parts = response == null ? null : response.split(" ");
+		if (parts == null || parts.length != 2) {
+			throw new StaleRouteException(ep);
+		}
+		Long value = parts[0].equals("null") ? null : Long.valueOf(parts[0]);
+		return new NearCache.Lease(value, Integer.parseInt(parts[1]));
+	}
+
+	@Override
+	/* giveOwnedItem implementation. */
+	void giveOwnedItem(Endpoint ep, long key, long value) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			if (!node.owns(Utils.hash(key))) {
+				throw new StaleRouteException(ep);
+			}
+			node.storeItem(key, value);
+			return;
+		}
+
+		if (USE_BINARY) {
+			callOwner(ep, WireCodec.GIVE_OWNED, c -> c.putLong(key).putLong(value),
+					WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %d %d", key, value);
+		String response = request(ep, GIVE_OWNED, args, true);
+		if (!OK.equals(response)) {
+			throw new StaleRouteException(ep);
+		}
+	}
+
+	@Override
+	/* getOwnedItems implementation. */
+	Long[] getOwnedItems(Endpoint ep, long[] keys) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			Long[] values = node.ownedItems(keys);
+			if (values == null) {
+				throw new StaleRouteException(ep);
+			}
+			return values;
+		}
+
+		if (USE_BINARY) {
+			return callOwner(ep, WireCodec.GET_OWNED_ITEMS, c -> putKeys(c, keys),
+					WireCodec::values);
+		}
+		StringBuilder args = new StringBuilder();
+		for (long key : keys) {
+			args.append(' ').append(key);
+		}
+		String response = request(ep, GET_OWNED_ITEMS, args.toString(), true);
+		if (response == null || response.equals(NOT_OWNER)) {
+			throw new StaleRouteException(ep);
+		}
+
+		String[] found = response.split(" ");
+		if (found.length != keys.length) {
+			throw new StaleRouteException(ep);
+		}
+		Long[] values = new Long[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			values[i] = found[i].equals("null") ? null : Long.valueOf(found[i]);
+		}
+		return values;
+	}
+
+	@Override
+	/* giveOwnedItems implementation. */
+	void giveOwnedItems(Endpoint ep, long[] keys, long[] values)
+			throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			if (!node.storeOwnedItems(keys, values)) {
+				throw new StaleRouteException(ep);
+			}
+			return;
+		}
+
+		if (USE_BINARY) {
+			callOwner(ep, WireCodec.GIVE_OWNED_ITEMS, c -> putItems(c, keys, values),
+					WireCodec::ack);
+			return;
+		}
+		StringBuilder args = new StringBuilder();
+		for (int i = 0; i < keys.length; ++i) {
+			args.append(' ').append(keys[i]).append(' ').append(values[i]);
+		}
+		String response = request(ep, GIVE_OWNED_ITEMS, args.toString(), true);
+		if (!OK.equals(response)) {
+			throw new StaleRouteException(ep);
+		}
+	}
+
+	/* Encode count and keys of a GET_OWNED_ITEMS request. */
+	private static void putKeys(WireCodec c, long[] keys) {
+		c.putInt(keys.length);
+		for (long key : keys) {
+			c.putLong(key);
+		}
+	}
+
+	/* Encode count and pairs of a GIVE_OWNED_ITEMS request. */
+	private static void putItems(WireCodec c, long[] keys, long[] values) {
+		c.putInt(keys.length);
+		for (int i = 0; i < keys.length; ++i) {
+			c.putLong(keys[i]).putLong(values[i]);
+		}
+	}
+
 	@Override
 	/* giveItems implementation. */
-	void giveItems(Endpoint ep, Map<Long, Long> items) {
-		Long key;
-		Long value;
+	boolean giveItems(Endpoint ep, LongLongMap items) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.storeItems(items);
+			return true;
+		}
+		if (items.isEmpty()) {
+			return true;
+		}
+
+		Debug.DEBUG("GIVING: " + items.size() + " items to " + ep);
+		if (!USE_BINARY) {
+			// each item is acknowledged; after the first failure the rest are
+			// not sent, and the caller keeps them all
+			boolean[] given = { true };
+			items.forEach((key, value) -> {
+				if (given[0]) {
+					String args = String.format(" %d %d", key, value);
+					given[0] = OK.equals(request(ep, GIVE_ITEM, args, true));
+				}
+			});
+			if (!given[0]) {
+				System.err.println("ERROR: could not give items to " + ep);
+			}
+			return given[0];
+		}
+		return streamItems(ep, WireCodec.GIVE_ITEMS, null, items);
+	}
+
+	@Override
+	/* getOwnedBlob implementation. */
+	byte[] getOwnedBlob(Endpoint ep, long key) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			if (!node.owns(Utils.hash(key))) {
+				throw new StaleRouteException(ep);
+			}
+			return node.myBlobs.get(key);
+		}
+
+		if (USE_BINARY) {
+			return callOwner(ep, WireCodec.GET_BLOB, c -> c.putLong(key),
+					WireCodec::blob);
+		}
+		String response = request(ep, GET_BLOB, String.format(" %d", key), true);
+		if (response == null || response.equals(NOT_OWNER)) {
+			throw new StaleRouteException(ep);
+		}
+		return response.equals("null") ? null : decodeBlob(response);
+	}
+
+	@Override
+	/* giveOwnedBlob implementation. */
+	void giveOwnedBlob(Endpoint ep, long key, byte[] value) throws StaleRouteException {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			if (!node.owns(Utils.hash(key))) {
+				throw new StaleRouteException(ep);
+			}
+			node.storeBlob(key, ByteBuffer.wrap(value));
+			return;
+		}
+
+		if (USE_BINARY) {
+			callOwner(ep, WireCodec.GIVE_BLOB, c -> c.putLong(key),
+					ByteBuffer.wrap(value), WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %d %s", key, encodeBlob(value));
+		String response = request(ep, GIVE_BLOB, args, true);
+		if (!OK.equals(response)) {
+			throw new StaleRouteException(ep);
+		}
+	}
+
+	@Override
+	/* giveBlobs implementation. */
+	boolean giveBlobs(Endpoint ep, BlobStore blobs, long[] keys) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.storeBlobs(blobs, keys);
+			return true;
+		}
+
+		Debug.DEBUG("GIVING: " + keys.length + " values to " + ep);
+		if (!USE_BINARY) {
+			for (long key : keys) {
+				byte[] value = blobs.get(key);
+				if (value != null && request(ep, GIVE_BLOBS,
+						String.format(" %d %s", key, encodeBlob(value)), true) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		ConnectionPool.Connection c = null;
+		try {
+			c = pool.borrow(ep);
+			streamBlobs(c, ep, blobs, keys);
+			pool.release(c);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			if (c != null) {
+				c.close();
+			}
+			System.err.println("ERROR: could not give values to " + ep);
+			return false;
+		}
+	}
+
+	/* Return byte-array value as a text-protocol argument. */
+	private static String encodeBlob(byte[] value) {
+		return BLOB + Base64.getEncoder().encodeToString(value);
+	}
+
+	/* Return byte-array value of a text-protocol argument. */
+	private static byte[] decodeBlob(String arg) {
+		if (!arg.startsWith(BLOB)) {
+			throw new IllegalArgumentException("not a value: " + arg);
+		}
+		return Base64.getDecoder().decode(arg.substring(BLOB.length()));
+	}
+
+	/*
+	 * Stream the values of keys over c in GIVE_BLOBS chunks of about
+	 * GIVE_BLOB_BYTES, windowed as streamItems does. Each value is copied
+	 * from the store into the frame once.
+	 */
+	private static void streamBlobs(ConnectionPool.Connection c, Endpoint ep,
+			BlobStore blobs, long[] keys) throws IOException {
+		int[] state = new int[2];  // entries in current chunk, chunks in flight
+		int bytes = 0;
+
+		try {
+			for (long key : keys) {
+				ByteBuffer value = blobs.getBuffer(key);
+				if (value == null) {
+					continue;
+				}
+				if (state[0] == 0) {
+					c.codec.begin(WireCodec.GIVE_BLOBS).putLong(ep.key).putInt(0);
+					bytes = 0;
+				}
+				bytes += value.remaining();
+				c.codec.putLong(key).putBlob(value);
+				if (++state[0] == GIVE_CHUNK || bytes >= GIVE_BLOB_BYTES) {
+					sendChunk(c, state);
+				}
+			}
+			if (state[0] > 0) {
+				sendChunk(c, state);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		while (state[1] > 0) {
+			receiveChunkAck(c);
+			--state[1];
+		}
+	}
+
+	/* Stream items to ep in op frames. Return whether ep received all. */
+	private boolean streamItems(Endpoint ep, byte op, WireCodec.Encoder header,
+			LongLongMap items) {
+		ConnectionPool.Connection c = null;
+		try {
+			c = pool.borrow(ep);
+			streamItems(c, ep, op, header, items);
+			pool.release(c);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			if (c != null) {
+				c.close();
+			}
+			System.err.println("ERROR: could not give items to " + ep);
+			return false;
+		}
+	}
+
+	/*
+	 * Stream items over c in chunks of GIVE_CHUNK entries, each an op frame
+	 * with the entry count and header before the entries. Up to GIVE_WINDOW
+	 * chunks are in flight before waiting for an acknowledgement, which keeps
+	 * the link busy without letting the sender run ahead of the receiver.
+	 */
+	private static void streamItems(ConnectionPool.Connection c, Endpoint ep,
+			byte op, WireCodec.Encoder header, LongLongMap items) throws IOException {
+		int[] state = new int[2];  // entries in current chunk, chunks in flight
+
+		try {
+			items.forEach((key, value) -> {
+				if (state[0] == 0) {
+					// count is patched in when the chunk is sent
+					c.codec.begin(op).putLong(ep.key).putInt(0);
+					if (header != null) {
+						header.encode(c.codec);
+					}
+				}
+				c.codec.putLong(key).putLong(value);
+				if (++state[0] == GIVE_CHUNK) {
+					sendChunk(c, state);
+				}
+			});
+			if (state[0] > 0) {
+				sendChunk(c, state);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 
-		for (Map.Entry<Long, Long> e : items.entrySet()) {
-			key = e.getKey();
-			value = e.getValue();
+		while (state[1] > 0) {
+			receiveChunkAck(c);
+			--state[1];
+		}
+	}
 
-			if (!ep.equals(myEp)) {
-				System.out.println(ep);
-				System.out.println(myEp);
-				Debug.DEBUG("GIVING: " + "(" + key + " " + value + ") to " + ep);
+	/* Send the chunk being built, first waiting for an ack if the window is full. */
+	private static void sendChunk(ConnectionPool.Connection c, int[] state) {
+		try {
+			if (state[1] == GIVE_WINDOW) {
+				receiveChunkAck(c);
+				--state[1];
 			}
+			ByteBuffer frame = c.codec.finish();
+			frame.putInt(COUNT_OFFSET, state[0]);
+			c.send(frame);
+			state[0] = 0;
+			++state[1];
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* Wait for one chunk acknowledgement. */
+	private static void receiveChunkAck(ConnectionPool.Connection c)
+			throws IOException {
+		if (c.receive().get() != WireCodec.OK) {
+			throw new IOException("chunk rejected");
+		}
+	}
+
+	@Override
+	/* closestPrecedingFingerAsync implementation. */
+	CompletableFuture<Endpoint> closestPrecedingFingerAsync(Endpoint ep, long id) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return CompletableFuture.completedFuture(node.closestPrecedingFinger(id));
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> closestPrecedingFinger(ep, id));
+		}
+		return callAsync(ep, WireCodec.PRE_FINGER, c -> c.putLong(id),
+				WireCodec::endpoint);
+	}
+
+	@Override
+	/* getSuccessorAsync implementation. */
+	CompletableFuture<Endpoint> getSuccessorAsync(Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return CompletableFuture.completedFuture(node.finger.get(0));
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getSuccessor(ep));
+		}
+		return callAsync(ep, WireCodec.GET_SUCC, null, WireCodec::endpoint);
+	}
+
+	@Override
+	/* getSuccessorListAsync implementation. */
+	CompletableFuture<Endpoint[]> getSuccessorListAsync(Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return CompletableFuture.completedFuture(node.getSuccessorList());
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getSuccessorList(ep));
+		}
+		return callAsync(ep, WireCodec.GET_SUCC_LIST, null, WireCodec::endpoints);
+	}
+
+	@Override
+	/* getItemAsync implementation. */
+	CompletableFuture<Long> getItemAsync(Endpoint ep, long key) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return CompletableFuture.completedFuture(node.myItems.get(key));
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getItem(ep, key));
+		}
+		return callAsync(ep, WireCodec.GET_ITEM, c -> c.putLong(key), WireCodec::value);
+	}
+
+	@Override
+	/* giveItemAsync implementation. */
+	CompletableFuture<Void> giveItemAsync(Endpoint ep, long key, long value) {
+		AbstractNode node = local(ep);
+		if (node != null && node.itemLog == null) {
+			return super.giveItemAsync(ep, key, value);
+		}
+		if (node != null || !USE_BINARY) {
+			// a local store waits for its log to sync
+			return blocking(() -> {
+				giveItem(ep, key, value);
+				return null;
+			});
+		}
+		return callAsync(ep, WireCodec.GIVE_ITEM, c -> c.putLong(key).putLong(value),
+				WireCodec::ack).thenApply(ok -> null);
+	}
 
-			giveItem(ep, key, value);
+	@Override
+	/* getOwnedItemAsync implementation. */
+	CompletableFuture<Long> getOwnedItemAsync(Endpoint ep, long key) {
+		if (local(ep) != null) {
+			return super.getOwnedItemAsync(ep, key);
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getOwnedItem(ep, key));
 		}
+		return callOwnerAsync(ep, WireCodec.GET_OWNED, c -> c.putLong(key),
+				WireCodec::value);
+	}
+
+	@Override
+	/* giveOwnedItemAsync implementation. */
+	CompletableFuture<Void> giveOwnedItemAsync(Endpoint ep, long key, long value) {
+		AbstractNode node = local(ep);
+		if (node != null && node.itemLog == null) {
+			return super.giveOwnedItemAsync(ep, key, value);
+		}
+		if (node != null || !USE_BINARY) {
+			return blocking(() -> {
+				giveOwnedItem(ep, key, value);
+				return null;
+			});
+		}
+		return callOwnerAsync(ep, WireCodec.GIVE_OWNED,
+				c -> c.putLong(key).putLong(value), WireCodec::ack).thenApply(ok -> null);
+	}
+
+	@Override
+	/* getOwnedItemsAsync implementation. */
+	CompletableFuture<Long[]> getOwnedItemsAsync(Endpoint ep, long[] keys) {
+		if (local(ep) != null) {
+			return super.getOwnedItemsAsync(ep, keys);
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getOwnedItems(ep, keys));
+		}
+		return callOwnerAsync(ep, WireCodec.GET_OWNED_ITEMS, c -> putKeys(c, keys),
+				WireCodec::values);
+	}
+
+	@Override
+	/* giveOwnedItemsAsync implementation. */
+	CompletableFuture<Void> giveOwnedItemsAsync(Endpoint ep, long[] keys,
+			long[] values) {
+		AbstractNode node = local(ep);
+		if (node != null && node.itemLog == null) {
+			return super.giveOwnedItemsAsync(ep, keys, values);
+		}
+		if (node != null || !USE_BINARY) {
+			return blocking(() -> {
+				giveOwnedItems(ep, keys, values);
+				return null;
+			});
+		}
+		return callOwnerAsync(ep, WireCodec.GIVE_OWNED_ITEMS,
+				c -> putItems(c, keys, values), WireCodec::ack).thenApply(ok -> null);
+	}
+
+	@Override
+	/* getReplicaAsync implementation. */
+	CompletableFuture<Long> getReplicaAsync(Endpoint ep, Endpoint owner, long key) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return CompletableFuture.completedFuture(node.replicaItem(owner, key));
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> getReplica(ep, owner, key));
+		}
+		return callAsync(ep, WireCodec.GET_REPLICA,
+				c -> c.putEndpoint(owner).putLong(key), WireCodec::value);
+	}
+
+	@Override
+	/* giveReplicas implementation. */
+	boolean giveReplicas(Endpoint ep, LongLongMap items) {
+		return giveReplicas(myEp, ep, items);
+	}
+
+	/* Give items to ep as replicas of position from's. */
+	boolean giveReplicas(Endpoint from, Endpoint ep, LongLongMap items) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.storeReplicas(from, items);
+			return true;
+		}
+		if (items.isEmpty()) {
+			return true;
+		}
+
+		if (!USE_BINARY) {
+			boolean[] given = { true };
+			items.forEach((key, value) -> {
+				String args = String.format(" %s %d %d", Endpoint.serialize(from),
+						key, value);
+				if (!OK.equals(request(ep, GIVE_REPLICA, args, true))) {
+					given[0] = false;
+				}
+			});
+			return given[0];
+		}
+		return streamItems(ep, WireCodec.GIVE_REPLICAS, c -> c.putEndpoint(from),
+				items);
+	}
+
+	@Override
+	/* dropReplicas implementation. */
+	void dropReplicas(Endpoint ep) {
+		dropReplicas(myEp, ep);
+	}
+
+	/* Tell ep to forget the replicas of position from's items. */
+	void dropReplicas(Endpoint from, Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.removeReplicas(from);
+			return;
+		}
+
+		if (USE_BINARY) {
+			call(ep, WireCodec.DROP_REPLICAS, c -> c.putEndpoint(from),
+					WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %s", Endpoint.serialize(from));
+		request(ep, DROP_REPLICAS, args, false);
+	}
+
+	@Override
+	/* getReplica implementation. */
+	Long getReplica(Endpoint ep, Endpoint owner, long key) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			return node.replicaItem(owner, key);
+		}
+
+		if (USE_BINARY) {
+			return call(ep, WireCodec.GET_REPLICA,
+					c -> c.putEndpoint(owner).putLong(key), WireCodec::value);
+		}
+		String args = String.format(" %s %d", Endpoint.serialize(owner), key);
+		String response = request(ep, GET_REPLICA, args, true);
+		if (response == null) {
+			return null;
+		}
+
+		try {
+			return (response.equals("null")) ? null : Long.valueOf(response);
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
+	@Override
+	/* forwardLookup implementation. */
+	void forwardLookup(Endpoint ep, long id, Endpoint origin, long lookupId,
+			int hops) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.routeLookup(id, origin, lookupId, hops);
+			return;
+		}
+
+		if (USE_BINARY) {
+			call(ep, WireCodec.LOOKUP, c -> c.putLong(id).putEndpoint(origin)
+					.putLong(lookupId).putInt(hops), WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %d %s %d %d", id, Endpoint.serialize(origin),
+				lookupId, hops);
+		request(ep, LOOKUP, args, false);
+	}
+
+	@Override
+	/* lookupDone implementation. */
+	void lookupDone(Endpoint origin, long lookupId, Endpoint pred, Endpoint succ) {
+		AbstractNode node = local(origin);
+		if (node != null) {
+			node.completeLookup(lookupId, pred, succ);
+			return;
+		}
+
+		if (USE_BINARY) {
+			call(origin, WireCodec.LOOKUP_DONE, c -> c.putLong(lookupId)
+					.putEndpoint(pred).putEndpoint(succ), WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %d %s %s", lookupId, Endpoint.serialize(pred),
+				Endpoint.serialize(succ));
+		request(origin, LOOKUP_DONE, args, false);
+	}
+
+	@Override
+	/* leaving implementation. */
+	void leaving(Endpoint ep, Endpoint pred) {
+		leaving(myEp, ep, pred);
+	}
+
+	/* Tell successor ep that position from is leaving and pred preceded it. */
+	void leaving(Endpoint from, Endpoint ep, Endpoint pred) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.processLeave(from, pred);
+			return;
+		}
+
+		if (USE_BINARY) {
+			call(ep, WireCodec.LEAVING, c -> c.putEndpoint(from).putEndpoint(pred),
+					WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %s %s", Endpoint.serialize(from),
+				Endpoint.serialize(pred));
+		request(ep, LEAVING, args, false);
 	}
 
 	@Override
 	/* notify implementation. */
 	void notify(Endpoint ep) {
-		if (ep.equals(myEp)) {
-			processNotification(myEp);
+		notify(myEp, ep);
+	}
+
+	/* Notify ep that position from may be its predecessor. */
+	void notify(Endpoint from, Endpoint ep) {
+		AbstractNode node = local(ep);
+		if (node != null) {
+			node.processNotification(from);
 			return;
 		}
 
-		String args = String.format(" %s", Endpoint.serialize(myEp));
+		if (USE_BINARY) {
+			call(ep, WireCodec.NOTIFY, c -> c.putEndpoint(from), WireCodec::ack);
+			return;
+		}
+		String args = String.format(" %s", Endpoint.serialize(from));
 		request(ep, NOTIFY, args, false);
 	}
 
 	@Override
 	/* isReachable implementation. */
 	boolean isReachable(Endpoint ep) {
-		if (ep.equals(myEp)) {
+		if (local(ep) != null) {
 			return true;
 		}
 
+		if (USE_BINARY) {
+			return call(ep, WireCodec.IS_REACHABLE, null, WireCodec::ack) != null;
+		}
 		String response = request(ep, IS_REACHABLE, "", true);
 		return IS_REACHABLE.equals(response);
 	}
+
+	@Override
+	/* isReachableAsync implementation. */
+	CompletableFuture<Boolean> isReachableAsync(Endpoint ep) {
+		if (local(ep) != null) {
+			return CompletableFuture.completedFuture(true);
+		}
+		if (!USE_BINARY) {
+			return blocking(() -> isReachable(ep));
+		}
+		return callAsync(ep, WireCodec.IS_REACHABLE, null, WireCodec::ack)
+				.thenApply(ack -> ack != null);
+	}
 }
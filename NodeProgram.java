@@ -4,12 +4,44 @@ import java.util.*;
 
 /*
  * NodeProgram
- * Program for creating nodes and inputting commands.
+ * Program for creating nodes and inputting commands. Run it with `load` and
+ * settings to drive a workload against a ring instead (see LoadDriver).
  */
 public class NodeProgram {
 	private static final int NEW_NODE_DELAY = 100;
 	private static final int SHUTDOWN_DELAY = 2000;
 
+	// run with -Dchord.data=<dir> to keep each node's items in <dir>/<port>
+	private static final String DATA_DIR = System.getProperty("chord.data");
+	private static final ItemLog.SyncPolicy SYNC_POLICY =
+			ItemLog.SyncPolicy.valueOf(System.getProperty("chord.sync", "BATCHED"));
+
+	// run with -Dchord.routing=RECURSIVE to forward lookups hop to hop
+	private static final AbstractNode.Routing ROUTING = AbstractNode.Routing.valueOf(
+			System.getProperty("chord.routing", "ITERATIVE"));
+
+	// heartbeat interval in ms and phi at which a peer is suspected
+	private static final long HEARTBEAT = Long.getLong("chord.heartbeat",
+			FailureDetector.DEFAULT_INTERVAL);
+	private static final double PHI = Double.parseDouble(System.getProperty(
+			"chord.phi", Double.toString(FailureDetector.DEFAULT_THRESHOLD)));
+
+	// successors each item is copied to, and where gets are served from
+	private static final int REPLICAS = Integer.getInteger("chord.replicas", 0);
+	private static final AbstractNode.ReadConsistency READ =
+			AbstractNode.ReadConsistency.valueOf(System.getProperty("chord.read", "OWNER"));
+
+	// values read from other nodes to keep, how to evict them, and how long
+	// other nodes may keep values read from this one
+	private static final int NEAR_CACHE = Integer.getInteger("chord.nearcache", 0);
+	private static final NearCache.Policy NEAR_POLICY = NearCache.Policy.valueOf(
+			System.getProperty("chord.nearcache.policy", "TINYLFU"));
+	private static final int LEASE = Integer.getInteger("chord.lease",
+			AbstractNode.DEFAULT_LEASE);
+
+	// ring positions per node, unless given to create or join
+	static final int VNODES = Integer.getInteger("chord.vnodes", 1);
+
 	private static Set<Integer> activePorts;
 	private static ArrayList<Thread> threads;
 
@@ -26,26 +58,54 @@ public class NodeProgram {
 	/* Print usage information. */
 	private static void usage() {
 		System.out.println("Welcome to NodeProgram! Usage is provided below:\n" +
-				"\tcreate <localport>\n" +
-				"\tjoin <localport> <remotehost> <remoteport>\n" +
+				"\tcreate <localport> [vnodes]\n" +
+				"\tjoin <localport> <remotehost> <remoteport> [vnodes]\n" +
 				"\tleave <localport>\n" +
 				"\tget <localport> <key>\n" +
 				"\tput <localport> <key> <value>\n" +
+				"\tstats <localport>\n" +
 				"\tquit"
 		);
 	}
 
+	/*
+	 * Return new node at host and port with vnodes ring positions, set up
+	 * from the command line properties. Its thread is not started yet.
+	 */
+	static Node newNode(String host, int port, int vnodes) throws IOException {
+		Node n = (DATA_DIR == null) ?
+				new Node(host, port) :
+				new Node(host, port, new File(DATA_DIR, Integer.toString(port)),
+						SYNC_POLICY);
+		n.setRouting(ROUTING);
+		n.setFailureDetector(new FailureDetector(HEARTBEAT, PHI));
+		n.setReplication(REPLICAS);
+		n.setReadConsistency(READ);
+		n.setLease(LEASE);
+		if (NEAR_CACHE > 0) {
+			n.setNearCache(new NearCache(NEAR_CACHE, NEAR_POLICY));
+		}
+		n.setVirtualNodes(vnodes);
+		return n;
+	}
+
 	/* Verify input number of arguments. */
 	private static boolean verifyNumArgs(String[] info) {
-		return (info[0].equals("create") && info.length != 2) ||
-				(info[0].equals("join") && info.length != 4) ||
+		return (info[0].equals("create") && info.length != 2 && info.length != 3) ||
+				(info[0].equals("join") && info.length != 4 && info.length != 5) ||
 				(info[0].equals("leave") && info.length != 2) ||
 				(info[0].equals("get") && info.length != 3) ||
-				(info[0].equals("put") && info.length != 4);
+				(info[0].equals("put") && info.length != 4) ||
+				(info[0].equals("stats") && info.length != 2);
 	}
 
 	/* Main method. */
 	public static void main(String args[]) throws Exception {
+		if (args.length > 0 && args[0].equals("load")) {
+			LoadDriver.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		init();
 		usage();
 
@@ -77,9 +137,18 @@ public class NodeProgram {
 
 				// create new node if "create" or "join" specified
 				if (info[0].equals("create") || info[0].equals("join")) {
+					// stronger machines can take more of the ring
+					int vnodesArg = info[0].equals("create") ? 2 : 4;
+					int vnodes = info.length > vnodesArg ?
+							Integer.parseInt(info[vnodesArg]) : VNODES;
+					if (vnodes < 1) {
+						System.err.println("ERROR: input invalid");
+						continue;
+					}
+
 					if (!activePorts.contains(localport)) {
 						activePorts.add(localport);
-						Node n = new Node(localhost, localport);
+						Node n = newNode(localhost, localport, vnodes);
 						Thread thread = new Thread(n);
 						threads.add(thread);
 						thread.start();
@@ -103,7 +172,7 @@ public class NodeProgram {
 				// open socket and set up socket streams
 				DataOutputStream sdos = Utils.getOutputStream(s);
 				BufferedReader sbr = null;
-				if (info[0].equals("get")) {
+				if (info[0].equals("get") || info[0].equals("stats")) {
 					sbr = Utils.getInputStream(s);
 				}
 
@@ -163,6 +232,13 @@ public class NodeProgram {
 						sdos.writeBytes(msg);
 						sdos.flush();
 						break;
+					case "stats":
+						// ask node for its metrics, one line
+						msg = String.format("%s\r\n", Node.STATS);
+						sdos.writeBytes(msg);
+						sdos.flush();
+						System.out.println(sbr.readLine());
+						break;
 					default:
 						System.err.println("ERROR: input invalid");
 				}
@@ -1,6 +1,14 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NodeTest {
+	// threads serving the Nodes a test started
+	private Map<Node, Thread> threads = new HashMap<>();
+
 	public static void assertEquals(long o1, long o2) throws Exception {
 		if (o1 != o2) {
 			throw new Exception("Assertion failed: " + o1 + " is not equal to " + o2 + ".");
@@ -13,6 +21,12 @@ public class NodeTest {
 		}
 	}
 	
+	public static void assertTrue(boolean b) throws Exception {
+		if (!b) {
+			throw new Exception("Assertion failed: Expected true");
+		}
+	}
+	
 	public static void assertNull(Object o) throws Exception {
 		if (o != null) {
 			throw new Exception("Assertion failed: " + o + " is not null.");
@@ -39,9 +53,16 @@ public class NodeTest {
 		assertEquals(port2, n1.getSuccessor().port);
 		assertEquals(port1, n2.predecessor.port);
 		
-		// test add item and retrieve item
+		// test add item and retrieve item; where keys land depends on the
+		// ring width, so pick one owned by each node
 		long key1 = 1;
-		long key2 = 2;
+		while (!n1.owns(Utils.hash(key1))) {
+			++key1;
+		}
+		long key2 = 1;
+		while (!n2.owns(Utils.hash(key2))) {
+			++key2;
+		}
 		n1.put(key1, 10);  // key1 gets stored in n1
 		assertEquals(10, (long) n1.get(key1));
 		assertEquals(10, (long) n2.get(key1));
@@ -114,10 +135,1674 @@ public class NodeTest {
 		}
 	}
 	
+	public void ringArithmeticTest() throws Exception {
+		// the top of the ring and its middle are where a 64-bit ring wraps
+		// around as a signed long and turns negative
+		long top = AbstractNode.MASK;
+		long half = (AbstractNode.MASK >>> 1) + 1;
+		assertEquals(1, AbstractNode.distance(top, 0));
+		assertEquals(top, AbstractNode.distance(0, top));
+		assertEquals(1, AbstractNode.distance(half - 1, half));
+		assertEquals(half, AbstractNode.distance(0, half));
+		assertEquals(half + 1, AbstractNode.distance(top, half));
+		assertEquals(0, AbstractNode.distance(half, half));
+
+		LocalNode node = new LocalNode(new HashMap<>(), 0);
+		assertTrue(node.inBetween(half - 1, half + 1, half));
+		assertFalse(node.inBetween(half - 1, half + 1, half + 1));
+		assertFalse(node.inBetween(half - 1, half + 1, half - 1));
+		assertTrue(node.inBetween(top - 1, 1, top));
+		assertTrue(node.inBetween(top - 1, 1, 0));
+		assertFalse(node.inBetween(top - 1, 1, 1));
+		assertFalse(node.inBetween(top - 1, 1, half));
+		assertTrue(node.inBetween(half, half - 1, top));
+		assertTrue(node.inBetween(half, half - 1, 0));
+		assertFalse(node.inBetween(half, half - 1, half - 1));
+		assertTrue(node.inBetween(half, half, half - 1));
+
+		// owners and cached ranges on either side of both edges
+		long[] keys = { 5, half, top };
+		assertEquals(5, ownerOf(keys, 0));
+		assertEquals(half, ownerOf(keys, 6));
+		assertEquals(top, ownerOf(keys, half + 1));
+		LocationCache cache = new LocationCache(4);
+		cache.learn(half, new Endpoint("a", 1, 2));
+		assertEquals(2, cache.lookup(top).key);
+		assertEquals(2, cache.lookup(0).key);
+		assertEquals(2, cache.lookup(half + 1).key);
+		assertNull(cache.lookup(half));
+		assertNull(cache.lookup(3));
+	}
+
+	public void codecTest() throws Exception {
+		WireCodec client = new WireCodec();
+		WireCodec server = new WireCodec();
+		Endpoint ep = new Endpoint("localhost", 5);
+		
+		int firstLength = 0;
+		for (int i = 0; i < 2; ++i) {
+			ByteBuffer frame = client.begin(WireCodec.NOTIFY).putEndpoint(ep)
+					.putEndpoint(null).putLong(-7).putValue(null).putValue(42L)
+					.finish();
+			int length = frame.getInt();
+			assertEquals(frame.remaining(), length);
+			assertEquals(WireCodec.NOTIFY, frame.get());
+			
+			Endpoint decoded = server.readEndpoint(frame);
+			assertTrue(ep.equals(decoded));
+			assertNull(server.readEndpoint(frame));
+			assertEquals(-7, frame.getLong());
+			assertNull(WireCodec.readValue(frame));
+			assertEquals(42, (long) WireCodec.readValue(frame));
+			assertFalse(frame.hasRemaining());
+			
+			// endpoint is sent by reference the second time
+			if (i == 0) {
+				firstLength = length;
+			} else {
+				assertTrue(length < firstLength);
+			}
+		}
+	}
+	
+	public void connectionPoolTest() throws Exception {
+		int port2 = 18554;
+		Node n1 = startNode(18553);
+		n1.create();
+
+		// a bare server stands in for the peer, so only n1's requests reach it
+		boolean[] silent = new boolean[1];
+		byte[] status = { WireCodec.OK };
+		NioServer.Handler handler = new NioServer.Handler() {
+			public void handle(String line, NioServer.Reply reply) {
+				if (!silent[0]) {
+					reply.send(Node.IS_REACHABLE);
+				}
+			}
+
+			public void handle(WireCodec codec, ByteBuffer frame,
+					NioServer.FrameReply reply) {
+				if (!silent[0]) {
+					reply.send(codec.begin(status[0]).finish());
+				}
+			}
+		};
+		NioServer peer = new NioServer(port2, handler);
+		Thread tp = new Thread(peer::run);
+		tp.start();
+		Endpoint ep = new Endpoint("localhost", port2);
+		ConnectionPool pool = n1.getPool();
+		long connects = pool.connects();
+
+		// repeated requests share one connection
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(n1.isReachable(ep));
+		}
+		assertEquals(connects + 1, pool.connects());
+		assertEquals(1, peer.accepted());
+
+		// a connection idle too long is closed and replaced
+		pool.evictIdle(System.currentTimeMillis() + ConnectionPool.IDLE_TIMEOUT);
+		assertTrue(n1.isReachable(ep));
+		assertEquals(connects + 2, pool.connects());
+		assertEquals(2, peer.accepted());
+
+		// a restarted peer breaks the pooled connection; the request is sent
+		// again on a new one
+		peer.stop();
+		tp.join();
+		peer = new NioServer(port2, handler);
+		tp = new Thread(peer::run);
+		tp.start();
+		assertTrue(n1.isReachable(ep));
+		assertTrue(n1.isReachable(ep));
+		assertEquals(connects + 3, pool.connects());
+		assertEquals(1, peer.accepted());
+
+		// a peer that stops answering times out once, without a second try
+		silent[0] = true;
+		long start = System.nanoTime();
+		assertFalse(n1.isReachable(ep));
+		long waited = (System.nanoTime() - start) / 1000000;
+		assertTrue(waited >= ConnectionPool.READ_TIMEOUT &&
+				waited < 2 * ConnectionPool.READ_TIMEOUT);
+		assertEquals(connects + 3, pool.connects());
+		silent[0] = false;
+		assertTrue(n1.isReachable(ep));
+		assertEquals(connects + 4, pool.connects());
+
+		// a connection that got anything but OK is not reused, as the peer may
+		// not have decoded the endpoints the request defined
+		if (Node.USE_BINARY) {
+			status[0] = WireCodec.NOT_OWNER;
+			assertFalse(n1.isReachable(ep));
+			status[0] = WireCodec.OK;
+			assertTrue(n1.isReachable(ep));
+			assertEquals(connects + 5, pool.connects());
+		}
+
+		peer.stop();
+		tp.join();
+		stopRing(n1);
+	}
+
+	/* Return a binary request frame carrying v, padded with pad bytes. */
+	private static byte[] frameOf(long v, int pad) {
+		ByteBuffer frame = ByteBuffer.allocate(13 + pad);
+		frame.putInt(9 + pad).put(WireCodec.IS_REACHABLE).putLong(v);
+		return frame.array();
+	}
+
+	/* Read a response frame carrying a long and return the long. */
+	private static long readReply(DataInputStream in) throws Exception {
+		assertEquals(9, in.readInt());
+		assertEquals(WireCodec.OK, in.readByte());
+		return in.readLong();
+	}
+
+	public void nioServerTest() throws Exception {
+		// answers a line or frame carrying v with v + 1
+		AtomicInteger handled = new AtomicInteger();
+		NioServer.Handler handler = new NioServer.Handler() {
+			public void handle(String line, NioServer.Reply reply) {
+				handled.incrementAndGet();
+				reply.send(Long.toString(Long.parseLong(line) + 1));
+			}
+
+			public void handle(WireCodec codec, ByteBuffer frame,
+					NioServer.FrameReply reply) {
+				handled.incrementAndGet();
+				frame.get();
+				long v = frame.getLong();
+				if (v < 0) {
+					reply.send(codec.begin(WireCodec.ERROR).finish());
+					return;
+				}
+				reply.send(codec.begin(WireCodec.OK).putLong(v + 1).finish());
+			}
+		};
+		int port = 18555;
+		NioServer server = new NioServer(port, handler, 2, 2, 16);
+		Thread thread = new Thread(server::run);
+		thread.start();
+
+		// many connections are served at once, half of them binary
+		java.net.Socket[] sockets = new java.net.Socket[100];
+		for (int i = 0; i < sockets.length; ++i) {
+			sockets[i] = new java.net.Socket("localhost", port);
+			OutputStream out = sockets[i].getOutputStream();
+			if (i % 2 == 0) {
+				out.write(new byte[] { WireCodec.MAGIC, WireCodec.VERSION });
+				out.write(frameOf(i, 0));
+			} else {
+				out.write((i + "\r\n").getBytes(Utils.CHARSET));
+			}
+			out.flush();
+		}
+		for (int i = 0; i < sockets.length; ++i) {
+			if (i % 2 == 0) {
+				DataInputStream in = new DataInputStream(sockets[i].getInputStream());
+				assertEquals(WireCodec.VERSION, in.readByte());
+				assertEquals(i + 1, readReply(in));
+			} else {
+				assertEquals(i + 1, Long.parseLong(
+						Utils.getInputStream(sockets[i]).readLine()));
+			}
+			sockets[i].close();
+		}
+
+		// frames and lines split over several reads are put back together
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(WireCodec.MAGIC);
+			out.flush();
+			Thread.sleep(20);
+			out.write(WireCodec.VERSION);
+			out.flush();
+			assertEquals(WireCodec.VERSION, in.readByte());
+			for (byte b : frameOf(41, 0)) {
+				out.write(b);
+				out.flush();
+				Thread.sleep(2);
+			}
+			assertEquals(42, readReply(in));
+
+			// a large frame grows the read buffer; the frame behind it is kept
+			// when the buffer shrinks back
+			ByteArrayOutputStream both = new ByteArrayOutputStream();
+			both.write(frameOf(7, 1 << 20));
+			both.write(frameOf(8, 0));
+			out.write(both.toByteArray());
+			out.flush();
+			assertEquals(8, readReply(in));
+			assertEquals(9, readReply(in));
+			out.write(frameOf(9, 0));
+			out.flush();
+			assertEquals(10, readReply(in));
+		}
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			OutputStream out = s.getOutputStream();
+			for (String part : new String[] { "12", "3\r", "\n" }) {
+				out.write(part.getBytes(Utils.CHARSET));
+				out.flush();
+				Thread.sleep(20);
+			}
+			assertEquals(124, Long.parseLong(Utils.getInputStream(s).readLine()));
+		}
+
+		// a frame of impossible length closes the connection
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(new byte[] { WireCodec.MAGIC, WireCodec.VERSION });
+			out.write(new byte[] { -1, -1, -1, -1 });
+			out.flush();
+			assertEquals(WireCodec.VERSION, in.readByte());
+			assertEquals(-1, in.read());
+		}
+
+		// an ERROR reply is written, then the connection is closed, since the
+		// request behind it may refer to endpoints the failed one defined
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(new byte[] { WireCodec.MAGIC, WireCodec.VERSION });
+			out.write(frameOf(-1, 0));
+			out.write(frameOf(1, 0));
+			out.flush();
+			assertEquals(WireCodec.VERSION, in.readByte());
+			assertEquals(1, in.readInt());
+			assertEquals(WireCodec.ERROR, in.readByte());
+			assertEquals(-1, in.read());
+		}
+
+		// clients that leave in the middle of a frame or line are dropped,
+		// and the rest are still served
+		int before = handled.get();
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			OutputStream out = s.getOutputStream();
+			out.write(new byte[] { WireCodec.MAGIC, WireCodec.VERSION });
+			out.write(frameOf(5, 100), 0, 20);
+			out.flush();
+		}
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			s.getOutputStream().write("77".getBytes(Utils.CHARSET));
+		}
+		try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+			DataOutputStream dos = Utils.getOutputStream(s);
+			dos.writeBytes("1\r\n");
+			dos.flush();
+			assertEquals(2, Long.parseLong(Utils.getInputStream(s).readLine()));
+		}
+		assertEquals(before + 1, handled.get());
+
+		server.stop();
+		thread.join();
+	}
+
+	/* Read a GIVE_ITEMS chunk and return its entry count. */
+	private static int readChunk(DataInputStream in) throws Exception {
+		byte[] frame = new byte[in.readInt()];
+		in.readFully(frame);
+		ByteBuffer b = ByteBuffer.wrap(frame);
+		assertEquals(WireCodec.GIVE_ITEMS, b.get());
+		b.getLong();
+		return b.getInt();
+	}
+
+	public void handoffTest() throws Exception {
+		// two separate rings, so only the test moves items between them
+		int port3 = 18558;
+		Node n1 = startNode(18556);
+		Node n2 = startNode(18557);
+		n1.create();
+		n2.create();
+
+		// more chunks than fit in the window all arrive
+		int count = Node.GIVE_CHUNK * (Node.GIVE_WINDOW + 2) + 1;
+		LongLongMap items = new LongLongMap();
+		for (int i = 0; i < count; ++i) {
+			items.put(i, i * 2);
+		}
+		assertTrue(n1.giveItems(n2.myEp, items));
+		assertEquals(count, n2.myItems.size());
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i * 2, (long) n2.myItems.get(i));
+		}
+
+		// no more than the window is sent before a chunk is acknowledged, and
+		// a receiver that dies mid-stream fails the handoff
+		try (java.net.ServerSocket ss = new java.net.ServerSocket(port3)) {
+			Endpoint ep = new Endpoint("localhost", port3);
+			CompletableFuture<Boolean> given =
+					CompletableFuture.supplyAsync(() -> n1.giveItems(ep, items));
+			try (java.net.Socket s = ss.accept()) {
+				s.setSoTimeout(200);
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = Utils.getOutputStream(s);
+				if (Node.USE_BINARY) {
+					in.readFully(new byte[2]);
+					out.writeByte(WireCodec.VERSION);
+					out.flush();
+					for (int i = 0; i < Node.GIVE_WINDOW; ++i) {
+						assertEquals(Node.GIVE_CHUNK, readChunk(in));
+					}
+					boolean waited = false;
+					try {
+						in.readByte();
+					} catch (java.net.SocketTimeoutException e) {
+						waited = true;
+					}
+					assertTrue(waited);
+					out.writeInt(5);
+					out.writeByte(WireCodec.OK);
+					out.writeInt(Node.GIVE_CHUNK);
+					out.flush();
+					assertEquals(Node.GIVE_CHUNK, readChunk(in));
+				} else {
+					// text handoffs are item by item, each acknowledged
+					BufferedReader lines = Utils.getInputStream(s);
+					lines.readLine();
+					out.writeBytes(Node.OK + "\r\n");
+					out.flush();
+					lines.readLine();
+				}
+			}
+			assertFalse(given.get(10, TimeUnit.SECONDS));
+		}
+		stopRing(n1, n2);
+	}
+
+	public void longLongMapTest() throws Exception {
+		LongLongMap map = new LongLongMap();
+		Map<Long, Long> expected = new HashMap<>();
+		Random random = new Random(433);
+		
+		// small key range forces collisions, removals and the zero key
+		for (int i = 0; i < 200000; ++i) {
+			long key = random.nextInt(5000) - 100;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key) != null ? 1 : 0, map.remove(key) ? 1 : 0);
+			} else {
+				expected.put(key, (long) i);
+				map.put(key, i);
+			}
+		}
+		
+		assertEquals(expected.size(), map.size());
+		for (long key = -100; key < 4900; ++key) {
+			Long value = expected.get(key);
+			if (value == null) {
+				assertNull(map.get(key));
+				assertEquals(-1, map.get(key, -1));
+			} else {
+				assertEquals(value, (long) map.get(key));
+			}
+		}
+		
+		int[] count = new int[2];  // entries visited, entries that match
+		map.forEach((key, value) -> {
+			++count[0];
+			if (expected.get(key) == value) {
+				++count[1];
+			}
+		});
+		assertEquals(expected.size(), count[0]);
+		assertEquals(expected.size(), count[1]);
+		
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(0));
+		
+		// an indexed map visits the keys of an identifier range in ring order,
+		// including keys that share an identifier
+		Hasher coarse = new Hasher() {
+			public long hash(long key) {
+				return Math.floorMod(key * 37, 1000);
+			}
+			
+			public long hash(String s) {
+				return 0;
+			}
+		};
+		LongLongMap indexed = new LongLongMap(0, coarse);
+		expected.clear();
+		for (int i = 0; i < 50000; ++i) {
+			long key = random.nextInt(5000) - 100;
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				indexed.remove(key);
+			} else {
+				expected.put(key, (long) i);
+				indexed.put(key, i);
+			}
+		}
+		long[][] ranges = { { 100, 600 }, { 600, 100 }, { 250, 250 }, { 999, 0 } };
+		// visit each range, then again after inserts too few to be merged into
+		// the sorted prefix of each segment's index
+		for (int pass = 0; pass < 2; ++pass) {
+			if (pass == 1) {
+				for (int i = 0; i < 40; ++i) {
+					long key = 5000 + random.nextInt(1000);
+					expected.put(key, (long) i);
+					indexed.put(key, i);
+				}
+			}
+			for (long[] r : ranges) {
+				long left = r[0];
+				long right = r[1];
+				int inRange = 0;
+				for (long key : expected.keySet()) {
+					long id = coarse.hash(key);
+					if (left < right ? id > left && id <= right : id > left || id <= right) {
+						++inRange;
+					}
+				}
+				long[] last = { -1, 0 };  // distance from left of the last key, keys seen
+				boolean[] ok = { true };
+				indexed.forEachInRange(left, right, (key, value) -> {
+					// on the whole circle, left itself comes last, a full turn away
+					long d = AbstractNode.distance(left, coarse.hash(key));
+					d = d == 0 && left == right ? AbstractNode.MASK : d;
+					ok[0] &= (last[0] == -1 || Long.compareUnsigned(d, last[0]) >= 0) &&
+							d != 0 && expected.get(key) == value;
+					last[0] = d;
+					++last[1];
+				});
+				assertTrue(ok[0]);
+				assertEquals(inRange, last[1]);
+			}
+		}
+
+		// keys removed and added again after a visit are seen once, with their new value
+		for (long key = -100; key < 4900; key += 2) {
+			expected.remove(key);
+			indexed.remove(key);
+			if (key % 4 == 0) {
+				expected.put(key, -key);
+				indexed.put(key, -key);
+			}
+		}
+		Map<Long, Long> seen = new HashMap<>();
+		boolean[] once = { true };
+		indexed.forEachInRange(0, 0, (key, value) -> once[0] &= seen.put(key, value) == null);
+		assertTrue(once[0]);
+		assertTrue(expected.equals(seen));
+
+		indexed.clear();
+		int[] left = new int[1];
+		indexed.forEachInRange(0, 0, (key, value) -> ++left[0]);
+		assertEquals(0, left[0]);
+		indexed.put(5, 6);
+		indexed.forEachInRange(0, 0, (key, value) -> ++left[0]);
+		assertEquals(1, left[0]);
+	}
+	
+	public void itemLogTest() throws Exception {
+		File dir = Files.createTempDirectory("chord-log").toFile();
+		try {
+			Map<Integer, LocalNode> m = new HashMap<>();
+			LocalNode n1 = new LocalNode(m, 3);
+			n1.create();
+			n1.openItemLog(dir, ItemLog.SyncPolicy.PER_WRITE);
+			for (int i = 0; i < 1000; ++i) {
+				n1.put(i, i * 2);
+			}
+			n1.itemLog.checkpoint(n1.myItems);
+			for (int i = 500; i < 1500; ++i) {
+				n1.put(i, i * 3);
+			}
+			LongLongMap removed = new LongLongMap();
+			removed.put(7, 0);
+			n1.removeItems(removed);
+			n1.itemLog.close();
+			
+			// a torn record at the end of the log is ignored
+			File[] wals = dir.listFiles((d, name) -> name.startsWith("wal-"));
+			Arrays.sort(wals);
+			try (FileOutputStream fos = new FileOutputStream(wals[wals.length - 1], true)) {
+				fos.write(new byte[] { 1, 2, 3, 4, 5 });
+			}
+			
+			LocalNode n2 = new LocalNode(new HashMap<>(), 3);
+			n2.openItemLog(dir, ItemLog.SyncPolicy.BATCHED);
+			assertEquals(1499, n2.myItems.size());
+			assertNull(n2.myItems.get(7));
+			assertEquals(8, (long) n2.myItems.get(4));
+			assertEquals(998, (long) n2.myItems.get(499));
+			assertEquals(1500, (long) n2.myItems.get(500));
+			assertEquals(4497, (long) n2.myItems.get(1499));
+			n2.itemLog.close();
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+	
+	public void locationCacheTest() throws Exception {
+		LocationCache cache = new LocationCache(3);
+		Endpoint a = new Endpoint("a", 1, 100);
+		Endpoint b = new Endpoint("b", 2, 10);
+		cache.learn(10, a);  // (10, 100]
+		cache.learn(100, b);  // (100, 10], wrapping around zero
+		assertEquals(100, cache.lookup(50).key);
+		assertEquals(100, cache.lookup(100).key);
+		assertEquals(10, cache.lookup(101).key);
+		assertEquals(10, cache.lookup(5).key);
+		assertEquals(4, cache.hits());
+		
+		// a new node inside (10, 100] splits the range
+		Endpoint c = new Endpoint("c", 3, 60);
+		cache.learn(10, c);
+		assertEquals(60, cache.lookup(50).key);
+		assertEquals(100, cache.lookup(70).key);
+		cache.invalidate(a);
+		assertNull(cache.lookup(70));
+		assertEquals(1, cache.misses());
+		
+		// repeated gets on a stable ring are answered by the owner in one hop
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[8];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		for (int i = 0; i < 100; ++i) {
+			nodes[0].put(i, i);
+		}
+		LocationCache locations = nodes[0].getLocationCache();
+		long missesBefore = locations.misses();
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i, (long) nodes[0].get(i));
+		}
+		assertEquals(missesBefore, locations.misses());
+		assertTrue(locations.hits() > 0);
+		
+		// owners reject keys they lost to a new node, and gets still succeed
+		LocalNode late = new LocalNode(m, nodes.length);
+		late.join(nodes[0].myEp);
+		LocalNode[] all = Arrays.copyOf(nodes, nodes.length + 1);
+		all[nodes.length] = late;
+		stabilizeAll(all);
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i, (long) nodes[0].get(i));
+			nodes[0].put(i, i + 1);
+			assertEquals(i + 1, (long) late.get(i));
+		}
+	}
+	
+	public void recursiveLookupTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[10];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			nodes[i].setRouting(AbstractNode.Routing.RECURSIVE);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		
+		// both routing modes agree with the owner found by scanning the ring
+		long[] keys = new long[nodes.length];
+		for (int i = 0; i < nodes.length; ++i) {
+			keys[i] = nodes[i].myEp.key;
+		}
+		Random random = new Random(7);
+		for (int i = 0; i < 200; ++i) {
+			long id = random.nextLong() & AbstractNode.MASK;
+			long owner = ownerOf(keys, id);
+			LocalNode from = nodes[i % nodes.length];
+			assertEquals(owner, from.findSuccessor(id).key);
+			from.setRouting(AbstractNode.Routing.ITERATIVE);
+			assertEquals(owner, from.findSuccessor(id).key);
+			from.setRouting(AbstractNode.Routing.RECURSIVE);
+		}
+		
+		for (int i = 0; i < 100; ++i) {
+			nodes[i % nodes.length].put(i, i);
+		}
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i, (long) nodes[(i + 3) % nodes.length].get(i));
+		}
+	}
+	
+	public void successorListTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[12];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		
+		// lists hold the next SUCCESSORS nodes once they have propagated
+		for (int r = 0; r < AbstractNode.SUCCESSORS; ++r) {
+			for (LocalNode n : nodes) {
+				n.stabilize();
+			}
+		}
+		LocalNode[] ring = nodes.clone();
+		Arrays.sort(ring, (a, b) -> Long.compareUnsigned(a.myEp.key, b.myEp.key));
+		for (int i = 0; i < ring.length; ++i) {
+			Endpoint[] list = ring[i].getSuccessorList();
+			assertEquals(AbstractNode.SUCCESSORS, list.length);
+			for (int j = 0; j < list.length; ++j) {
+				assertEquals(ring[(i + j + 1) % ring.length].myEp.key, list[j].key);
+			}
+		}
+		
+		// two adjacent nodes crash without leaving; one stabilize fails over
+		LocalNode first = ring[0];
+		m.remove(ring[1].myEp.port);
+		m.remove(ring[2].myEp.port);
+		assertEquals(ring[1].myEp.key, first.getSuccessor().key);
+		first.stabilize();
+		assertEquals(ring[3].myEp.key, first.getSuccessor().key);
+		assertEquals(ring[3].myEp.key, first.getSuccessorList()[0].key);
+	}
+	
+	/* Return a LocalNode whose calls to the ports in dead answer null. */
+	private static LocalNode flakyNode(Map<Integer, LocalNode> m, int port,
+			Set<Integer> dead) {
+		return new LocalNode(m, port) {
+			Endpoint getSuccessor(Endpoint ep) {
+				return dead.contains(ep.port) ? null : super.getSuccessor(ep);
+			}
+
+			Endpoint getSuccessor(Endpoint ep, long id) {
+				return dead.contains(ep.port) ? null : super.getSuccessor(ep, id);
+			}
+
+			Endpoint closestPrecedingFinger(Endpoint ep, long id) {
+				return dead.contains(ep.port) ? null : super.closestPrecedingFinger(ep, id);
+			}
+		};
+	}
+
+	public void failedHopTest() throws Exception {
+		// a node stops answering, as if its requests were lost, before anyone
+		// suspects it
+		Set<Integer> dead = new HashSet<>();
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[16];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = flakyNode(m, i, dead);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		LocalNode[] ring = nodes.clone();
+		Arrays.sort(ring, (a, b) -> Long.compareUnsigned(a.myEp.key, b.myEp.key));
+		Endpoint gone = ring[5].myEp;
+		dead.add(gone.port);
+
+		// lookups routed through it stop at the last node that answered
+		for (LocalNode n : nodes) {
+			if (n.myEp.equals(gone)) {
+				continue;
+			}
+			for (int i = 0; i < 200; ++i) {
+				long id = (i * 0x9E3779B97F4A7C15L) & AbstractNode.MASK;
+				Endpoint pred = n.findPredecessor(id);
+				assertTrue(pred != null && !pred.equals(gone));
+				n.findSuccessor(id);
+				n.get(i);
+			}
+		}
+
+		// joining through it fails cleanly and leaves the joiner out
+		LocalNode late = flakyNode(m, nodes.length, dead);
+		boolean joined = true;
+		try {
+			late.join(gone);
+		} catch (IllegalStateException e) {
+			joined = false;
+		}
+		assertFalse(joined);
+		assertFalse(m.containsKey(late.myEp.port));
+	}
+	
+	public void failureDetectorTest() throws Exception {
+		long[] now = new long[1];
+		FailureDetector.Clock clock = () -> now[0];
+		FailureDetector fd = new FailureDetector(clock, 500, 8.0);
+		Endpoint peer = new Endpoint("peer", 1, 1);
+		assertEquals(0, (long) fd.phi(peer));  // unmonitored peers are trusted
+		
+		// phi grows with silence relative to the usual heartbeat interval
+		fd.monitor(peer);
+		for (int i = 0; i < 20; ++i) {
+			now[0] += 480 + (i % 5) * 10;
+			fd.heartbeat(peer);
+		}
+		now[0] += 500;
+		double phiOnTime = fd.phi(peer);
+		now[0] += 1000;
+		double phiLate = fd.phi(peer);
+		assertTrue(phiOnTime < 1);
+		assertTrue(phiLate > phiOnTime);
+		assertTrue(fd.isAvailable(peer));
+		now[0] += 3000;
+		assertFalse(fd.isAvailable(peer));
+		fd.heartbeat(peer);
+		assertTrue(fd.isAvailable(peer));
+		fd.failed(peer);
+		assertFalse(fd.isAvailable(peer));
+		fd.reachable(peer);
+		assertTrue(fd.isAvailable(peer));
+		
+		// heartbeats find a crashed node without stabilize or probes on demand
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[6];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			nodes[i].setFailureDetector(new FailureDetector(clock, 500, 8.0));
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		for (int r = 0; r < 10; ++r) {
+			now[0] += 500;
+			for (LocalNode n : nodes) {
+				n.heartbeat();
+			}
+		}
+		LocalNode[] ring = nodes.clone();
+		Arrays.sort(ring, (a, b) -> Long.compareUnsigned(a.myEp.key, b.myEp.key));
+		m.remove(ring[1].myEp.port);
+		now[0] += 500;
+		assertEquals(ring[1].myEp.key, ring[0].getSuccessor().key);
+		assertTrue(ring[2].checkPredecessor());
+		for (int r = 0; r < 10; ++r) {
+			now[0] += 500;
+			for (LocalNode n : nodes) {
+				if (n != ring[1]) {
+					n.heartbeat();
+				}
+			}
+		}
+		assertEquals(ring[2].myEp.key, ring[0].getSuccessor().key);
+		assertFalse(ring[2].checkPredecessor());
+		
+		// a peer that never answers delays neither the round nor the others
+		Map<Integer, LocalNode> fresh = new HashMap<>();
+		LocalNode[] peers = new LocalNode[4];
+		for (int i = 0; i < peers.length; ++i) {
+			peers[i] = new LocalNode(fresh, i);
+			if (i == 0) {
+				peers[i].create();
+			} else {
+				peers[i].join(peers[0].myEp);
+			}
+		}
+		stabilizeAll(peers);
+		Endpoint[] stalled = new Endpoint[1];
+		LocalNode prober = new LocalNode(fresh, peers.length) {
+			@Override
+			CompletableFuture<Boolean> isReachableAsync(Endpoint ep) {
+				return ep.equals(stalled[0]) ? new CompletableFuture<Boolean>()
+						: super.isReachableAsync(ep);
+			}
+		};
+		prober.setFailureDetector(new FailureDetector(clock, 500, 8.0));
+		prober.join(peers[0].myEp);
+		prober.stabilize();
+		stalled[0] = prober.getSuccessor();
+		Set<Endpoint> probed = new HashSet<>(Arrays.asList(prober.getSuccessorList()));
+		probed.remove(prober.myEp);
+		assertTrue(probed.size() > 1);
+		long start = System.nanoTime();
+		for (int r = 0; r < 10; ++r) {
+			now[0] += 500;
+			prober.clearChanged();
+			prober.heartbeat();
+			assertTrue(prober.isChanged());
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		now[0] += 500;
+		for (Endpoint ep : probed) {
+			assertTrue(ep.equals(stalled[0]) != prober.detector.isAvailable(ep));
+		}
+	}
+	
+	public void fingerBootstrapTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[16];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		
+		// a joining node starts with its successor's fingers and successors
+		LocalNode late = new LocalNode(m, nodes.length);
+		late.join(nodes[0].myEp);
+		Set<Endpoint> distinct = new HashSet<>(Arrays.asList(late.getFingerTable()));
+		assertTrue(distinct.size() > 1);
+		assertEquals(AbstractNode.SUCCESSORS, late.getSuccessorList().length);
+		
+		// one fixFingers call makes every finger exact
+		LocalNode[] all = Arrays.copyOf(nodes, nodes.length + 1);
+		all[nodes.length] = late;
+		long[] keys = new long[all.length];
+		for (int i = 0; i < all.length; ++i) {
+			keys[i] = all[i].myEp.key;
+		}
+		late.fixFingers();
+		Endpoint[] table = late.getFingerTable();
+		for (int i = 0; i < AbstractNode.M; ++i) {
+			long start = (late.myEp.key + (1L << i)) & AbstractNode.MASK;
+			assertEquals(ownerOf(keys, start), table[i].key);
+		}
+		
+		// a stable node reports no change, so its rounds can back off
+		late.clearChanged();
+		late.fixFingers();
+		assertFalse(late.isChanged());
+	}
+	
+	public void virtualNodeTest() throws Exception {
+		// more positions per host spread keys more evenly between hosts
+		int hosts = 20;
+		double[] spread = new double[2];
+		int[] counts = { 1, 16 };
+		for (int c = 0; c < counts.length; ++c) {
+			long[] keys = new long[hosts * counts[c]];
+			Map<Long, Integer> hostOf = new HashMap<>();
+			for (int h = 0; h < hosts; ++h) {
+				Endpoint ep = new Endpoint("localhost", h);
+				for (int v = 0; v < counts[c]; ++v) {
+					long key = v == 0 ? ep.key : VirtualNode.position(ep, v).key;
+					keys[h * counts[c] + v] = key;
+					hostOf.put(key, h);
+				}
+			}
+			int[] load = new int[hosts];
+			for (long key = 0; key < 20000; ++key) {
+				++load[hostOf.get(ownerOf(keys, Utils.hash(key)))];
+			}
+			int max = Arrays.stream(load).max().getAsInt();
+			int min = Arrays.stream(load).min().getAsInt();
+			spread[c] = (double) max / Math.max(min, 1);
+		}
+		assertTrue(spread[1] < spread[0]);
+		assertTrue(spread[1] < 3);
+
+		// positions of one node find each other without leaving the process
+		Node n = startNode(18533);
+		n.setVirtualNodes(4);
+		n.create();
+		List<AbstractNode> positions = n.getPositions();
+		assertEquals(4, positions.size());
+		for (int i = 0; i < positions.size(); ++i) {
+			for (AbstractNode node : positions) {
+				node.stabilize();
+				node.fixFingers();
+			}
+		}
+
+		for (long key = 0; key < 256; ++key) {
+			n.put(key, key * 7);
+		}
+		int holding = 0;
+		for (AbstractNode node : positions) {
+			if (!node.myItems.isEmpty()) {
+				++holding;
+			}
+		}
+		assertTrue(holding > 1);
+		for (long key = 0; key < 256; ++key) {
+			assertEquals(key * 7, positions.get(3).get(key));
+		}
+		stopRing(n);
+	}
+
+	public void replicationTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[8];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			nodes[i].setReplication(2);
+			nodes[i].setReadConsistency(AbstractNode.ReadConsistency.ANY);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+		LocalNode[] ring = nodes.clone();
+		Arrays.sort(ring, (a, b) -> Long.compareUnsigned(a.myEp.key, b.myEp.key));
+
+		// writes reach the owner and its next two successors
+		for (int i = 0; i < 200; ++i) {
+			nodes[i % nodes.length].put(i, i * 3);
+		}
+		for (int i = 0; i < ring.length; ++i) {
+			Endpoint owner = ring[i].myEp;
+			assertEquals(2, ring[i].getReplicaSet().length);
+			for (int j = 1; j <= 2; ++j) {
+				LongLongMap copies = ring[(i + j) % ring.length].replicas.get(owner);
+				assertEquals(ring[i].myItems.size(), copies == null ? 0 : copies.size());
+			}
+			assertNull(ring[(i + 3) % ring.length].replicas.get(owner));
+		}
+		for (int i = 0; i < 200; ++i) {
+			assertEquals(i * 3, (long) nodes[(i + 1) % nodes.length].get(i));
+		}
+
+		// the owner crashes; its successor takes over the replicated items
+		LocalNode crashed = ring[3];
+		LocalNode next = ring[4];
+		int held = crashed.myItems.size();
+		m.remove(crashed.myEp.port);
+		next.suspect(crashed.myEp);
+		next.checkPredecessor();
+		ring[2].suspect(crashed.myEp);
+		ring[2].stabilize();
+		next.stabilize();
+		assertEquals(ring[2].myEp.key, next.predecessor.key);
+		assertTrue(held > 0);
+		assertNull(next.replicas.get(crashed.myEp));
+		for (int i = 0; i < 200; ++i) {
+			assertEquals(i * 3, (long) ring[0].get(i));
+		}
+
+		// the new owner's items are replicated past the gap
+		assertEquals(next.myItems.size(),
+				ring[6].replicas.get(next.myEp).size());
+	}
+
+	public void asyncTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[10];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+
+		// async lookups find the same owners as blocking ones
+		for (long id = 0; id < 1000; id += 7) {
+			assertEquals(nodes[3].findSuccessor(id).key,
+					nodes[3].findSuccessorAsync(id).join().key);
+		}
+		List<CompletableFuture<Void>> puts = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			puts.add(nodes[i % nodes.length].putAsync(i, i + 1));
+		}
+		CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i + 1, (long) nodes[(i + 5) % nodes.length].getAsync(i).join());
+		}
+
+		// one thread keeps many requests in flight between real nodes
+		Node[] ring = startRing(18534, 2);
+		Node n1 = ring[0];
+		Node n2 = ring[1];
+
+		int count = 2000;
+		List<CompletableFuture<Void>> remotePuts = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			remotePuts.add(n1.putAsync(i, i * 5));
+		}
+		CompletableFuture.allOf(remotePuts.toArray(new CompletableFuture<?>[0]))
+				.get(30, TimeUnit.SECONDS);
+		assertTrue(n1.myItems.size() > 0 && n2.myItems.size() > 0);
+		assertEquals(count, n1.myItems.size() + n2.myItems.size());
+		List<CompletableFuture<Long>> gets = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			gets.add(n1.getAsync(i));
+		}
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i * 5, (long) gets.get(i).get(30, TimeUnit.SECONDS));
+		}
+		assertNull(n1.getAsync(count).get(30, TimeUnit.SECONDS));
+		stopRing(ring);
+	}
+
+	public void batchTest() throws Exception {
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[10];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		stabilizeAll(nodes);
+
+		// a batch looks up each owner's range once, not each key
+		int count = 1000;
+		long[] keys = new long[count];
+		long[] values = new long[count];
+		for (int i = 0; i < count; ++i) {
+			keys[i] = i;
+			values[i] = i * 3;
+		}
+		LocationCache locations = nodes[4].getLocationCache();
+		locations.clear();
+		long missesBefore = locations.misses();
+		nodes[4].multiPut(keys, values);
+		assertTrue(locations.misses() - missesBefore <= nodes.length + 1);
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i * 3, (long) nodes[(i + 1) % nodes.length].get(i));
+		}
+
+		long[] wanted = { 5, count + 1, 5, 999 };
+		Long[] found = nodes[7].multiGet(wanted);
+		assertEquals(15, (long) found[0]);
+		assertNull(found[1]);
+		assertEquals(15, (long) found[2]);
+		assertEquals(2997, (long) found[3]);
+
+		// owners that lost keys to a new node reject the batch; it still succeeds
+		LocalNode[] all = Arrays.copyOf(nodes, nodes.length + 1);
+		all[nodes.length] = new LocalNode(m, nodes.length);
+		all[nodes.length].join(nodes[0].myEp);
+		stabilizeAll(all);
+		Long[] again = nodes[4].multiGet(keys);
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i * 3, (long) again[i]);
+		}
+
+		// the same between real nodes
+		Node[] ring = startRing(18536, 2);
+		Node n1 = ring[0];
+		Node n2 = ring[1];
+
+		n1.multiPut(keys, values);
+		assertTrue(n1.myItems.size() > 0 && n2.myItems.size() > 0);
+		assertEquals(count, n1.myItems.size() + n2.myItems.size());
+		Long[] remote = n2.multiGet(wanted);
+		assertEquals(15, (long) remote[0]);
+		assertNull(remote[1]);
+		assertEquals(2997, (long) remote[3]);
+		stopRing(ring);
+	}
+
+	public void workersTest() throws Exception {
+		// VIRTUAL falls back to POOLED on a JVM without virtual threads, so
+		// its paths below only run on JDK 21 or later
+		boolean virtual = "VIRTUAL".equals(System.getProperty("chord.threads"));
+		assertTrue((Workers.MODEL == Workers.Model.VIRTUAL) ==
+				(virtual && Workers.hasVirtualThreads()));
+		if (virtual && Workers.MODEL != Workers.Model.VIRTUAL) {
+			System.out.println("workersTest: no virtual threads on this JVM, " +
+					"testing POOLED instead of VIRTUAL");
+		}
+
+		// a saturated worker pool sheds new tasks instead of queueing them
+		NioServer server = new NioServer(18538, null, 1, 1, 1);
+		int limit = Workers.MODEL == Workers.Model.VIRTUAL ? Workers.VIRTUAL_LIMIT : 2;
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch ran = new CountDownLatch(limit);
+		Runnable task = () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {}
+			ran.countDown();
+		};
+		for (int i = 0; i < limit; ++i) {
+			assertTrue(server.submit(task));
+		}
+		assertFalse(server.submit(task));
+		release.countDown();
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+		server.stop();
+
+		// many workers waiting on one group commit all return
+		File dir = Files.createTempDirectory("chord-workers").toFile();
+		try {
+			LongLongMap items = new LongLongMap();
+			ItemLog log = new ItemLog(dir, ItemLog.SyncPolicy.BATCHED, items);
+			ExecutorService workers = Workers.newExecutor(16);
+			List<Future<?>> writes = new ArrayList<>();
+			for (int i = 0; i < 500; ++i) {
+				long key = i;
+				writes.add(workers.submit(() -> log.sync(log.put(items, key, key))));
+			}
+			for (Future<?> write : writes) {
+				write.get(10, TimeUnit.SECONDS);
+			}
+			workers.shutdown();
+			log.close();
+			assertEquals(500, items.size());
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	public void simulatorTest() throws Exception {
+		// a directly wired ring answers lookups like a stabilized one
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[50];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			m.put(i, nodes[i]);
+		}
+		RingSim.wire(nodes);
+		for (int i = 0; i < 1000; ++i) {
+			long id = Utils.hash(i);
+			Endpoint owner = nodes[0].findSuccessor(id);
+			assertTrue(m.get(owner.port).owns(id));
+			assertEquals(owner.key, nodes[i % nodes.length].findSuccessor(id).key);
+		}
+
+		// without churn every simulated lookup finds the owner
+		Map<String, Long> settings = new HashMap<>();
+		settings.put("nodes", 300L);
+		settings.put("seconds", 5L);
+		settings.put("joins", 0L);
+		settings.put("leaves", 0L);
+		settings.put("crashes", 0L);
+		RingSim sim = new RingSim(settings);
+		sim.run();
+		assertTrue(sim.getLookups() > 0);
+		assertEquals(0, sim.getFailedLookups());
+
+		// with churn it still runs to the end
+		settings.put("joins", 5L);
+		settings.put("leaves", 5L);
+		settings.put("crashes", 5L);
+		sim = new RingSim(settings);
+		sim.run();
+		assertTrue(sim.getFailedLookups() < sim.getLookups());
+	}
+
+	public void metricsTest() throws Exception {
+		// small values are exact, larger ones within 1/16
+		Metrics.Histogram h = new Metrics.Histogram();
+		for (long v = 1; v <= 1000; ++v) {
+			h.record(v);
+		}
+		assertEquals(1000, h.count());
+		assertEquals(1000, h.max());
+		assertTrue(Math.abs(h.mean() - 500.5) < 1e-9);
+		assertTrue(h.percentile(50) >= 500 && h.percentile(50) <= 500 * 17 / 16);
+		assertTrue(h.percentile(99) >= 990 && h.percentile(99) <= 1000);
+		assertEquals(1000, h.percentile(100));
+		for (long v : new long[] { 0, 15, 16, 17, 1000, 1L << 40, Long.MAX_VALUE }) {
+			int b = Metrics.Histogram.bucket(v);
+			assertTrue(Metrics.Histogram.highest(b) >= v);
+			assertTrue(b == 0 || Metrics.Histogram.highest(b - 1) < v);
+		}
+
+		// lookups record their hops
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[20];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			m.put(i, nodes[i]);
+		}
+		RingSim.wire(nodes);
+		Metrics.Histogram hops = nodes[3].getMetrics().getHops();
+		for (int i = 0; i < 100; ++i) {
+			nodes[3].findPredecessor(Utils.hash(i));
+		}
+		assertEquals(100, hops.count());
+		assertTrue(hops.max() <= AbstractNode.MAX_HOPS);
+
+		// real nodes count requests both ways and answer STATS; n2 joins once
+		// n1 has items to hand it
+		int port1 = 18539;
+		int port2 = 18540;
+		Node n1 = startNode(port1);
+		Node n2 = startNode(port2);
+		n1.create();
+		for (int i = 0; i < 100; ++i) {
+			n1.put(i, i);
+		}
+		n2.join(n1.myEp);
+		n2.stabilize();
+		n1.stabilize();
+		assertTrue(n1.getMetrics().getHandedOff() > 0);
+		if (Node.USE_BINARY) {
+			// text handoffs arrive as single GIVE_ITEMs, like puts
+			assertEquals(n1.getMetrics().getHandedOff(), n2.getMetrics().getTakenOver());
+		}
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i, (long) n2.get(i));
+		}
+		String op = Node.USE_BINARY ? WireCodec.name(WireCodec.GET_OWNED) : Node.GET_OWNED;
+		assertTrue(n2.getMetrics().getSent(op).count() > 0);
+		assertTrue(n1.getMetrics().getServed(op).count() > 0);
+
+		try (java.net.Socket s = new java.net.Socket("localhost", port1)) {
+			DataOutputStream dos = Utils.getOutputStream(s);
+			dos.writeBytes(String.format("%s\r\n", Node.STATS));
+			dos.flush();
+			String stats = Utils.getInputStream(s).readLine();
+			assertTrue(stats.startsWith("items="));
+			assertTrue(stats.contains(" server." + op + "="));
+			assertTrue(stats.contains(" peer.localhost:" + port2 + "="));
+		}
+		stopRing(n1, n2);
+	}
+
+	/* Return a value of len bytes that depends on key. */
+	private static byte[] blobOf(long key, int len) {
+		byte[] value = new byte[len];
+		for (int i = 0; i < len; ++i) {
+			value[i] = (byte) (key * 31 + i);
+		}
+		return value;
+	}
+
+	public void blobTest() throws Exception {
+		// values round trip, overwrite and remove
+		BlobStore store = new BlobStore();
+		assertNull(store.get(1));
+		assertEquals(0, store.reservedBytes());
+		for (long key = 0; key < 100; ++key) {
+			store.put(key, blobOf(key, (int) key * 10));
+		}
+		assertEquals(100, store.size());
+		ByteBuffer view = store.getBuffer(42);
+		store.put(42, blobOf(7, 3));
+		assertTrue(Arrays.equals(blobOf(7, 3), store.get(42)));
+		byte[] old = new byte[view.remaining()];
+		view.get(old);
+		assertTrue(Arrays.equals(blobOf(42, 420), old));
+		assertTrue(store.remove(42));
+		assertFalse(store.remove(42));
+		assertNull(store.get(42));
+		assertEquals(0, store.get(0).length);
+
+		// a large value has a slab of its own, released when it is removed
+		long before = store.reservedBytes();
+		store.put(1000, blobOf(1000, 3 << 20));
+		assertTrue(store.reservedBytes() >= before + (3 << 20));
+		assertTrue(Arrays.equals(blobOf(1000, 3 << 20), store.get(1000)));
+		store.remove(1000);
+		assertEquals(before, store.reservedBytes());
+
+		// overwrites leave garbage that compaction gets back
+		for (int round = 0; round < 200; ++round) {
+			for (long key = 0; key < 100; ++key) {
+				store.put(key, blobOf(key + round, 4096));
+			}
+		}
+		assertTrue(store.reservedBytes() < 8 * BlobStore.SLAB_SIZE);
+		for (long key = 0; key < 100; ++key) {
+			assertTrue(Arrays.equals(blobOf(key + 199, 4096), store.get(key)));
+		}
+
+		// two halves of the circle cover every key once
+		long[] low = store.keysInRange(0, Long.MIN_VALUE);
+		long[] high = store.keysInRange(Long.MIN_VALUE, 0);
+		assertEquals(store.size(), low.length + high.length);
+		assertEquals(store.size(), store.keys().length);
+		store.clear();
+		assertEquals(0, store.size());
+		assertEquals(0, store.reservedBytes());
+
+		// a write the owner turns away is retried once, then reported
+		Map<Integer, LocalNode> m = new HashMap<>();
+		int[] rejections = new int[1];
+		LocalNode owner = new LocalNode(m, 0);
+		LocalNode writer = new LocalNode(m, 1) {
+			@Override
+			void giveOwnedBlob(Endpoint ep, long key, byte[] value)
+					throws StaleRouteException {
+				if (rejections[0] > 0) {
+					--rejections[0];
+					throw new StaleRouteException(ep);
+				}
+				super.giveOwnedBlob(ep, key, value);
+			}
+		};
+		owner.create();
+		writer.join(owner.myEp);
+		stabilizeAll(new LocalNode[] { owner, writer });
+		for (long key = 0; key < 10; ++key) {
+			rejections[0] = 1;
+			writer.putBytes(key, blobOf(key, 10));
+			assertTrue(Arrays.equals(blobOf(key, 10), owner.getBytes(key)));
+		}
+		rejections[0] = Integer.MAX_VALUE;
+		boolean stored = true;
+		try {
+			writer.putBytes(10, blobOf(10, 10));
+		} catch (IllegalStateException e) {
+			stored = false;
+		}
+		assertFalse(stored);
+		assertNull(owner.getBytes(10));
+
+		// real nodes serve values and hand them over on join and leave
+		Node n1 = startNode(18549);
+		Node n2 = startNode(18550);
+		n1.create();
+		int[] sizes = { 0, 1, 100, BlobStore.MAX_SMALL + 1, 2 << 20 };
+		for (long key = 0; key < 50; ++key) {
+			n1.putBytes(key, blobOf(key, sizes[(int) key % sizes.length]));
+		}
+		n1.put(7, 7);
+		n2.join(n1.myEp);
+		n2.stabilize();
+		n1.stabilize();
+		assertTrue(n2.myBlobs.size() > 0);
+		assertEquals(50, n1.myBlobs.size() + n2.myBlobs.size());
+		for (long key = 0; key < 50; ++key) {
+			byte[] expected = blobOf(key, sizes[(int) key % sizes.length]);
+			assertTrue(Arrays.equals(expected, n1.getBytes(key)));
+			assertTrue(Arrays.equals(expected, n2.getBytes(key)));
+		}
+		assertNull(n1.getBytes(50));
+		assertEquals(7, (long) n2.get(7));
+
+		stopRing(n2);
+		assertEquals(50, n1.myBlobs.size());
+		for (long key = 0; key < 50; ++key) {
+			byte[] expected = blobOf(key, sizes[(int) key % sizes.length]);
+			assertTrue(Arrays.equals(expected, n1.getBytes(key)));
+		}
+		stopRing(n1);
+	}
+
+	public void nearCacheTest() throws Exception {
+		// LRU evicts the least recently read value
+		NearCache lru = new NearCache(3, NearCache.Policy.LRU);
+		long now = System.nanoTime();
+		for (long key = 1; key <= 3; ++key) {
+			lru.put(key, key * 10, now, 10000);
+		}
+		assertEquals(10, (long) lru.get(1));
+		lru.put(4, 40, now, 10000);
+		assertNull(lru.get(2));
+		assertEquals(10, (long) lru.get(1));
+		assertEquals(3, lru.size());
+		lru.invalidate(1);
+		assertNull(lru.get(1));
+
+		// a value is dropped once its lease runs out
+		lru.put(5, 50, System.nanoTime(), 1);
+		Thread.sleep(5);
+		assertNull(lru.get(5));
+		assertEquals(1, lru.expired());
+
+		// a scan of keys read once pushes a hot key out of LRU but not TINYLFU
+		for (NearCache.Policy policy : NearCache.Policy.values()) {
+			NearCache cache = new NearCache(100, policy);
+			for (int i = 0; i < 20; ++i) {
+				if (cache.get(0) == null) {
+					cache.put(0, 0, System.nanoTime(), 10000);
+				}
+			}
+			for (long key = 1; key <= 1000; ++key) {
+				if (cache.get(key) == null) {
+					cache.put(key, key, System.nanoTime(), 10000);
+				}
+			}
+			assertTrue(cache.size() <= 100);
+			assertTrue((cache.get(0) != null) == (policy == NearCache.Policy.TINYLFU));
+		}
+
+		// reads of other nodes' keys are served from the cache within the lease
+		Map<Integer, LocalNode> m = new HashMap<>();
+		LocalNode[] nodes = new LocalNode[10];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new LocalNode(m, i);
+			m.put(i, nodes[i]);
+		}
+		RingSim.wire(nodes);
+		LocalNode reader = nodes[0];
+		NearCache near = new NearCache(100, NearCache.Policy.TINYLFU);
+		reader.setNearCache(near);
+		long key = 0;
+		while (reader.owns(Utils.hash(key))) {
+			++key;
+		}
+		LocalNode owner = m.get(reader.findSuccessor(Utils.hash(key)).port);
+		owner.setLease(50);
+		reader.put(key, 1);
+		assertEquals(1, (long) reader.get(key));
+		assertEquals(1, (long) reader.get(key));
+		assertEquals(1, near.hits());
+
+		// another node's write is seen once the lease runs out
+		owner.put(key, 2);
+		assertEquals(1, (long) reader.get(key));
+		Thread.sleep(60);
+		assertEquals(2, (long) reader.get(key));
+
+		// the reader's own writes are seen at once
+		reader.put(key, 3);
+		assertEquals(3, (long) reader.get(key));
+
+		// an owner that grants no lease is always asked
+		owner.setLease(0);
+		Thread.sleep(60);
+		long hits = near.hits();
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(3, (long) reader.get(key));
+		}
+		assertEquals(hits, near.hits());
+
+		// real nodes grant leases over the wire
+		Node[] ring = startRing(18551, 2);
+		Node n1 = ring[0];
+		Node n2 = ring[1];
+		n2.setNearCache(new NearCache(100, NearCache.Policy.LRU));
+		key = 0;
+		while (!n1.owns(Utils.hash(key))) {
+			++key;
+		}
+		n1.put(key, 42);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(42, (long) n2.get(key));
+		}
+		assertEquals(9, n2.getNearCache().hits());
+		String op = WireCodec.name(WireCodec.GET_LEASED);
+		assertEquals(1, n2.getMetrics().getSent(op).count());
+		assertTrue(n2.stats().contains(" near=9/"));
+		stopRing(ring);
+	}
+
+	public void loadTest() throws Exception {
+		// a closed loop keeps every request answered while a node joins and leaves
+		Map<String, String> settings = new HashMap<>();
+		settings.put("nodes", "2");
+		settings.put("port", "18541");
+		settings.put("seconds", "3");
+		settings.put("clients", "4");
+		settings.put("zipf", "0.99");
+		settings.put("churn", "1");
+		LoadDriver driver = new LoadDriver(settings);
+		driver.run();
+		assertTrue(driver.getRequests() > 0);
+
+		// a target rate is never exceeded; how close a busy machine gets to it
+		// is not up to the driver, so the upper bound is tight, with a
+		// second's slack for clients that start before the clock or finish
+		// their last request after it, and the lower bound is half the target
+		int rate = 200;
+		settings.put("port", "18545");
+		settings.put("churn", "0");
+		settings.put("rate", Integer.toString(rate));
+		driver = new LoadDriver(settings);
+		driver.run();
+		assertEquals(0, driver.getErrors());
+		assertTrue(driver.getRequests() >= rate * 3 / 2);
+		assertTrue(driver.getRequests() <= rate * (3 + 1));
+
+		// a node that cannot join is stopped again rather than left running,
+		// so its port is free once the run is over
+		settings = new HashMap<>();
+		settings.put("nodes", "1");
+		settings.put("port", "18547");
+		settings.put("attach", "localhost:18548");
+		settings.put("seconds", "1");
+		driver = new LoadDriver(settings);
+		driver.run();
+		try (java.net.ServerSocket free = new java.net.ServerSocket(18547)) {
+			assertEquals(18547, free.getLocalPort());
+		}
+	}
+
+	public void hasherTest() throws Exception {
+		// SHA1 keeps the original placement of keys and nodes on 31-bit rings
+		if (AbstractNode.M == 31) {
+			long[] keys = { 0, 1, 7, 42, -1, 123456789012L, Long.MAX_VALUE, Long.MIN_VALUE };
+			for (long key : keys) {
+				assertEquals(legacyHash(Long.toString(key)), Hasher.SHA1.hash(key));
+			}
+			assertEquals(legacyHash("localhost8001"), Hasher.SHA1.hash("localhost8001"));
+		}
+		
+		// both hashers spread consecutive keys evenly over the ring
+		for (Hasher hasher : new Hasher[] { Hasher.SHA1, Hasher.MIX }) {
+			int[] buckets = new int[16];
+			for (long key = 0; key < 160000; ++key) {
+				long h = hasher.hash(key);
+				assertEquals(h, h & AbstractNode.MASK);
+				++buckets[(int) (h >>> (AbstractNode.M - 4))];
+			}
+			for (int b : buckets) {
+				assertTrue(b > 9500 && b < 10500);
+			}
+		}
+		assertEquals(Hasher.MIX.hash(42), Hasher.forName("mix").hash(42));
+	}
+	
+	/* Hash s as the original Utils.hash did. */
+	private static long legacyHash(String s) throws Exception {
+		byte[] b = java.security.MessageDigest.getInstance("SHA1").digest(s.getBytes());
+		return Math.abs((long) b[0] + ((long) b[1] << 8) + ((long) b[2] << 16) +
+				((long) b[3] << 24) + ((long) b[4] << 32)) % (1L << 31);
+	}
+	
+	/* Return the key in keys that is the first at or after id on the ring. */
+	private static long ownerOf(long[] keys, long id) {
+		long owner = keys[0];
+		for (long key : keys) {
+			if (Long.compareUnsigned(AbstractNode.distance(id, key),
+					AbstractNode.distance(id, owner)) < 0) {
+				owner = key;
+			}
+		}
+		return owner;
+	}
+	
+	/* Start a Node on port, serving on a thread of its own. */
+	private Node startNode(int port) throws IOException {
+		Node node = new Node("localhost", port);
+		Thread thread = new Thread(node);
+		threads.put(node, thread);
+		thread.start();
+		return node;
+	}
+
+	/* Start n Nodes on ports from port, joined into one stabilized ring. */
+	private Node[] startRing(int port, int n) throws Exception {
+		Node[] nodes = new Node[n];
+		for (int i = 0; i < n; ++i) {
+			nodes[i] = startNode(port + i);
+			if (i == 0) {
+				nodes[i].create();
+			} else {
+				nodes[i].join(nodes[0].myEp);
+			}
+		}
+		for (int r = 1; r < n; ++r) {
+			for (int i = n - 1; i >= 0; --i) {
+				nodes[i].stabilize();
+			}
+		}
+		return nodes;
+	}
+
+	/*
+	 * Tell nodes to leave, last first, waiting for each to stop so that they
+	 * do not hand items to each other at once.
+	 */
+	private void stopRing(Node... nodes) throws Exception {
+		for (int i = nodes.length - 1; i >= 0; --i) {
+			try (java.net.Socket s = new java.net.Socket("localhost", nodes[i].myEp.port)) {
+				DataOutputStream dos = Utils.getOutputStream(s);
+				dos.writeBytes(String.format("%s\r\n", Node.LEAVE));
+				dos.flush();
+			}
+			threads.remove(nodes[i]).join();
+		}
+	}
+
+	/* Run stabilize and fixFingers on every node until the ring settles. */
+	private static void stabilizeAll(LocalNode[] nodes) {
+		for (int i = 0; i < nodes.length; ++i) {
+			for (int j = 0; j < nodes.length; ++j) {
+				nodes[j].stabilize();
+				for (int k = 0; k < AbstractNode.M; ++k) {
+					nodes[j].fixFingers();
+				}
+			}
+		}
+	}
+	
 	public static void main(String args[]) throws Exception {
 		NodeTest test = new NodeTest();
 		test.twoNodeTest();
 		test.manyNodesTest();
+		test.ringArithmeticTest();
+		test.codecTest();
+		test.connectionPoolTest();
+		test.nioServerTest();
+		test.handoffTest();
+		test.longLongMapTest();
+		test.itemLogTest();
+		test.locationCacheTest();
+		test.recursiveLookupTest();
+		test.successorListTest();
+		test.failedHopTest();
+		test.failureDetectorTest();
+		test.fingerBootstrapTest();
+		test.hasherTest();
+		test.virtualNodeTest();
+		test.replicationTest();
+		test.asyncTest();
+		test.batchTest();
+		test.workersTest();
+		test.simulatorTest();
+		test.metricsTest();
+		test.loadTest();
+		test.blobTest();
+		test.nearCacheTest();
 		System.out.println("Tests succeeded!");
 	}
 }
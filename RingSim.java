@@ -0,0 +1,441 @@
+import java.util.*;
+
+/*
+ * RingSim
+ * Discrete-event simulator for large rings. SimNodes run the real protocol
+ * code against a virtual clock: a priority queue of events drives each
+ * node's stabilization rounds, random lookups, and churn as joins, graceful
+ * leaves and crashes. Every call between nodes is charged a round trip on
+ * its link, whose one-way latency is a base plus a fixed per-link jitter.
+ *
+ * An event runs to completion at one instant, so a lookup's latency is the
+ * sum of the round trips it made rather than time during which the ring
+ * could change under it. Crashed nodes are noticed through failed calls, as
+ * heartbeats are not simulated.
+ *
+ * Run `java -cp chord.jar RingSim [name=value...]`, e.g. nodes=100000
+ * seconds=30. See DEFAULTS for the settings and their units.
+ */
+public class RingSim {
+	static final String HOST = "sim";
+
+	// settings; rates are per second of simulated time, times in milliseconds
+	private static final String[][] DEFAULTS = {
+			{ "nodes", "1000" },
+			{ "seconds", "60" },
+			{ "latency", "20" },
+			{ "jitter", "30" },
+			{ "stabilize", "1000" },
+			{ "lookups", "100" },
+			{ "joins", "1" },
+			{ "leaves", "1" },
+			{ "crashes", "1" },
+			{ "seed", "1" }
+	};
+
+	/*
+	 * Event
+	 * Action due at a point in simulated time. Events due at the same time
+	 * run in the order they were scheduled.
+	 */
+	private static class Event implements Comparable<Event> {
+		final long time;
+		final long seq;
+		final Runnable action;
+
+		/* Event constructor. */
+		Event(long time, long seq, Runnable action) {
+			this.time = time;
+			this.seq = seq;
+			this.action = action;
+		}
+
+		/* Order by time, then by scheduling order. */
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return Long.compare(time, other.time);
+			}
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	private Map<String, Long> settings;
+	private Random random;
+	private PriorityQueue<Event> events;
+	private long nextSeq;
+	private long now;
+	private int nextPort;
+
+	private List<SimNode> alive;
+	private Map<Integer, SimNode> byPort;
+	private TreeMap<Long, SimNode> byKey;
+
+	// cost of the event being run
+	private long opLatency;
+	private int opHops;
+	private long opMessages;
+
+	private long stabilizeMessages;
+	private long churnMessages;
+	private long lookupMessages;
+	private long lookups;
+	private long failedLookups;
+	private long[] hops;
+	private long[] latencies;
+	private int joins;
+	private int leaves;
+	private int crashes;
+	private int failedJoins;
+
+	/* RingSim constructor with settings overriding DEFAULTS. */
+	public RingSim(Map<String, Long> overrides) {
+		settings = new HashMap<String, Long>();
+		for (String[] d : DEFAULTS) {
+			settings.put(d[0], Long.parseLong(d[1]));
+		}
+		for (Map.Entry<String, Long> e : overrides.entrySet()) {
+			if (!settings.containsKey(e.getKey())) {
+				throw new IllegalArgumentException("unknown setting: " + e.getKey());
+			}
+			settings.put(e.getKey(), e.getValue());
+		}
+
+		random = new Random(setting("seed"));
+		events = new PriorityQueue<Event>();
+		alive = new ArrayList<SimNode>();
+		byPort = new HashMap<Integer, SimNode>();
+		byKey = new TreeMap<Long, SimNode>();
+		hops = new long[AbstractNode.MAX_HOPS + 2];
+		latencies = new long[1024];
+	}
+
+	/* Return setting name. */
+	private long setting(String name) {
+		return settings.get(name);
+	}
+
+	// ==============================
+  // Ring Functions
+  // ==============================
+
+	/*
+	 * Give nodes the fingers, predecessors and successor lists of a stable
+	 * ring, which joining and stabilizing one by one would take far too long
+	 * to reach for large rings.
+	 */
+	static void wire(AbstractNode[] nodes) {
+		int n = nodes.length;
+		AbstractNode[] sorted = nodes.clone();
+		Arrays.sort(sorted, (a, b) -> Long.compareUnsigned(a.myEp.key, b.myEp.key));
+		long[] keys = new long[n];
+		for (int i = 0; i < n; ++i) {
+			keys[i] = sorted[i].myEp.key;
+		}
+
+		for (int i = 0; i < n; ++i) {
+			AbstractNode node = sorted[i];
+			node.predecessor = sorted[(i + n - 1) % n].myEp;
+			for (int k = 0; k < AbstractNode.M; ++k) {
+				long start = (node.myEp.key + (1L << k)) & AbstractNode.MASK;
+				node.finger.put(k, sorted[successorIndex(keys, start)].myEp);
+			}
+			Endpoint[] next = new Endpoint[Math.min(AbstractNode.SUCCESSORS, n - 1)];
+			for (int j = 0; j < next.length; ++j) {
+				next[j] = sorted[(i + 1 + j) % n].myEp;
+			}
+			node.successors = next;
+		}
+	}
+
+	/* Return index of the first of the sorted keys at or after id. */
+	private static int successorIndex(long[] keys, long id) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (Long.compareUnsigned(keys[mid], id) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo == keys.length ? 0 : lo;
+	}
+
+	/* Return a new node on the next free port, not yet in the ring. */
+	private SimNode newNode() {
+		SimNode node = new SimNode(this, nextPort++, new FailureDetector(
+				() -> now / 1000, FailureDetector.DEFAULT_INTERVAL,
+				FailureDetector.DEFAULT_THRESHOLD));
+		if (byKey.containsKey(node.myEp.key ^ Long.MIN_VALUE)) {
+			// id collision; take the next port instead
+			return newNode();
+		}
+		return node;
+	}
+
+	/* Make node reachable and start its stabilization rounds. */
+	private void add(SimNode node) {
+		node.index = alive.size();
+		alive.add(node);
+		byPort.put(node.myEp.port, node);
+		byKey.put(node.myEp.key ^ Long.MIN_VALUE, node);
+		long interval = setting("stabilize") * 1000;
+		schedule(now + (long) (random.nextDouble() * interval), () -> round(node));
+	}
+
+	/* Make node unreachable. */
+	private void remove(SimNode node) {
+		node.up = false;
+		SimNode last = alive.remove(alive.size() - 1);
+		if (last != node) {
+			alive.set(node.index, last);
+			last.index = node.index;
+		}
+		byPort.remove(node.myEp.port);
+		byKey.remove(node.myEp.key ^ Long.MIN_VALUE);
+	}
+
+	/* Return a live node chosen at random. */
+	private SimNode anyNode() {
+		return alive.get(random.nextInt(alive.size()));
+	}
+
+	/* Return the live node that truly owns id. */
+	private SimNode owner(long id) {
+		Map.Entry<Long, SimNode> e = byKey.ceilingEntry(id ^ Long.MIN_VALUE);
+		return e != null ? e.getValue() : byKey.firstEntry().getValue();
+	}
+
+	// ==============================
+  // Message Functions
+  // ==============================
+
+	/*
+	 * Charge a call from one node to another a round trip and return the
+	 * node called, or null if it is down.
+	 */
+	SimNode deliver(Endpoint from, Endpoint to) {
+		++opMessages;
+		opLatency += 2 * latency(from.port, to.port);
+		return to.host.equals(HOST) ? byPort.get(to.port) : null;
+	}
+
+	/* Count a routing hop of the event being run. */
+	void hop() {
+		++opHops;
+	}
+
+	/* Return one-way latency in microseconds of the link between two ports. */
+	private long latency(int a, int b) {
+		long h = (long) Math.min(a, b) * 0x9E3779B97F4A7C15L ^ Math.max(a, b);
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 32;
+		long jitter = setting("jitter") * 1000;
+		return setting("latency") * 1000 +
+				(jitter == 0 ? 0 : Long.remainderUnsigned(h, jitter));
+	}
+
+	// ==============================
+  // Event Functions
+  // ==============================
+
+	/* Run action at time, in microseconds. */
+	private void schedule(long time, Runnable action) {
+		events.add(new Event(time, nextSeq++, action));
+	}
+
+	/* Schedule action to recur at random with the given rate per second. */
+	private void poisson(String rate, Runnable action) {
+		long perSecond = setting(rate);
+		if (perSecond <= 0) {
+			return;
+		}
+		long gap = (long) (-Math.log(1 - random.nextDouble()) * 1e6 / perSecond);
+		schedule(now + gap, () -> {
+			action.run();
+			poisson(rate, action);
+		});
+	}
+
+	/* Start an event, clearing its cost. */
+	private void begin() {
+		opLatency = 0;
+		opHops = 0;
+		opMessages = 0;
+	}
+
+	/* Run one stabilization round of node and schedule the next. */
+	private void round(SimNode node) {
+		if (!node.up) {
+			return;
+		}
+		begin();
+		node.stabilize();
+		node.fixFingers();
+		node.checkPredecessor();
+		stabilizeMessages += opMessages;
+		schedule(now + setting("stabilize") * 1000, () -> round(node));
+	}
+
+	/* Look up a random id from a random node and check the answer. */
+	private void lookup() {
+		if (alive.isEmpty()) {
+			return;
+		}
+		long id = random.nextLong() & AbstractNode.MASK;
+		SimNode from = anyNode();
+		begin();
+		Endpoint found = from.findSuccessor(id);
+		lookupMessages += opMessages;
+
+		if (found == null || !found.equals(owner(id).myEp)) {
+			++failedLookups;
+		}
+		++hops[Math.min(opHops, hops.length - 1)];
+		if (lookups == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[(int) lookups++] = opLatency;
+	}
+
+	/* Add a node through a random member. */
+	private void join() {
+		if (alive.isEmpty()) {
+			return;
+		}
+		SimNode via = anyNode();
+		SimNode node = newNode();
+		begin();
+		try {
+			node.join(via.myEp);
+			add(node);
+			++joins;
+		} catch (IllegalStateException e) {
+			// no lookup through via found a successor
+			++failedJoins;
+		}
+		churnMessages += opMessages;
+	}
+
+	/* Let a random node leave gracefully. */
+	private void leave() {
+		if (alive.size() <= 1) {
+			return;
+		}
+		SimNode node = anyNode();
+		begin();
+		node.leave();
+		remove(node);
+		++leaves;
+		churnMessages += opMessages;
+	}
+
+	/* Crash a random node. */
+	private void crash() {
+		if (alive.size() <= 1) {
+			return;
+		}
+		remove(anyNode());
+		++crashes;
+	}
+
+	/* Build the ring, run every event due within the simulated time, and report. */
+	public void run() {
+		int n = (int) setting("nodes");
+		SimNode[] nodes = new SimNode[n];
+		for (int i = 0; i < n; ++i) {
+			nodes[i] = newNode();
+			byKey.put(nodes[i].myEp.key ^ Long.MIN_VALUE, nodes[i]);
+		}
+		wire(nodes);
+		for (SimNode node : nodes) {
+			add(node);
+		}
+
+		poisson("lookups", () -> lookup());
+		poisson("joins", () -> join());
+		poisson("leaves", () -> leave());
+		poisson("crashes", () -> crash());
+
+		long end = setting("seconds") * 1000000;
+		Event e;
+		while ((e = events.poll()) != null && e.time <= end) {
+			now = e.time;
+			e.action.run();
+		}
+		report(n);
+	}
+
+	/* Print what happened. */
+	private void report(int initial) {
+		double seconds = setting("seconds");
+		System.out.printf(Locale.ROOT, "nodes      %d -> %d (%d joined, %d left, " +
+				"%d crashed) over %.0f s%n", initial, alive.size(), joins, leaves,
+				crashes, seconds);
+		System.out.printf(Locale.ROOT, "lookups    %d, %.3f%% failed%n", lookups,
+				lookups == 0 ? 0.0 : 100.0 * failedLookups / lookups);
+
+		StringBuilder dist = new StringBuilder();
+		for (int h = 0; h < hops.length; ++h) {
+			if (hops[h] > 0) {
+				dist.append(String.format(Locale.ROOT, " %s%d:%.1f%%",
+						h == hops.length - 1 ? ">=" : "", h, 100.0 * hops[h] / lookups));
+			}
+		}
+		System.out.println("hops      " + dist);
+
+		long[] sorted = Arrays.copyOf(latencies, (int) lookups);
+		Arrays.sort(sorted);
+		System.out.printf(Locale.ROOT, "latency    p50 %.1f ms, p90 %.1f ms, " +
+				"p99 %.1f ms, max %.1f ms%n", percentile(sorted, 0.5),
+				percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1));
+
+		double nodeSeconds = (initial + alive.size()) / 2.0 * seconds;
+		System.out.printf(Locale.ROOT, "messages   %.1f stabilization per node per " +
+				"second, %d for lookups, %d for churn%n",
+				stabilizeMessages / nodeSeconds, lookupMessages, churnMessages);
+		if (failedJoins > 0) {
+			System.out.println("errors     " + failedJoins + " joins found no successor");
+		}
+	}
+
+	/* Return number of lookups made. */
+	public long getLookups() {
+		return lookups;
+	}
+
+	/* Return number of lookups that did not find the true owner. */
+	public long getFailedLookups() {
+		return failedLookups;
+	}
+
+	/* Return the p quantile of sorted microseconds in milliseconds. */
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1000.0;
+	}
+
+	/* Main method. */
+	public static void main(String args[]) {
+		// debug lines would drown the report; -Dchord.debug=true brings them back
+		if (System.getProperty("chord.debug") == null) {
+			System.setProperty("chord.debug", "false");
+		}
+
+		Map<String, Long> overrides = new HashMap<String, Long>();
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2) {
+				System.err.println("ERROR: expected name=value: " + arg);
+				return;
+			}
+			overrides.put(kv[0], Long.parseLong(kv[1]));
+		}
+		new RingSim(overrides).run();
+	}
+}
@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+
+/*
+ * SimNode
+ * Implementation of AbstractNode driven by a RingSim. Calls to other nodes
+ * run the other node's code directly, as in LocalNode, but each one is
+ * charged a round trip on the simulated link, and a call to a node that has
+ * crashed or left fails the way a refused connection does.
+ */
+public class SimNode extends AbstractNode {
+	// small, since a simulation may hold 100,000 nodes
+	private static final int CACHE_CAPACITY = 16;
+
+	private RingSim sim;
+	boolean up;
+	int index;
+
+	/* SimNode constructor. */
+	public SimNode(RingSim sim, int port, FailureDetector detector) {
+		super(RingSim.HOST, port);
+		this.sim = sim;
+		this.detector = detector;
+		locations = new LocationCache(CACHE_CAPACITY);
+		up = true;
+	}
+
+	/*
+	 * Return the node at ep after charging the call to the simulation, or
+	 * null and suspect ep if it is down.
+	 */
+	private SimNode reach(Endpoint ep) {
+		if (ep == null) {
+			return null;
+		}
+		if (ep.equals(myEp)) {
+			return this;
+		}
+		SimNode n = sim.deliver(myEp, ep);
+		if (n == null) {
+			suspect(ep);
+		} else {
+			alive(ep);
+		}
+		return n;
+	}
+
+	@Override
+	Endpoint closestPrecedingFinger(Endpoint ep, long id) {
+		SimNode n = reach(ep);
+		if (n != this && n != null) {
+			sim.hop();
+		}
+		return n == null ? null : n.closestPrecedingFinger(id);
+	}
+
+	@Override
+	Endpoint getSuccessor(Endpoint ep) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.finger.get(0);
+	}
+
+	@Override
+	Endpoint getSuccessor(Endpoint ep, long id) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.findSuccessor(id);
+	}
+
+	@Override
+	Endpoint getPredecessor(Endpoint ep) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.predecessor;
+	}
+
+	@Override
+	Endpoint[] getSuccessorList(Endpoint ep) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.getSuccessorList();
+	}
+
+	@Override
+	Endpoint[] getFingerTable(Endpoint ep) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.getFingerTable();
+	}
+
+	@Override
+	Long getItem(Endpoint ep, long key) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.myItems.get(key);
+	}
+
+	@Override
+	void giveItem(Endpoint ep, long key, long value) {
+		SimNode n = reach(ep);
+		if (n != null) {
+			n.storeItem(key, value);
+		}
+	}
+
+	@Override
+	Long getOwnedItem(Endpoint ep, long key) throws StaleRouteException {
+		SimNode n = reach(ep);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		return n.myItems.get(key);
+	}
+
+	@Override
+	NearCache.Lease getLeasedItem(Endpoint ep, long key) throws StaleRouteException {
+		SimNode n = reach(ep);
+		NearCache.Lease lease = n == null ? null : n.leasedItem(key);
+		if (lease == null) {
+			throw new StaleRouteException(ep);
+		}
+		return lease;
+	}
+
+	@Override
+	void giveOwnedItem(Endpoint ep, long key, long value) throws StaleRouteException {
+		SimNode n = reach(ep);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		n.storeItem(key, value);
+	}
+
+	@Override
+	Long[] getOwnedItems(Endpoint ep, long[] keys) throws StaleRouteException {
+		SimNode n = reach(ep);
+		Long[] values = n == null ? null : n.ownedItems(keys);
+		if (values == null) {
+			throw new StaleRouteException(ep);
+		}
+		return values;
+	}
+
+	@Override
+	void giveOwnedItems(Endpoint ep, long[] keys, long[] values)
+			throws StaleRouteException {
+		SimNode n = reach(ep);
+		if (n == null || !n.storeOwnedItems(keys, values)) {
+			throw new StaleRouteException(ep);
+		}
+	}
+
+	@Override
+	boolean giveItems(Endpoint ep, LongLongMap items) {
+		SimNode n = reach(ep);
+		if (n == null) {
+			return false;
+		}
+		n.storeItems(items);
+		return true;
+	}
+
+	@Override
+	byte[] getOwnedBlob(Endpoint ep, long key) throws StaleRouteException {
+		SimNode n = reach(ep);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		return n.myBlobs.get(key);
+	}
+
+	@Override
+	void giveOwnedBlob(Endpoint ep, long key, byte[] value) throws StaleRouteException {
+		SimNode n = reach(ep);
+		if (n == null || !n.owns(Utils.hash(key))) {
+			throw new StaleRouteException(ep);
+		}
+		n.storeBlob(key, ByteBuffer.wrap(value));
+	}
+
+	@Override
+	boolean giveBlobs(Endpoint ep, BlobStore blobs, long[] keys) {
+		SimNode n = reach(ep);
+		if (n == null) {
+			return false;
+		}
+		n.storeBlobs(blobs, keys);
+		return true;
+	}
+
+	@Override
+	void forwardLookup(Endpoint ep, long id, Endpoint origin, long lookupId,
+			int hops) {
+		SimNode n = reach(ep);
+		if (n != null) {
+			sim.hop();
+			n.routeLookup(id, origin, lookupId, hops);
+		}
+	}
+
+	@Override
+	void lookupDone(Endpoint origin, long lookupId, Endpoint pred, Endpoint succ) {
+		SimNode n = reach(origin);
+		if (n != null) {
+			n.completeLookup(lookupId, pred, succ);
+		}
+	}
+
+	@Override
+	boolean giveReplicas(Endpoint ep, LongLongMap items) {
+		SimNode n = reach(ep);
+		if (n == null) {
+			return false;
+		}
+		n.storeReplicas(myEp, items);
+		return true;
+	}
+
+	@Override
+	void dropReplicas(Endpoint ep) {
+		SimNode n = reach(ep);
+		if (n != null) {
+			n.removeReplicas(myEp);
+		}
+	}
+
+	@Override
+	Long getReplica(Endpoint ep, Endpoint owner, long key) {
+		SimNode n = reach(ep);
+		return n == null ? null : n.replicaItem(owner, key);
+	}
+
+	@Override
+	void leaving(Endpoint ep, Endpoint pred) {
+		SimNode n = reach(ep);
+		if (n != null) {
+			n.processLeave(myEp, pred);
+		}
+	}
+
+	@Override
+	void notify(Endpoint ep) {
+		SimNode n = reach(ep);
+		if (n != null) {
+			n.processNotification(myEp);
+		}
+	}
+
+	@Override
+	boolean isReachable(Endpoint ep) {
+		return reach(ep) != null;
+	}
+}
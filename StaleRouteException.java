@@ -0,0 +1,17 @@
+/* 
+ * StaleRouteException
+ * Thrown when a node reached through a cached route does not own the key it
+ * was asked about, or cannot be reached at all.
+ */
+public class StaleRouteException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	// Endpoint is not serializable, and the exception never leaves the process
+	public final transient Endpoint ep;
+
+	/* StaleRouteException constructor. */
+	public StaleRouteException(Endpoint ep) {
+		super("stale route to " + ep);
+		this.ep = ep;
+	}
+}
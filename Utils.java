@@ -1,8 +1,6 @@
 import java.io.*;
 import java.net.*;
 import java.nio.charset.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /* 
  * Utils
@@ -11,37 +9,18 @@ import java.security.NoSuchAlgorithmException;
 public class Utils {
 	public static final Charset CHARSET = StandardCharsets.UTF_8;
 
-	/* SHA1 hash implementation. */
-	private static byte[] sha1(String s) {
-		byte[] ret = null;
+	// run with -Dchord.hash=MIX for the faster hash; all nodes must agree
+	public static final Hasher HASHER =
+			Hasher.forName(System.getProperty("chord.hash", "SHA1"));
 
-		try {
-			MessageDigest mDigest = MessageDigest.getInstance("SHA1");
-			ret = mDigest.digest(s.getBytes());
-		} catch (NoSuchAlgorithmException e) {
-			System.err.println("EXCEPTION: SHA1 not found");
-		}
-
-		return ret;
-	}
-
-	/* Get hash of long based on first five bytes of SHA1 hash. */
+	/* Get identifier of long. */
 	static long hash(long x) {
-		return hash(sha1(new Long(x).toString()));
+		return HASHER.hash(x);
 	}
 	
-	/* Get hash of string based on first five bytes of SHA1 hash. */
+	/* Get identifier of string. */
 	static long hash(String s) {
-		return hash(sha1(s));
-	}
-	
-	/* Compute hash. */
-	private static long hash(byte[] byteArray) {
-		return Math.abs((long) byteArray[0] +
-				((long) byteArray[1] << 8) + 
-				((long) byteArray[2] << 16) +
-				((long) byteArray[3] << 24) +
-				((long) byteArray[4] << 32)) % AbstractNode.MOD;
+		return HASHER.hash(s);
 	}
 
 	/* Initialize input stream from socket. */
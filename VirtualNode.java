@@ -0,0 +1,223 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/*
+ * VirtualNode
+ * Additional ring position of a Node. It keeps its own finger table,
+ * predecessor and items, and shares everything else with its host: requests
+ * go out through the host's connection pool, arrive through its server
+ * addressed by this position's key, and run on its threads. Requests between
+ * positions of the same host never leave the process.
+ */
+public class VirtualNode extends AbstractNode {
+	private Node host;
+
+	/* VirtualNode constructor for the index-th position of host. */
+	public VirtualNode(Node host, int index) {
+		super(position(host.myEp, index));
+		this.host = host;
+		routing = host.routing;
+		detector = host.detector;
+		replication = host.replication;
+		readConsistency = host.readConsistency;
+		metrics = host.metrics;
+		nearCache = host.nearCache;
+		leaseMillis = host.leaseMillis;
+	}
+
+	/* Return endpoint of the index-th position on ep's host and port. */
+	static Endpoint position(Endpoint ep, int index) {
+		return new Endpoint(ep.host, ep.port,
+				Utils.hash(ep.host + ep.port + "#" + index));
+	}
+
+	@Override
+	/* Run fixFingers lookups on the host's pool. */
+	protected Executor lookupExecutor() {
+		return host.lookupExecutor();
+	}
+
+	@Override
+	/* Send replicas from the host's replication thread. */
+	protected Executor replicaExecutor() {
+		return host.replicaExecutor();
+	}
+
+	@Override
+	Endpoint closestPrecedingFinger(Endpoint ep, long id) {
+		return host.closestPrecedingFinger(ep, id);
+	}
+
+	@Override
+	Endpoint getSuccessor(Endpoint ep) {
+		return host.getSuccessor(ep);
+	}
+
+	@Override
+	Endpoint getSuccessor(Endpoint ep, long id) {
+		return host.getSuccessor(ep, id);
+	}
+
+	@Override
+	Endpoint getPredecessor(Endpoint ep) {
+		return host.getPredecessor(ep);
+	}
+
+	@Override
+	Endpoint[] getSuccessorList(Endpoint ep) {
+		return host.getSuccessorList(ep);
+	}
+
+	@Override
+	Endpoint[] getFingerTable(Endpoint ep) {
+		return host.getFingerTable(ep);
+	}
+
+	@Override
+	Long getItem(Endpoint ep, long key) {
+		return host.getItem(ep, key);
+	}
+
+	@Override
+	void giveItem(Endpoint ep, long key, long value) {
+		host.giveItem(ep, key, value);
+	}
+
+	@Override
+	Long getOwnedItem(Endpoint ep, long key) throws StaleRouteException {
+		return host.getOwnedItem(ep, key);
+	}
+
+	@Override
+	NearCache.Lease getLeasedItem(Endpoint ep, long key) throws StaleRouteException {
+		return host.getLeasedItem(ep, key);
+	}
+
+	@Override
+	void giveOwnedItem(Endpoint ep, long key, long value) throws StaleRouteException {
+		host.giveOwnedItem(ep, key, value);
+	}
+
+	@Override
+	Long[] getOwnedItems(Endpoint ep, long[] keys) throws StaleRouteException {
+		return host.getOwnedItems(ep, keys);
+	}
+
+	@Override
+	void giveOwnedItems(Endpoint ep, long[] keys, long[] values)
+			throws StaleRouteException {
+		host.giveOwnedItems(ep, keys, values);
+	}
+
+	@Override
+	boolean giveItems(Endpoint ep, LongLongMap items) {
+		return host.giveItems(ep, items);
+	}
+
+	@Override
+	byte[] getOwnedBlob(Endpoint ep, long key) throws StaleRouteException {
+		return host.getOwnedBlob(ep, key);
+	}
+
+	@Override
+	void giveOwnedBlob(Endpoint ep, long key, byte[] value) throws StaleRouteException {
+		host.giveOwnedBlob(ep, key, value);
+	}
+
+	@Override
+	boolean giveBlobs(Endpoint ep, BlobStore blobs, long[] keys) {
+		return host.giveBlobs(ep, blobs, keys);
+	}
+
+	@Override
+	boolean giveReplicas(Endpoint ep, LongLongMap items) {
+		return host.giveReplicas(myEp, ep, items);
+	}
+
+	@Override
+	void dropReplicas(Endpoint ep) {
+		host.dropReplicas(myEp, ep);
+	}
+
+	@Override
+	Long getReplica(Endpoint ep, Endpoint owner, long key) {
+		return host.getReplica(ep, owner, key);
+	}
+
+	@Override
+	void forwardLookup(Endpoint ep, long id, Endpoint origin, long lookupId,
+			int hops) {
+		host.forwardLookup(ep, id, origin, lookupId, hops);
+	}
+
+	@Override
+	void lookupDone(Endpoint origin, long lookupId, Endpoint pred, Endpoint succ) {
+		host.lookupDone(origin, lookupId, pred, succ);
+	}
+
+	@Override
+	CompletableFuture<Endpoint> closestPrecedingFingerAsync(Endpoint ep, long id) {
+		return host.closestPrecedingFingerAsync(ep, id);
+	}
+
+	@Override
+	CompletableFuture<Endpoint> getSuccessorAsync(Endpoint ep) {
+		return host.getSuccessorAsync(ep);
+	}
+
+	@Override
+	CompletableFuture<Endpoint[]> getSuccessorListAsync(Endpoint ep) {
+		return host.getSuccessorListAsync(ep);
+	}
+
+	@Override
+	CompletableFuture<Long> getItemAsync(Endpoint ep, long key) {
+		return host.getItemAsync(ep, key);
+	}
+
+	@Override
+	CompletableFuture<Void> giveItemAsync(Endpoint ep, long key, long value) {
+		return host.giveItemAsync(ep, key, value);
+	}
+
+	@Override
+	CompletableFuture<Long> getOwnedItemAsync(Endpoint ep, long key) {
+		return host.getOwnedItemAsync(ep, key);
+	}
+
+	@Override
+	CompletableFuture<Void> giveOwnedItemAsync(Endpoint ep, long key, long value) {
+		return host.giveOwnedItemAsync(ep, key, value);
+	}
+
+	@Override
+	CompletableFuture<Long[]> getOwnedItemsAsync(Endpoint ep, long[] keys) {
+		return host.getOwnedItemsAsync(ep, keys);
+	}
+
+	@Override
+	CompletableFuture<Void> giveOwnedItemsAsync(Endpoint ep, long[] keys,
+			long[] values) {
+		return host.giveOwnedItemsAsync(ep, keys, values);
+	}
+
+	@Override
+	CompletableFuture<Long> getReplicaAsync(Endpoint ep, Endpoint owner, long key) {
+		return host.getReplicaAsync(ep, owner, key);
+	}
+
+	@Override
+	void leaving(Endpoint ep, Endpoint pred) {
+		host.leaving(myEp, ep, pred);
+	}
+
+	@Override
+	void notify(Endpoint ep) {
+		host.notify(myEp, ep);
+	}
+
+	@Override
+	boolean isReachable(Endpoint ep) {
+		return host.isReachable(ep);
+	}
+}
@@ -0,0 +1,335 @@
+import java.nio.*;
+import java.util.*;
+
+/*
+ * WireCodec
+ * Binary framed protocol between nodes. A connection that starts with MAGIC
+ * and VERSION speaks frames of [int length][byte opcode][payload], with longs
+ * written at fixed width. Any other first byte means the text protocol.
+ * Request payloads start with the key of the ring position they are for,
+ * since one node may host several.
+ *
+ * Endpoints are interned per connection and direction: the first time an
+ * endpoint is sent it is written in full and both sides give it the next
+ * index, after which only the index is sent. One codec holds the state for
+ * one connection and must only be used by one thread at a time.
+ */
+public class WireCodec {
+	public static final byte MAGIC = (byte) 0xC7;
+	public static final byte VERSION = 1;
+
+	// request opcodes
+	public static final byte PRE_FINGER = 1;
+	public static final byte GET_SUCC = 2;
+	public static final byte GET_SUCC_ID = 3;
+	public static final byte GET_PRED = 4;
+	public static final byte GET_ITEM = 5;
+	public static final byte GIVE_ITEM = 6;
+	public static final byte NOTIFY = 7;
+	public static final byte IS_REACHABLE = 8;
+	public static final byte GIVE_ITEMS = 9;
+	public static final byte GET_OWNED = 10;
+	public static final byte GIVE_OWNED = 11;
+	public static final byte LOOKUP = 12;
+	public static final byte LOOKUP_DONE = 13;
+	public static final byte GET_SUCC_LIST = 14;
+	public static final byte LEAVING = 15;
+	public static final byte GET_FINGERS = 16;
+	public static final byte GIVE_REPLICAS = 17;
+	public static final byte DROP_REPLICAS = 18;
+	public static final byte GET_REPLICA = 19;
+	public static final byte GET_OWNED_ITEMS = 20;
+	public static final byte GIVE_OWNED_ITEMS = 21;
+	public static final byte GET_BLOB = 22;
+	public static final byte GIVE_BLOB = 23;
+	public static final byte GIVE_BLOBS = 24;
+	public static final byte GET_LEASED = 25;
+
+	// response opcodes
+	public static final byte OK = 0;
+	public static final byte ERROR = -1;
+	public static final byte NOT_OWNER = -2;
+
+	public static final int MAX_FRAME = 64 << 20;
+
+	// request opcode names, by opcode, as they appear in metrics
+	private static final String[] NAMES = {
+			null, "PRE_FINGER", "GET_SUCC", "GET_SUCC_ID", "GET_PRED", "GET_ITEM",
+			"GIVE_ITEM", "NOTIFY", "IS_REACHABLE", "GIVE_ITEMS", "GET_OWNED",
+			"GIVE_OWNED", "LOOKUP", "LOOKUP_DONE", "GET_SUCC_LIST", "LEAVING",
+			"GET_FINGERS", "GIVE_REPLICAS", "DROP_REPLICAS", "GET_REPLICA",
+			"GET_OWNED_ITEMS", "GIVE_OWNED_ITEMS", "GET_BLOB", "GIVE_BLOB",
+			"GIVE_BLOBS", "GET_LEASED"
+	};
+
+	private static final byte NULL_TAG = 0;
+	private static final byte DEF_TAG = 1;
+	private static final byte REF_TAG = 2;
+	private static final byte ONCE_TAG = 3;
+	private static final int MAX_INTERNED = 4096;
+	private static final int INITIAL_CAPACITY = 256;
+
+	private Map<Endpoint, Integer> sent;
+	private ArrayList<Endpoint> received;
+	private ByteBuffer out;
+	private ByteBuffer in;
+
+	/*
+	 * Encoder
+	 * Writes the payload of a request.
+	 */
+	interface Encoder {
+		void encode(WireCodec codec);
+	}
+
+	/*
+	 * Decoder
+	 * Reads the payload of a response.
+	 */
+	interface Decoder<T> {
+		T decode(WireCodec codec, ByteBuffer payload);
+	}
+
+	/* WireCodec constructor. */
+	public WireCodec() {
+		sent = new HashMap<Endpoint, Integer>();
+		received = new ArrayList<Endpoint>();
+		out = ByteBuffer.allocate(INITIAL_CAPACITY);
+		in = ByteBuffer.allocate(INITIAL_CAPACITY);
+	}
+
+	/* Start a new outgoing frame with opcode. */
+	public WireCodec begin(byte op) {
+		out.clear();
+		out.putInt(0);
+		out.put(op);
+		return this;
+	}
+
+	/* Append long to outgoing frame. */
+	public WireCodec putLong(long x) {
+		ensure(8);
+		out.putLong(x);
+		return this;
+	}
+
+	/* Append int to outgoing frame. */
+	public WireCodec putInt(int x) {
+		ensure(4);
+		out.putInt(x);
+		return this;
+	}
+
+	/* Append byte to outgoing frame. */
+	public WireCodec putByte(byte x) {
+		ensure(1);
+		out.put(x);
+		return this;
+	}
+
+	/* Append nullable value to outgoing frame. */
+	public WireCodec putValue(Long value) {
+		if (value == null) {
+			return putByte(NULL_TAG);
+		}
+		ensure(9);
+		out.put(DEF_TAG);
+		out.putLong(value);
+		return this;
+	}
+
+	/* Append nullable byte-array value, the remaining bytes of value. */
+	public WireCodec putBlob(ByteBuffer value) {
+		if (value == null) {
+			return putByte(NULL_TAG);
+		}
+		int len = value.remaining();
+		ensure(5 + len);
+		out.put(DEF_TAG);
+		out.putInt(len);
+		out.put(out.position(), value, value.position(), len);
+		out.position(out.position() + len);
+		return this;
+	}
+
+	/* Append nullable endpoint to outgoing frame. */
+	public WireCodec putEndpoint(Endpoint ep) {
+		if (ep == null) {
+			return putByte(NULL_TAG);
+		}
+
+		Integer idx = sent.get(ep);
+		if (idx != null) {
+			ensure(5);
+			out.put(REF_TAG);
+			out.putInt(idx);
+			return this;
+		}
+
+		byte tag = ONCE_TAG;
+		if (sent.size() < MAX_INTERNED) {
+			tag = DEF_TAG;
+			sent.put(ep, sent.size());
+		}
+		byte[] host = ep.host.getBytes(Utils.CHARSET);
+		ensure(1 + 2 + host.length + 4 + 8);
+		out.put(tag);
+		out.putShort((short) host.length);
+		out.put(host);
+		out.putInt(ep.port);
+		out.putLong(ep.key);
+		return this;
+	}
+
+	/* Finish outgoing frame and return it ready to be written. */
+	public ByteBuffer finish() {
+		out.putInt(0, out.position() - 4);
+		out.flip();
+		return out;
+	}
+
+	/*
+	 * Finish outgoing frame with nullable byte-array value last, and return
+	 * it ready to be written as the frame's buffer followed by value. The
+	 * bytes of value are not copied, so it must not change until written.
+	 */
+	public ByteBuffer[] finishBlob(ByteBuffer value) {
+		if (value == null) {
+			putByte(NULL_TAG);
+			return new ByteBuffer[] { finish() };
+		}
+		ensure(5);
+		out.put(DEF_TAG);
+		out.putInt(value.remaining());
+		out.putInt(0, out.position() - 4 + value.remaining());
+		out.flip();
+		return new ByteBuffer[] { out, value.duplicate() };
+	}
+
+	/* Read nullable endpoint from payload. */
+	public Endpoint readEndpoint(ByteBuffer payload) {
+		byte tag = payload.get();
+		switch (tag) {
+			case NULL_TAG:
+				return null;
+			case REF_TAG:
+				return received.get(payload.getInt());
+			case DEF_TAG:
+			case ONCE_TAG:
+				byte[] host = new byte[payload.getShort()];
+				payload.get(host);
+				int port = payload.getInt();
+				long key = payload.getLong();
+				Endpoint ep = new Endpoint(new String(host, Utils.CHARSET), port, key);
+				if (tag == DEF_TAG) {
+					received.add(ep);
+				}
+				return ep;
+			default:
+				throw new IllegalArgumentException("bad endpoint tag " + tag);
+		}
+	}
+
+	/* Return name of request opcode op. */
+	public static String name(byte op) {
+		return op > 0 && op < NAMES.length ? NAMES[op] : "UNKNOWN";
+	}
+
+	/* Read nullable value from payload. */
+	public static Long readValue(ByteBuffer payload) {
+		if (payload.get() == NULL_TAG) {
+			return null;
+		}
+		return payload.getLong();
+	}
+
+	/*
+	 * Read nullable byte-array value from payload, as a view of its bytes in
+	 * payload that is only valid as long as payload is.
+	 */
+	public static ByteBuffer readBlob(ByteBuffer payload) {
+		if (payload.get() == NULL_TAG) {
+			return null;
+		}
+		int len = payload.getInt();
+		ByteBuffer value = payload.slice(payload.position(), len);
+		payload.position(payload.position() + len);
+		return value;
+	}
+
+	/* Return buffer for an incoming frame of len bytes, reused between calls. */
+	ByteBuffer inBuffer(int len) {
+		if (in.capacity() < len) {
+			in = ByteBuffer.allocate(Math.max(len, in.capacity() * 2));
+		}
+		in.clear();
+		in.limit(len);
+		return in;
+	}
+
+	/* Grow outgoing buffer to fit n more bytes. */
+	private void ensure(int n) {
+		if (out.remaining() >= n) {
+			return;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2,
+				out.position() + n));
+		out.flip();
+		bigger.put(out);
+		out = bigger;
+	}
+
+	// ==============================
+  // Common Decoders
+  // ==============================
+
+	/* Decode endpoint response. */
+	static Endpoint endpoint(WireCodec codec, ByteBuffer payload) {
+		return codec.readEndpoint(payload);
+	}
+
+	/* Decode value response. */
+	static Long value(WireCodec codec, ByteBuffer payload) {
+		return readValue(payload);
+	}
+
+	/* Decode value and lease response. */
+	static NearCache.Lease lease(WireCodec codec, ByteBuffer payload) {
+		Long value = readValue(payload);
+		return new NearCache.Lease(value, payload.getInt());
+	}
+
+	/* Decode value list response. */
+	static Long[] values(WireCodec codec, ByteBuffer payload) {
+		Long[] values = new Long[payload.getInt()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = readValue(payload);
+		}
+		return values;
+	}
+
+	/* Decode byte-array value response, copied out of the frame. */
+	static byte[] blob(WireCodec codec, ByteBuffer payload) {
+		ByteBuffer view = readBlob(payload);
+		if (view == null) {
+			return null;
+		}
+		byte[] value = new byte[view.remaining()];
+		view.get(value);
+		return value;
+	}
+
+	/* Decode endpoint list response. */
+	static Endpoint[] endpoints(WireCodec codec, ByteBuffer payload) {
+		Endpoint[] eps = new Endpoint[payload.getInt()];
+		for (int i = 0; i < eps.length; ++i) {
+			eps[i] = codec.readEndpoint(payload);
+		}
+		return eps;
+	}
+
+	/* Decode empty response. */
+	static Boolean ack(WireCodec codec, ByteBuffer payload) {
+		return Boolean.TRUE;
+	}
+}
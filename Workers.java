@@ -0,0 +1,75 @@
+import java.util.concurrent.*;
+
+/*
+ * Workers
+ * Threads for work that blocks on other nodes. With the POOLED model it runs
+ * on fixed pools of platform threads. With VIRTUAL each task gets its own
+ * virtual thread, which parks cheaply while its socket waits, so many more
+ * requests can block at once without a thread stack each. Virtual threads
+ * need JDK 21 or later; older JVMs fall back to POOLED.
+ */
+public class Workers {
+	/*
+	 * Model
+	 * How blocking work gets its threads.
+	 */
+	public enum Model {
+		POOLED, VIRTUAL
+	}
+
+	// run with -Dchord.threads=VIRTUAL for a virtual thread per blocking task
+	public static final Model MODEL = pick(Model.valueOf(
+			System.getProperty("chord.threads", "POOLED")));
+
+	// blocking tasks in flight at once before new ones are shed, with VIRTUAL
+	public static final int VIRTUAL_LIMIT = 10000;
+
+	/*
+	 * Return executor for blocking tasks: a pool of n threads, or a new
+	 * virtual thread per task. Callers bound how many tasks they submit.
+	 */
+	public static ExecutorService newExecutor(int n) {
+		if (MODEL == Model.VIRTUAL) {
+			return newVirtualExecutor();
+		}
+		return Executors.newFixedThreadPool(n);
+	}
+
+	/* Return model, or POOLED if it is VIRTUAL and this JVM lacks them. */
+	private static Model pick(Model model) {
+		if (model == Model.VIRTUAL && !hasVirtualThreads()) {
+			System.err.println("ERROR: virtual threads need JDK 21, using POOLED");
+			return Model.POOLED;
+		}
+		return model;
+	}
+
+	/*
+	 * Return whether this JVM has virtual threads. JDK 19 and 20 have
+	 * Thread.ofVirtual only as a preview, which fails unless enabled.
+	 */
+	static boolean hasVirtualThreads() {
+		if (Runtime.version().feature() < 21) {
+			return false;
+		}
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Return executor starting a virtual thread per task, or null if this JVM
+	 * has none. Looked up reflectively so the sources build on JDK 17.
+	 */
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+import bench.HashBenchmark;
+import bench.ItemsBenchmark;
+import bench.LoopbackBenchmark;
+import bench.RingBenchmark;
+import bench.UnitBenchmark;
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/*
+ * BenchFixtures
+ * Operations timed by the JMH benchmarks in jmh/bench: hashing, endpoint
+ * serialization, ring arithmetic, the item store, lookups, gets and puts on
+ * LocalNode rings of 10 to 10,000 nodes, and gets and puts between Nodes over
+ * loopback. JMH only takes benchmarks in a named package, which cannot refer
+ * to classes in the default package, so each benchmark declares the
+ * operations it times as an Ops interface and one class here implements it.
+ */
+public class BenchFixtures {
+	private static final int ITEMS = 1 << 20;
+	private static final int RING_KEYS = 10000;
+	private static final int BATCH = 100;
+	private static final int BASE_PORT = 18600;
+
+	/* BenchFixtures constructor. */
+	private BenchFixtures() {
+	}
+
+	/*
+	 * Unit
+	 * Hashing, endpoint serialization and ring arithmetic.
+	 */
+	public static class Unit implements UnitBenchmark.Ops {
+		private final Endpoint ep = new Endpoint("192.168.1.20", 8001);
+		private final String wire = Endpoint.serialize(ep);
+		private final LocalNode node =
+				new LocalNode(new HashMap<Integer, LocalNode>(), 0);
+		private final long left = node.myEp.key;
+		private final long right = (left + (AbstractNode.MASK >>> 1)) & AbstractNode.MASK;
+
+		@Override
+		public long hash(long key) {
+			return Utils.hash(key);
+		}
+
+		@Override
+		public int serialize() {
+			return Endpoint.serialize(ep).length();
+		}
+
+		@Override
+		public int deserialize() {
+			return Endpoint.deserialize(wire).port;
+		}
+
+		@Override
+		public boolean inBetween(long id) {
+			return node.inBetween(left, right, id & AbstractNode.MASK);
+		}
+	}
+
+	/*
+	 * Hash
+	 * Key placement by the original allocating SHA1 hash and by each Hasher.
+	 */
+	public static class Hash implements HashBenchmark.Ops {
+		@Override
+		public long legacy(long key) throws Exception {
+			return HashBench.legacy(key);
+		}
+
+		@Override
+		public long sha1(long key) {
+			return Hasher.SHA1.hash(key);
+		}
+
+		@Override
+		public long mix(long key) {
+			return Hasher.MIX.hash(key);
+		}
+	}
+
+	/*
+	 * Items
+	 * Gets and puts on an item store holding ITEMS keys.
+	 */
+	public static class Items implements ItemsBenchmark.Ops {
+		private final LongLongMap items = new LongLongMap();
+
+		/* Items constructor. */
+		public Items() {
+			for (int i = 0; i < ITEMS; ++i) {
+				items.put(i, i);
+			}
+		}
+
+		@Override
+		public long get(long i) {
+			return items.get(i & (ITEMS - 1), -1);
+		}
+
+		@Override
+		public void put(long i) {
+			items.put(i & (ITEMS - 1), i);
+		}
+	}
+
+	/*
+	 * Ring
+	 * Lookups, gets and puts on a stable ring of LocalNodes.
+	 */
+	public static class Ring implements RingBenchmark.Ops {
+		private LocalNode[] nodes;
+
+		@Override
+		public void build(int n) {
+			Map<Integer, LocalNode> m = new HashMap<Integer, LocalNode>();
+			nodes = new LocalNode[n];
+			for (int i = 0; i < n; ++i) {
+				nodes[i] = new LocalNode(m, i);
+				m.put(i, nodes[i]);
+			}
+			RingSim.wire(nodes);
+		}
+
+		@Override
+		public long findSuccessor(long i) {
+			return nodes[(int) (i % nodes.length)]
+					.findSuccessor((i * 0x9E3779B97F4A7C15L) & AbstractNode.MASK).key;
+		}
+
+		@Override
+		public long get(long i) {
+			Long v = nodes[(int) ((i * 7) % nodes.length)].get(i % RING_KEYS);
+			return v == null ? 0 : v;
+		}
+
+		@Override
+		public void put(long i) {
+			nodes[(int) (i % nodes.length)].put(i % RING_KEYS, i);
+		}
+	}
+
+	/*
+	 * Loopback
+	 * Gets, puts and gets of BATCH keys between two Nodes over loopback.
+	 */
+	public static class Loopback implements LoopbackBenchmark.Ops {
+		// threads serving the Nodes, stopped by close
+		private final List<Thread> running = new ArrayList<Thread>();
+		private final long[] batch = new long[BATCH];
+		private Node n1;
+
+		/* Loopback constructor; starts the Nodes. */
+		public Loopback() throws IOException {
+			n1 = start(BASE_PORT);
+			Node n2 = start(BASE_PORT + 1);
+			n1.create();
+			n2.join(n1.myEp);
+			n2.stabilize();
+			n1.stabilize();
+			for (int i = 0; i < batch.length; ++i) {
+				batch[i] = i;
+			}
+		}
+
+		@Override
+		public long get(long i) {
+			Long v = n1.get(i % RING_KEYS);
+			return v == null ? 0 : v;
+		}
+
+		@Override
+		public void put(long i) {
+			n1.put(i % RING_KEYS, i);
+		}
+
+		@Override
+		public int multiGet() {
+			return n1.multiGet(batch).length;
+		}
+
+		@Override
+		public void close() throws Exception {
+			for (int i = running.size() - 1; i >= 0; --i) {
+				try (Socket s = new Socket("localhost", BASE_PORT + i)) {
+					DataOutputStream dos = Utils.getOutputStream(s);
+					dos.writeBytes(String.format("%s\r\n", Node.LEAVE));
+					dos.flush();
+				}
+				running.get(i).join();
+			}
+			running.clear();
+		}
+
+		/* Start a Node on port, to be stopped by close. */
+		private Node start(int port) throws IOException {
+			Node node = new Node("localhost", port);
+			Thread thread = new Thread(node);
+			thread.start();
+			running.add(thread);
+			return node;
+		}
+	}
+}
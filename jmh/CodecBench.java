@@ -0,0 +1,93 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/*
+ * CodecBench
+ * Measures wire bytes and heap allocation per RPC for the text protocol and
+ * WireCodec, covering encode and decode on both sides of a connection.
+ */
+public class CodecBench {
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 1000000;
+
+	private static long sink;
+
+	/*
+	 * Rpc
+	 * One round trip through a protocol. Returns bytes put on the wire.
+	 */
+	interface Rpc {
+		int run(long i);
+	}
+
+	/* Return bytes allocated so far by the current thread. */
+	private static long allocated() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/* Run rpc and print bytes, allocation and time per call. */
+	private static void measure(String name, Rpc rpc) {
+		for (int i = 0; i < WARMUP; ++i) {
+			sink += rpc.run(i);
+		}
+
+		long bytes = 0;
+		long before = allocated();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			bytes += rpc.run(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long alloc = allocated() - before;
+
+		System.out.printf("%-28s %6.1f wire bytes %8.1f alloc bytes %7.1f ns%n",
+				name, (double) bytes / ITERATIONS, (double) alloc / ITERATIONS,
+				(double) elapsed / ITERATIONS);
+	}
+
+	/* Main method. */
+	public static void main(String args[]) {
+		Endpoint ep = new Endpoint("192.168.1.20", 8001);
+
+		// GIVE_ITEM request: two longs
+		measure("text GIVE_ITEM", i -> {
+			byte[] wire = String.format("%s%d %s %d %d\r\n", Node.TARGET, ep.key,
+					Node.GIVE_ITEM, i, i * 31).getBytes(Utils.CHARSET);
+			String[] info = new String(wire, Utils.CHARSET).trim().split("\\s+");
+			sink += Long.parseLong(info[2]) + Long.parseLong(info[3]);
+			return wire.length;
+		});
+		WireCodec giveOut = new WireCodec();
+		measure("binary GIVE_ITEM", i -> {
+			ByteBuffer frame = giveOut.begin(WireCodec.GIVE_ITEM).putLong(ep.key)
+					.putLong(i).putLong(i * 31).finish();
+			int len = frame.remaining();
+			frame.position(13);
+			sink += frame.getLong() + frame.getLong();
+			return len;
+		});
+
+		// GET_SUCC response: one endpoint
+		measure("text GET_SUCC response", i -> {
+			byte[] wire = (Endpoint.serialize(ep) + "\r\n").getBytes(Utils.CHARSET);
+			Endpoint decoded = Endpoint.deserialize(
+					new String(wire, 0, wire.length - 2, Utils.CHARSET));
+			sink += decoded.key;
+			return wire.length;
+		});
+		WireCodec succOut = new WireCodec();
+		WireCodec succIn = new WireCodec();
+		measure("binary GET_SUCC response", i -> {
+			ByteBuffer frame = succOut.begin(WireCodec.OK).putEndpoint(ep).finish();
+			int len = frame.remaining();
+			frame.position(5);
+			sink += succIn.readEndpoint(frame).key;
+			return len;
+		});
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+
+/*
+ * HashBench
+ * Compares the original allocating SHA1 key hash with the Hasher
+ * implementations: time and heap allocation per hash, and how evenly
+ * consecutive keys spread over the ring.
+ */
+public class HashBench {
+	private static final int WARMUP = 500000;
+	private static final int ITERATIONS = 2000000;
+	private static final int BUCKET_BITS = 6;
+	private static final long LEGACY_MOD = 1L << 31;
+
+	private static long sink;
+
+	/*
+	 * Hash
+	 * Hash function under test.
+	 */
+	interface Hash {
+		long hash(long key) throws Exception;
+	}
+
+	/* Original Utils.hash(long): new digest and strings on every call. */
+	@SuppressWarnings("removal")
+	static long legacy(long x) throws Exception {
+		byte[] b = MessageDigest.getInstance("SHA1")
+				.digest(new Long(x).toString().getBytes());
+		return Math.abs((long) b[0] + ((long) b[1] << 8) + ((long) b[2] << 16) +
+				((long) b[3] << 24) + ((long) b[4] << 32)) % LEGACY_MOD & AbstractNode.MASK;
+	}
+
+	/* Return bytes allocated so far by the current thread. */
+	private static long allocated() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/* Run hash and print time, allocation and bucket spread. */
+	private static void measure(String name, Hash hash) throws Exception {
+		for (int i = 0; i < WARMUP; ++i) {
+			sink += hash.hash(i);
+		}
+
+		long[] buckets = new long[1 << BUCKET_BITS];
+		long before = allocated();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			long h = hash.hash(i);
+			++buckets[(int) (h >>> (AbstractNode.M - BUCKET_BITS))];
+		}
+		long elapsed = System.nanoTime() - start;
+		long alloc = allocated() - before;
+
+		// chi-squared over the buckets; about their number when uniform
+		double expected = (double) ITERATIONS / buckets.length;
+		double chi = 0;
+		for (long b : buckets) {
+			chi += (b - expected) * (b - expected) / expected;
+		}
+
+		System.out.printf("%-12s %7.1f ns %8.1f alloc bytes %8.1f chi-squared%n",
+				name, (double) elapsed / ITERATIONS, (double) alloc / ITERATIONS, chi);
+	}
+
+	/* Main method. */
+	public static void main(String args[]) throws Exception {
+		measure("legacy", HashBench::legacy);
+		measure("SHA1", Hasher.SHA1::hash);
+		measure("MIX", Hasher.MIX::hash);
+	}
+}
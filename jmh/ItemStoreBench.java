@@ -0,0 +1,195 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ItemStoreBench
+ * Compares LongLongMap with the ConcurrentHashMap<Long, Long> it replaced as
+ * the item store: heap bytes per entry and mixed get/put throughput. Also
+ * times splitting off the keys a new predecessor takes over, by hashing
+ * every key and through the map's identifier index.
+ */
+public class ItemStoreBench {
+	private static final int ENTRIES = 2000000;
+	private static final int THREADS = 4;
+	private static final int SECONDS = 3;
+	private static final int PUT_PERCENT = 20;
+	private static final int SPLIT_ROUNDS = 5;
+
+	/*
+	 * Store
+	 * Operations the benchmark needs from either map.
+	 */
+	interface Store {
+		void put(long key, long value);
+		long get(long key);
+	}
+
+	/* Return heap in use after a few collections. */
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; ++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/* Fill store and return heap bytes per entry. */
+	private static double footprint(Callable<Store> factory) throws Exception {
+		long before = usedHeap();
+		Store store = factory.call();
+		for (long i = 0; i < ENTRIES; ++i) {
+			store.put(i * 7919, i);
+		}
+		long after = usedHeap();
+		if (store.get(7919) != 1) {
+			throw new IllegalStateException();
+		}
+		return (double) (after - before) / ENTRIES;
+	}
+
+	/* Return mixed operations per second over THREADS threads. */
+	private static double throughput(Store store) throws Exception {
+		for (long i = 0; i < ENTRIES; ++i) {
+			store.put(i, i);
+		}
+
+		LongAdder ops = new LongAdder();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		for (int t = 0; t < THREADS; ++t) {
+			pool.execute(() -> {
+				SplittableRandom random = new SplittableRandom();
+				long n = 0;
+				long sink = 0;
+				while ((n & 1023) != 0 || System.nanoTime() < deadline) {
+					long key = random.nextInt(ENTRIES);
+					if (random.nextInt(100) < PUT_PERCENT) {
+						store.put(key, n);
+					} else {
+						sink += store.get(key);
+					}
+					++n;
+				}
+				ops.add(n + (sink == 42 ? 1 : 0));
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(SECONDS + 10, TimeUnit.SECONDS);
+		return ops.sum() / (double) SECONDS;
+	}
+
+	/* Return LongLongMap as a Store. */
+	private static Store longLongMap() {
+		LongLongMap map = new LongLongMap();
+		return new Store() {
+			public void put(long key, long value) {
+				map.put(key, value);
+			}
+
+			public long get(long key) {
+				return map.get(key, -1);
+			}
+		};
+	}
+
+	/* Return LongLongMap indexed by identifier as a Store. */
+	private static Store indexedLongLongMap() {
+		LongLongMap map = new LongLongMap(0, Utils.HASHER);
+		return new Store() {
+			public void put(long key, long value) {
+				map.put(key, value);
+			}
+
+			public long get(long key) {
+				return map.get(key, -1);
+			}
+		};
+	}
+
+	/*
+	 * Print mean ms to collect the keys of 1 / 2^shift of the ring from map,
+	 * scanning and hashing every key and through the index.
+	 */
+	private static void split(LongLongMap map, int shift) {
+		long left = 0;
+		long right = AbstractNode.MASK >>> shift;
+
+		long scan = 0;
+		long ranged = 0;
+		int[] found = new int[2];
+		// the first round warms up
+		for (int r = -1; r < SPLIT_ROUNDS; ++r) {
+			if (r == 0) {
+				scan = 0;
+				ranged = 0;
+			}
+			long start = System.nanoTime();
+			LongLongMap toGive = new LongLongMap();
+			map.forEach((key, value) -> {
+				long id = Utils.hash(key);
+				if (id > left && id <= right) {
+					toGive.put(key, value);
+				}
+			});
+			scan += System.nanoTime() - start;
+			found[0] = toGive.size();
+
+			start = System.nanoTime();
+			LongLongMap range = new LongLongMap();
+			map.forEachInRange(left, right, range::put);
+			ranged += System.nanoTime() - start;
+			found[1] = range.size();
+		}
+		if (found[0] != found[1]) {
+			throw new IllegalStateException();
+		}
+		System.out.printf("%-20s %10.1f ms for %d of %d keys%n", "split by scan",
+				scan / 1e6 / SPLIT_ROUNDS, found[0], ENTRIES);
+		System.out.printf("%-20s %10.1f ms for %d of %d keys%n", "split by index",
+				ranged / 1e6 / SPLIT_ROUNDS, found[1], ENTRIES);
+	}
+
+	/* Time splits of an eighth and of a thousandth of the ring. */
+	private static void splits() {
+		LongLongMap map = new LongLongMap(0, Utils.HASHER);
+		for (long i = 0; i < ENTRIES; ++i) {
+			map.put(i, i);
+		}
+		split(map, 3);
+		split(map, 10);
+	}
+
+	/* Return ConcurrentHashMap as a Store. */
+	private static Store concurrentHashMap() {
+		Map<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+		return new Store() {
+			public void put(long key, long value) {
+				map.put(key, value);
+			}
+
+			public long get(long key) {
+				Long value = map.get(key);
+				return value == null ? -1 : value;
+			}
+		};
+	}
+
+	/* Main method. */
+	public static void main(String args[]) throws Exception {
+		System.out.printf("%-20s %10.1f bytes/entry%n", "LongLongMap",
+				footprint(ItemStoreBench::longLongMap));
+		System.out.printf("%-20s %10.1f bytes/entry%n", "LongLongMap indexed",
+				footprint(ItemStoreBench::indexedLongLongMap));
+		System.out.printf("%-20s %10.1f bytes/entry%n", "ConcurrentHashMap",
+				footprint(ItemStoreBench::concurrentHashMap));
+		System.out.printf("%-20s %10.0f ops/s%n", "LongLongMap",
+				throughput(longLongMap()));
+		System.out.printf("%-20s %10.0f ops/s%n", "LongLongMap indexed",
+				throughput(indexedLongLongMap()));
+		System.out.printf("%-20s %10.0f ops/s%n", "ConcurrentHashMap",
+				throughput(concurrentHashMap()));
+		splits();
+	}
+}
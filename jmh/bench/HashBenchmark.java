@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * HashBenchmark
+ * Hashing a key onto the ring with the original allocating SHA1 placement,
+ * Hasher.SHA1 and Hasher.MIX. Run with -prof gc to see what each allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class HashBenchmark {
+	/*
+	 * Ops
+	 * Operations timed, implemented by BenchFixtures.Hash.
+	 */
+	public interface Ops {
+		long legacy(long key) throws Exception;
+		long sha1(long key);
+		long mix(long key);
+	}
+
+	private Ops ops;
+	private long i;
+
+	/* Set up the hashers. */
+	@Setup
+	public void setup() throws Exception {
+		ops = Fixtures.open(Ops.class, "Hash");
+	}
+
+	/* Hash with a new digest and strings on every call, as nodes once did. */
+	@Benchmark
+	public long legacy() throws Exception {
+		return ops.legacy(i++);
+	}
+
+	/* Hash with Hasher.SHA1. */
+	@Benchmark
+	public long sha1() {
+		return ops.sha1(i++);
+	}
+
+	/* Hash with Hasher.MIX. */
+	@Benchmark
+	public long mix() {
+		return ops.mix(i++);
+	}
+}
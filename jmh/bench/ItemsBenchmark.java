@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * ItemsBenchmark
+ * Gets and puts on the item store of a node holding about a million items.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ItemsBenchmark {
+	/*
+	 * Ops
+	 * Operations timed, implemented by BenchFixtures.Items.
+	 */
+	public interface Ops {
+		long get(long i);
+		void put(long i);
+	}
+
+	private Ops ops;
+	private long i;
+
+	/* Fill the item store. */
+	@Setup
+	public void setup() throws Exception {
+		ops = Fixtures.open(Ops.class, "Items");
+	}
+
+	/* Get a stored key. */
+	@Benchmark
+	public long get() {
+		return ops.get(i++);
+	}
+
+	/* Overwrite a stored key. */
+	@Benchmark
+	public void put() {
+		ops.put(i++);
+	}
+}
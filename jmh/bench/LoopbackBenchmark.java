@@ -0,0 +1,66 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * LoopbackBenchmark
+ * Gets and puts between two Nodes over loopback sockets, with either
+ * protocol. Each fork starts its own pair of Nodes on ports 18600 and 18601.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+	/*
+	 * Ops
+	 * Operations timed, implemented by BenchFixtures.Loopback.
+	 */
+	public interface Ops {
+		long get(long i);
+		void put(long i);
+		int multiGet();
+		void close() throws Exception;
+	}
+
+	@Param({ "binary", "text" })
+	public String protocol;
+
+	private Ops ops;
+	private long i;
+
+	/* Start the Nodes. */
+	@Setup
+	public void setup() throws Exception {
+		// read once when Node is loaded, which has not happened yet in this fork
+		System.setProperty("chord.text", Boolean.toString(protocol.equals("text")));
+		ops = Fixtures.open(Ops.class, "Loopback");
+	}
+
+	/* Stop the Nodes. */
+	@TearDown
+	public void tearDown() throws Exception {
+		ops.close();
+	}
+
+	/* Get a key from the other Node. */
+	@Benchmark
+	public long get() {
+		return ops.get(i++);
+	}
+
+	/* Put a key, to either Node. */
+	@Benchmark
+	public void put() {
+		ops.put(i++);
+	}
+
+	/* Get a batch of keys in one request per owner. */
+	@Benchmark
+	public int multiGet() {
+		return ops.multiGet();
+	}
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * RingBenchmark
+ * Lookups, gets and puts on stable rings of LocalNodes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RingBenchmark {
+	/*
+	 * Ops
+	 * Operations timed, implemented by BenchFixtures.Ring.
+	 */
+	public interface Ops {
+		void build(int nodes);
+		long findSuccessor(long i);
+		long get(long i);
+		void put(long i);
+	}
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int nodes;
+
+	private Ops ops;
+	private long i;
+
+	/* Build the ring. */
+	@Setup
+	public void setup() throws Exception {
+		ops = Fixtures.open(Ops.class, "Ring");
+		ops.build(nodes);
+	}
+
+	/* Look up the owner of an id from some node. */
+	@Benchmark
+	public long findSuccessor() {
+		return ops.findSuccessor(i++);
+	}
+
+	/* Get a key from some node. */
+	@Benchmark
+	public long get() {
+		return ops.get(i++);
+	}
+
+	/* Put a key from some node. */
+	@Benchmark
+	public void put() {
+		ops.put(i++);
+	}
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * UnitBenchmark
+ * Hashing, endpoint serialization and ring arithmetic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class UnitBenchmark {
+	/*
+	 * Ops
+	 * Operations timed, implemented by BenchFixtures.Unit.
+	 */
+	public interface Ops {
+		long hash(long key);
+		int serialize();
+		int deserialize();
+		boolean inBetween(long id);
+	}
+
+	private Ops ops;
+	private long i;
+
+	/* Set up the operations. */
+	@Setup
+	public void setup() throws Exception {
+		ops = Fixtures.open(Ops.class, "Unit");
+	}
+
+	/* Hash a key onto the ring. */
+	@Benchmark
+	public long hash() {
+		return ops.hash(i++);
+	}
+
+	/* Serialize an endpoint for the text protocol. */
+	@Benchmark
+	public int endpointSerialize() {
+		return ops.serialize();
+	}
+
+	/* Parse an endpoint from the text protocol. */
+	@Benchmark
+	public int endpointDeserialize() {
+		return ops.deserialize();
+	}
+
+	/* Check whether an id falls in half of the ring. */
+	@Benchmark
+	public boolean inBetween() {
+		return ops.inBetween(i++ * 0x9E3779B97F4A7C15L);
+	}
+}